@@ -0,0 +1,65 @@
+package ie.gmit.ds.benchmarks;
+
+import ie.gmit.ds.HashAlgorithm;
+import ie.gmit.ds.HashParameters;
+import ie.gmit.ds.Passwords;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passwords on the calling thread, no gRPC.
+ * <p>
+ * hash and isExpectedPassword for each PBKDF2 digest and iteration count (getNextSalt is in SaltBenchmark). Run with -t 1 and -t max
+ * (or -t cores) to see how they scale, e.g. java -jar target/benchmarks.jar PasswordsBenchmark -t max
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PasswordsBenchmark {
+
+    @Param({"pbkdf2-sha1", "pbkdf2-sha256"})
+    public String algorithm;
+
+    /**
+     * Legacy cost and 10x
+     */
+    @Param({"10000", "100000"})
+    public int iterations;
+
+    private HashParameters parameters;
+    private char[] password;
+    private byte[] salt;
+    private byte[] expectedHash;
+
+    @Setup
+    public void setUp() {
+        parameters = HashParameters.of(HashAlgorithm.fromId(algorithm), iterations, Passwords.HASH_LENGTH);
+        password = "correct horse battery staple".toCharArray();
+        salt = Passwords.getNextSalt();
+        expectedHash = Passwords.hash(password, password.length, salt, parameters);
+    }
+
+    @Benchmark
+    public byte[] hash() {
+        return Passwords.hash(password, password.length, salt, parameters);
+    }
+
+    @Benchmark
+    public boolean isExpectedPassword() {
+        return Passwords.isExpectedPassword(password, password.length, salt, expectedHash, parameters);
+    }
+}
@@ -0,0 +1,69 @@
+package ie.gmit.ds.benchmarks;
+
+import ie.gmit.ds.HashAlgorithm;
+import ie.gmit.ds.HashParameters;
+import ie.gmit.ds.Passwords;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The service's PBKDF2 engine (through Passwords.hash) against the JDK's SecretKeyFactory, same password, salt and
+ * cost. Add -prof gc for the bytes allocated per hash, e.g.
+ * java -jar target/benchmarks.jar Pbkdf2Benchmark -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Pbkdf2Benchmark {
+
+    @Param({"pbkdf2-sha1", "pbkdf2-sha256"})
+    public String algorithm;
+
+    /**
+     * Legacy cost
+     */
+    @Param({"10000"})
+    public int iterations;
+
+    private HashParameters parameters;
+    private SecretKeyFactory secretKeyFactory;
+    private char[] password;
+    private byte[] salt;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        parameters = HashParameters.of(HashAlgorithm.fromId(algorithm), iterations, Passwords.HASH_LENGTH);
+        secretKeyFactory = SecretKeyFactory.getInstance(
+                algorithm.equals("pbkdf2-sha1") ? "PBKDF2WithHmacSHA1" : "PBKDF2WithHmacSHA256");
+        password = "correct horse battery staple".toCharArray();
+        salt = Passwords.getNextSalt();
+    }
+
+    @Benchmark
+    public byte[] engine() {
+        return Passwords.hash(password, password.length, salt, parameters);
+    }
+
+    @Benchmark
+    public byte[] secretKeyFactory() throws GeneralSecurityException {
+        return secretKeyFactory.generateSecret(new PBEKeySpec(password, salt, iterations, Passwords.HASH_LENGTH * 8))
+                .getEncoded();
+    }
+}
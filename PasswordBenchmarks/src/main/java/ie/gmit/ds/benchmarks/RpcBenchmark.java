@@ -0,0 +1,114 @@
+package ie.gmit.ds.benchmarks;
+
+import com.google.protobuf.ByteString;
+import ie.gmit.ds.HashAlgorithm;
+import ie.gmit.ds.HashParameters;
+import ie.gmit.ds.HashingExecutor;
+import ie.gmit.ds.PasswordServiceGrpc;
+import ie.gmit.ds.PasswordServiceImpl;
+import ie.gmit.ds.PasswordValidateRequest;
+import ie.gmit.ds.PasswordValidateResponse;
+import ie.gmit.ds.Passwords;
+import ie.gmit.ds.UserInputRequest;
+import ie.gmit.ds.UserInputResponse;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hash and Validate end to end through PasswordServiceImpl over the in-process transport: stub, call, hashing
+ * queue and pool, response. No network, so the difference to PasswordsBenchmark is the service's own overhead.
+ * <p>
+ * Set up like PasswordServer: direct executor, one hashing thread per core. Each benchmark thread is one caller,
+ * e.g. java -jar target/benchmarks.jar RpcBenchmark -t max
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RpcBenchmark {
+
+    /**
+     * PBKDF2-SHA1 iterations: low cost shows the RPC overhead, legacy cost the real thing
+     */
+    @Param({"1000", "10000"})
+    public int iterations;
+
+    // Held so the level sticks, JUL only keeps weak references to loggers
+    private static final Logger serviceLogger = Logger.getLogger("ie.gmit.ds");
+
+    private HashingExecutor hashingExecutor;
+    private Server server;
+    private ManagedChannel channel;
+    private PasswordServiceGrpc.PasswordServiceBlockingStub stub;
+    private UserInputRequest hashRequest;
+    private PasswordValidateRequest validateRequest;
+
+    @Setup
+    public void setUp() throws IOException {
+        // Don't benchmark the console
+        serviceLogger.setLevel(Level.WARNING);
+        HashParameters parameters = HashParameters.of(HashAlgorithm.PBKDF2_SHA1, iterations, Passwords.HASH_LENGTH);
+        // Room for every benchmark thread, nothing should be rejected
+        hashingExecutor = new HashingExecutor(HashingExecutor.DEFAULT_THREADS, 1024);
+        String name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name)
+                .directExecutor()
+                .addService(new PasswordServiceImpl(hashingExecutor, parameters, 16))
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+        stub = PasswordServiceGrpc.newBlockingStub(channel);
+
+        hashRequest = UserInputRequest.newBuilder()
+                .setUserId(1)
+                .setPassword("correct horse battery staple")
+                .build();
+        UserInputResponse hashed = stub.hash(hashRequest);
+        validateRequest = PasswordValidateRequest.newBuilder()
+                .setPassword(hashRequest.getPassword())
+                .setExpectedHash(hashed.getExpectedHash())
+                .setSalt(hashed.getSalt())
+                .setHashParameters(hashed.getHashParameters())
+                .build();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        hashingExecutor.shutdown();
+        hashingExecutor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public ByteString hash() {
+        return stub.hash(hashRequest).getExpectedHash();
+    }
+
+    @Benchmark
+    public boolean validate() {
+        PasswordValidateResponse response = stub.validate(validateRequest);
+        return response.getValidPassword();
+    }
+}
@@ -0,0 +1,46 @@
+package ie.gmit.ds.benchmarks;
+
+import ie.gmit.ds.Passwords;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Salts per second from threads sharing one SecureRandom (how getNextSalt used to work) against the striped SaltPool
+ * behind Passwords.getNextSalt. The difference is contention, so sweep the thread count, e.g.
+ * for t in 1 2 4 8 16; do java -jar target/benchmarks.jar SaltBenchmark -t $t; done
+ * Without -t every core gets a thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(Threads.MAX)
+@Fork(1)
+public class SaltBenchmark {
+
+    private final SecureRandom shared = new SecureRandom();
+
+    @Benchmark
+    public byte[] sharedSecureRandom() {
+        byte[] salt = new byte[Passwords.SALT_LENGTH];
+        shared.nextBytes(salt);
+        return salt;
+    }
+
+    @Benchmark
+    public byte[] saltPool() {
+        return Passwords.getNextSalt();
+    }
+}
@@ -0,0 +1,349 @@
+package ie.gmit.ds;
+
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.UniformReservoir;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Concurrent logins against a running account service, to compare its thread models: the default server's
+ * platform thread pool, with async or blocking logins, against "server: type: virtual-threads".
+ * <p>
+ * A closed loop: --concurrency callers, each on its own connection, sends its next POST /users/login as soon as
+ * its last one is answered. Callers start spread over the warm-up, calls answered in the warm-up aren't counted.
+ * While it runs the service's admin /metrics is read every 500 ms for the peak thread count and heap, and with
+ * --pid the process's resident memory from /proc, so throughput can be weighed against what it cost.
+ * <p>
+ * The users are created first (ids from --firstUserId, password "pwN") and waited for until they can log in.
+ * Run it once per server configuration, same settings and password nodes, and compare the reports.
+ * <p>
+ * Usage: LoginLoadGenerator [--url http://localhost:8080] [--admin http://localhost:8081] [--concurrency 10000]
+ * [--duration 30] [--warmup 10] [--users 100] [--firstUserId 1000000] [--timeout 30000] [--pid n]
+ */
+public class LoginLoadGenerator {
+    private static final Logger logger = Logger.getLogger(LoginLoadGenerator.class.getName());
+
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9"};
+    private static final long SAMPLE_MILLIS = 500;
+
+    /**
+     * Command line settings
+     */
+    static final class Options {
+        String url = "http://localhost:8080";
+        String admin = "http://localhost:8081";
+        int concurrency = 10_000;
+        int durationSeconds = 30;
+        int warmupSeconds = 10;
+        int users = 100;
+        int firstUserId = 1_000_000;
+        long timeoutMillis = 30_000;
+        long pid;
+
+        /**
+         * @param args --name value or --name=value pairs
+         * @return settings, checked
+         * @throws IllegalArgumentException on an unknown name or a bad value
+         */
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String name = args[i];
+                String value;
+                int equals = name.indexOf('=');
+                if (equals > 0) {
+                    value = name.substring(equals + 1);
+                    name = name.substring(0, equals);
+                } else if (i + 1 < args.length) {
+                    value = args[++i];
+                } else {
+                    throw new IllegalArgumentException("No value for " + name);
+                }
+                switch (name) {
+                    case "--url":
+                        options.url = value;
+                        break;
+                    case "--admin":
+                        options.admin = value;
+                        break;
+                    case "--concurrency":
+                        options.concurrency = Integer.parseInt(value);
+                        break;
+                    case "--duration":
+                        options.durationSeconds = Integer.parseInt(value);
+                        break;
+                    case "--warmup":
+                        options.warmupSeconds = Integer.parseInt(value);
+                        break;
+                    case "--users":
+                        options.users = Integer.parseInt(value);
+                        break;
+                    case "--firstUserId":
+                        options.firstUserId = Integer.parseInt(value);
+                        break;
+                    case "--timeout":
+                        options.timeoutMillis = Long.parseLong(value);
+                        break;
+                    case "--pid":
+                        options.pid = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + name);
+                }
+            }
+            if (options.concurrency < 1 || options.durationSeconds < 1 || options.warmupSeconds < 0
+                    || options.users < 1 || options.firstUserId < 0 || options.timeoutMillis < 1 || options.pid < 0) {
+                throw new IllegalArgumentException("Counts and times must be positive");
+            }
+            return options;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s, %d callers, %d s after %d s warm-up, %d users, timeout %d ms", url, concurrency,
+                    durationSeconds, warmupSeconds, users, timeoutMillis);
+        }
+    }
+
+    /**
+     * Highest values seen on the service while the load ran
+     */
+    private static final class Peaks {
+        final LongAccumulator threads = new LongAccumulator(Math::max, 0);
+        final LongAccumulator heapUsed = new LongAccumulator(Math::max, 0);
+        final LongAccumulator nonHeapUsed = new LongAccumulator(Math::max, 0);
+        final LongAccumulator residentKb = new LongAccumulator(Math::max, 0);
+        final LongAccumulator virtualRunning = new LongAccumulator(Math::max, 0);
+    }
+
+    private final Options options;
+    private final HttpClient http;
+    private final ExecutorService httpExecutor;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final UniformReservoir latencies = new UniformReservoir(1 << 16);
+    private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder answered = new LongAdder();
+    private final ConcurrentMap<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+    private final AtomicLong lastAnswered = new AtomicLong();
+    private final Peaks peaks = new Peaks();
+    private long measureFrom;
+    private long measureUntil;
+
+    /**
+     * @param options settings
+     */
+    public LoginLoadGenerator(Options options) {
+        this.options = options;
+        // The callbacks only record and send the next login, a thread per core keeps up with 10k callers
+        httpExecutor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "login-load-http");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        http = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMillis(options.timeoutMillis))
+                .executor(httpExecutor)
+                .build();
+    }
+
+    /**
+     * Create the users and wait until each can log in
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    void prepare() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        for (int i = 0; i < options.users; i++) {
+            int userId = options.firstUserId + i;
+            String body = String.format("{\"userId\":%d,\"userName\":\"load%d\",\"email\":\"load%d@example.com\","
+                    + "\"password\":\"%s\"}", userId, userId, userId, password(userId));
+            http.send(HttpRequest.newBuilder(URI.create(options.url + "/users"))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(body))
+                    .build(), HttpResponse.BodyHandlers.discarding());
+        }
+        long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        for (int i = 0; i < options.users; i++) {
+            while (login(options.firstUserId + i).join().statusCode() != 200) {
+                if (System.nanoTime() - giveUp > 0) {
+                    throw new IllegalStateException("User " + (options.firstUserId + i) + " can't log in");
+                }
+                Thread.sleep(100);
+            }
+        }
+        logger.info(String.format("Created %d users in %d ms", options.users,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+    }
+
+    private static String password(int userId) {
+        return "pw" + userId;
+    }
+
+    private CompletableFuture<HttpResponse<Void>> login(int userId) {
+        return http.sendAsync(HttpRequest.newBuilder(URI.create(options.url + "/users/login"))
+                .header("Content-Type", "application/json")
+                .timeout(Duration.ofMillis(options.timeoutMillis))
+                .POST(HttpRequest.BodyPublishers.ofString(
+                        String.format("{\"userId\":%d,\"password\":\"%s\"}", userId, password(userId))))
+                .build(), HttpResponse.BodyHandlers.discarding());
+    }
+
+    /**
+     * Run the callers for the warm-up and the duration, sampling the service as it goes
+     *
+     * @throws InterruptedException
+     */
+    void run() throws InterruptedException {
+        long start = System.nanoTime();
+        measureFrom = start + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+        measureUntil = measureFrom + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "login-load-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        CountDownLatch finished = new CountDownLatch(options.concurrency);
+        try {
+            scheduler.scheduleAtFixedRate(this::sample, 0, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+            // Spread over the warm-up, 10k connections at once would measure the accept queue
+            long rampNanos = TimeUnit.SECONDS.toNanos(options.warmupSeconds) / 2;
+            for (int i = 0; i < options.concurrency; i++) {
+                scheduler.schedule(() -> call(finished), rampNanos * i / options.concurrency, TimeUnit.NANOSECONDS);
+            }
+            finished.await();
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void call(CountDownLatch finished) {
+        long sent = System.nanoTime();
+        if (sent - measureUntil >= 0) {
+            finished.countDown();
+            return;
+        }
+        int userId = options.firstUserId + ThreadLocalRandom.current().nextInt(options.users);
+        login(userId).whenComplete((response, failure) -> {
+            long now = System.nanoTime();
+            if (sent - measureFrom >= 0) {
+                latencies.update(now - sent);
+                maxLatencyNanos.accumulate(now - sent);
+                answered.increment();
+                lastAnswered.accumulateAndGet(now, Math::max);
+                String outcome = failure == null ? String.valueOf(response.statusCode())
+                        : (failure.getCause() != null ? failure.getCause() : failure).getClass().getSimpleName();
+                outcomes.computeIfAbsent(outcome, o -> new LongAdder()).increment();
+            }
+            call(finished);
+        });
+    }
+
+    private void sample() {
+        try {
+            HttpResponse<String> response = http.send(HttpRequest.newBuilder(URI.create(options.admin + "/metrics"))
+                    .timeout(Duration.ofMillis(SAMPLE_MILLIS * 4))
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            JsonNode gauges = mapper.readTree(response.body()).path("gauges");
+            peaks.threads.accumulate(gauges.path("jvm.threads.count").path("value").asLong());
+            peaks.heapUsed.accumulate(gauges.path("jvm.memory.heap.used").path("value").asLong());
+            peaks.nonHeapUsed.accumulate(gauges.path("jvm.memory.non-heap.used").path("value").asLong());
+            peaks.virtualRunning.accumulate(
+                    gauges.path("ie.gmit.ds.server.VirtualThreadPool.dw.running").path("value").asLong());
+        } catch (IOException | RuntimeException ex) {
+            // The admin port is busy too under load, a missed sample is fine
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (options.pid > 0) {
+            try {
+                for (String line : Files.readAllLines(Paths.get("/proc", String.valueOf(options.pid), "status"))) {
+                    if (line.startsWith("VmRSS:")) {
+                        peaks.residentKb.accumulate(Long.parseLong(line.replaceAll("[^0-9]", "")));
+                    }
+                }
+            } catch (IOException | NumberFormatException ex) {
+                // Not Linux, or the process is gone
+            }
+        }
+    }
+
+    /**
+     * @return throughput, latency, outcomes and peak cost, as one report
+     */
+    String report() {
+        long count = answered.sum();
+        double seconds = count == 0 ? options.durationSeconds
+                : Math.max(options.durationSeconds, (lastAnswered.get() - measureFrom) / 1e9);
+        StringBuilder sb = new StringBuilder(512);
+        sb.append(String.format("%s%n", options));
+        sb.append(String.format("Logins: %d in %.1f s, %.1f/s%n", count, seconds, count / seconds));
+        Map<String, Long> sorted = new TreeMap<>();
+        outcomes.forEach((outcome, n) -> sorted.put(outcome, n.sum()));
+        sb.append(String.format("Outcomes: %s%n", sorted));
+        Snapshot snapshot = latencies.getSnapshot();
+        sb.append("Latency ms:");
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            sb.append(String.format(" %s=%.1f", PERCENTILE_NAMES[i], snapshot.getValue(PERCENTILES[i]) / 1e6));
+        }
+        sb.append(String.format(" max=%.1f%n", maxLatencyNanos.get() / 1e6));
+        sb.append(String.format("Service peaks: threads=%d heap=%d MB non-heap=%d MB", peaks.threads.get(),
+                peaks.heapUsed.get() >> 20, peaks.nonHeapUsed.get() >> 20));
+        if (peaks.virtualRunning.get() > 0) {
+            sb.append(String.format(" virtual-threads=%d", peaks.virtualRunning.get()));
+        }
+        if (peaks.residentKb.get() > 0) {
+            sb.append(String.format(" rss=%d MB", peaks.residentKb.get() >> 10));
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("Usage: LoginLoadGenerator [--url http://localhost:8080] [--admin http://localhost:8081]"
+                    + " [--concurrency 10000] [--duration 30] [--warmup 10] [--users 100] [--firstUserId 1000000]"
+                    + " [--timeout 30000] [--pid n]");
+            System.exit(2);
+            return;
+        }
+        LoginLoadGenerator generator = new LoginLoadGenerator(options);
+        try {
+            generator.prepare();
+            generator.run();
+            System.out.println(generator.report());
+        } finally {
+            generator.httpExecutor.shutdownNow();
+        }
+    }
+}
@@ -1,13 +1,20 @@
 package ie.gmit.ds;
 
+import ie.gmit.ds.client.UserClient;
 import ie.gmit.ds.health.UserHealthCheck;
 import ie.gmit.ds.resources.UserApiResource;
+import ie.gmit.ds.server.VirtualThreadServerFactory;
+import ie.gmit.ds.server.VirtualThreads;
 import io.dropwizard.Application;
+import io.dropwizard.lifecycle.ExecutorServiceManager;
 import io.dropwizard.setup.Environment;
+import io.dropwizard.util.Duration;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.ExecutorService;
+
 /**
  * Application is the entry point for Dropwizard application
  *
@@ -15,6 +22,8 @@ import org.slf4j.LoggerFactory;
  */
 public class UserAccountServiceApplication extends Application<UserAccountServiceConfiguration> {
     private static final Logger logger = LoggerFactory.getLogger(UserAccountServiceApplication.class);
+    private static final String NETTY_CACHE_FOR_ALL_THREADS =
+            "io.grpc.netty.shaded.io.netty.allocator.useCacheForAllThreads";
 
     /**
      * When application starts => create new instance of resource class with params
@@ -26,8 +35,26 @@ public class UserAccountServiceApplication extends Application<UserAccountServic
     @Override
     public void run(final UserAccountServiceConfiguration configuration,
                     final Environment environment) throws Exception {
+        UserClient userClient;
+        if (configuration.getServerFactory() instanceof VirtualThreadServerFactory) {
+            // Requests run on virtual threads, so do the password call callbacks
+            VirtualThreads.checkSupported();
+            // gRPC's Netty otherwise gives every thread that writes a message its own buffer cache, one per virtual
+            // thread here, a few hundred KB each. Read once, when the first channel is built below
+            System.setProperty(NETTY_CACHE_FOR_ALL_THREADS, "false");
+            ExecutorService callbackExecutor = VirtualThreads.newThreadPerTaskExecutor("password-callback-");
+            // Managed objects stop in reverse order, the client's channels close before this
+            environment.lifecycle().manage(new ExecutorServiceManager(callbackExecutor, Duration.seconds(5),
+                    "password-callback"));
+            userClient = configuration.getPasswordService().build(environment, callbackExecutor);
+            logger.info("Serving requests on virtual threads");
+        } else {
+            userClient = configuration.getPasswordService().build(environment);
+        }
         logger.info("Registering REST resource");
-        environment.jersey().register(new UserApiResource(environment.getValidator()));
+        environment.jersey().register(new UserApiResource(environment.getValidator(), userClient,
+                configuration.getLoginTimeout().toMilliseconds(), configuration.isBlockingLogin(),
+                configuration.getHashTimeout().toMilliseconds()));
 
         final UserHealthCheck healthCheck = new UserHealthCheck();
         environment.healthChecks().register("User", healthCheck);
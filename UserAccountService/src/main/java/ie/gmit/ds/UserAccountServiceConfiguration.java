@@ -2,8 +2,72 @@ package ie.gmit.ds;
 
 import io.dropwizard.Configuration;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import ie.gmit.ds.client.PasswordClientFactory;
+import io.dropwizard.util.Duration;
+import io.dropwizard.validation.MinDuration;
 import org.hibernate.validator.constraints.*;
 
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+import java.util.concurrent.TimeUnit;
+
 // Class for configuration to be serialized to
 public class UserAccountServiceConfiguration extends Configuration {
+
+    @Valid
+    @NotNull
+    private PasswordClientFactory passwordService = new PasswordClientFactory();
+
+    // Longest a login waits for the password service, retries included, before it gets 503
+    @NotNull
+    @MinDuration(value = 1, unit = TimeUnit.MILLISECONDS)
+    private Duration loginTimeout = Duration.seconds(5);
+
+    // Longest a create or update waits for the password hash, retries included, before it gets 503 and is dropped
+    @NotNull
+    @MinDuration(value = 1, unit = TimeUnit.MILLISECONDS)
+    private Duration hashTimeout = Duration.seconds(10);
+
+    // Logins wait for the password service on the request thread, the thread-per-request model virtual threads are for
+    private boolean blockingLogin = false;
+
+    @JsonProperty("passwordService")
+    public PasswordClientFactory getPasswordService() {
+        return passwordService;
+    }
+
+    @JsonProperty("passwordService")
+    public void setPasswordService(PasswordClientFactory passwordService) {
+        this.passwordService = passwordService;
+    }
+
+    @JsonProperty
+    public Duration getLoginTimeout() {
+        return loginTimeout;
+    }
+
+    @JsonProperty
+    public void setLoginTimeout(Duration loginTimeout) {
+        this.loginTimeout = loginTimeout;
+    }
+
+    @JsonProperty
+    public Duration getHashTimeout() {
+        return hashTimeout;
+    }
+
+    @JsonProperty
+    public void setHashTimeout(Duration hashTimeout) {
+        this.hashTimeout = hashTimeout;
+    }
+
+    @JsonProperty
+    public boolean isBlockingLogin() {
+        return blockingLogin;
+    }
+
+    @JsonProperty
+    public void setBlockingLogin(boolean blockingLogin) {
+        this.blockingLogin = blockingLogin;
+    }
 }
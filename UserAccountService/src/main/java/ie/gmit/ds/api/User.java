@@ -39,6 +39,7 @@ public class User {
 
     private ByteString hashedPassword;
     private ByteString salt;
+    private String hashParameters; // Algorithm and cost the hash was made with, from the password service
 
     /**
      * No arg constructor
@@ -62,7 +63,7 @@ public class User {
     /**
      * 5 Param constructor
      * <p>
-     * Use for storing
+     * Use for storing hashes made before hash parameters existed
      *
      * @param userId
      * @param userName
@@ -71,11 +72,29 @@ public class User {
      * @param salt
      */
     public User(int userId, String userName, String email, ByteString hashedPassword, ByteString salt) {
+        this(userId, userName, email, hashedPassword, salt, "");
+    }
+
+    /**
+     * 6 Param constructor
+     * <p>
+     * Use for storing
+     *
+     * @param userId
+     * @param userName
+     * @param email
+     * @param hashedPassword
+     * @param salt
+     * @param hashParameters
+     */
+    public User(int userId, String userName, String email, ByteString hashedPassword, ByteString salt,
+                String hashParameters) {
         this.userId = userId;
         this.userName = userName;
         this.email = email;
         this.hashedPassword = hashedPassword;
         this.salt = salt;
+        this.hashParameters = hashParameters;
     }
 
     @JsonProperty
@@ -108,6 +127,11 @@ public class User {
         return salt;
     }
 
+    @JsonProperty
+    public String getHashParameters() {
+        return hashParameters;
+    }
+
     @Override
     public String toString() {
         return "User{" +
@@ -117,6 +141,7 @@ public class User {
                 ", password='" + password + '\'' +
                 ", hashedPassword=" + hashedPassword +
                 ", salt=" + salt +
+                ", hashParameters='" + hashParameters + '\'' +
                 '}';
     }
 }
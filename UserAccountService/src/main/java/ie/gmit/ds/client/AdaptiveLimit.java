@@ -0,0 +1,104 @@
+package ie.gmit.ds.client;
+
+/**
+ * How many calls one password node gets at once, found from how long its calls take (gradient style, as
+ * Netflix's concurrency-limits Gradient2).
+ * <p>
+ * Two averages of call latency are kept: a short one, the node now, and a long one, the node when it isn't
+ * queueing. While the short one stays within TOLERANCE of the long one the limit grows by about its square root,
+ * room for a small queue. When calls slow down past that the limit shrinks in proportion, by at most half.
+ * A call that timed out or was refused for load counts as a drop and takes 10% off. So a bigger or added node is
+ * soon given more calls and a slower one fewer, without anyone setting a number.
+ * <p>
+ * The limit only grows while at least half of it is in use -- a node that isn't busy says nothing about how
+ * much more it could take. Thread-safe.
+ */
+final class AdaptiveLimit {
+
+    static final int DEFAULT_INITIAL_LIMIT = 20;
+    static final int DEFAULT_MAX_LIMIT = 1_000;
+    // Latency up to this many times the long average is taken as no queueing
+    static final double TOLERANCE = 1.5;
+    // Weight of a new limit against the old one
+    static final double SMOOTHING = 0.2;
+    // Multiplier on a drop
+    static final double BACKOFF_RATIO = 0.9;
+    // Samples in the short and long latency averages
+    static final int SHORT_WINDOW = 10;
+    static final int LONG_WINDOW = 600;
+
+    private final int minLimit;
+    private final int maxLimit;
+    // Guarded by this
+    private double limit;
+    private double shortRttNanos;
+    private double longRttNanos;
+    // Read without the lock on every pick
+    private volatile int current;
+
+    /**
+     * @param initialLimit calls before there are any samples
+     * @param minLimit     never below this, at least 1
+     * @param maxLimit     never above this
+     * @throws IllegalArgumentException if not 1 <= min <= initial <= max
+     */
+    AdaptiveLimit(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit) {
+            throw new IllegalArgumentException(String.format("Adaptive limit must be 1 <= min <= initial <= max: "
+                    + "%d, %d, %d", minLimit, initialLimit, maxLimit));
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+        this.current = initialLimit;
+    }
+
+    /**
+     * @return calls the node may have in flight now
+     */
+    int get() {
+        return current;
+    }
+
+    /**
+     * A call finished
+     *
+     * @param rttNanos from start to close
+     * @param inFlight calls in flight to the node when it started, itself included
+     * @param dropped  timed out or refused for load, the latency says nothing then
+     */
+    synchronized void sample(long rttNanos, int inFlight, boolean dropped) {
+        if (dropped) {
+            update(limit * BACKOFF_RATIO);
+            return;
+        }
+        if (longRttNanos == 0) {
+            shortRttNanos = rttNanos;
+            longRttNanos = rttNanos;
+        } else {
+            shortRttNanos += (rttNanos - shortRttNanos) / SHORT_WINDOW;
+            longRttNanos += (rttNanos - longRttNanos) / LONG_WINDOW;
+        }
+        // Latency back down after a spell of queueing: let the long average catch up quicker
+        if (longRttNanos > 2 * shortRttNanos) {
+            longRttNanos *= 0.95;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRttNanos / shortRttNanos));
+        double next = limit * gradient + Math.sqrt(limit);
+        if (next > limit && inFlight < limit / 2) {
+            return;
+        }
+        update(limit * (1 - SMOOTHING) + next * SMOOTHING);
+    }
+
+    private void update(double next) {
+        limit = Math.max(minLimit, Math.min(maxLimit, next));
+        current = (int) limit;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("AdaptiveLimit{limit=%d, shortRtt=%.1f ms, longRtt=%.1f ms}", current,
+                shortRttNanos / 1e6, longRttNanos / 1e6);
+    }
+}
@@ -0,0 +1,80 @@
+package ie.gmit.ds.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One-line structured log events for the password service calls: "event=validate valid=true rehashed=false sample=1/100".
+ * <p>
+ * Only the fields passed in are written -- callers never pass passwords, hashes or salts. Routine events are
+ * sampled, 1 in sampleEvery is written (default 100, 1 writes all) and carries the rate so counts can be scaled
+ * back up. Warnings are never sampled. Nothing is formatted for events that aren't written.
+ * Records go through JUL to the Dropwizard appenders, which write asynchronously (see config.yml).
+ * <p>
+ * Thread-safe, sampling is per thread random so there is no shared counter.
+ */
+final class EventLog {
+
+    static final int DEFAULT_SAMPLE_EVERY = 100;
+
+    private final Logger logger;
+    private final String sourceClass;
+    private final int sampleEvery;
+    private final String sampleTag;
+
+    /**
+     * @param logger      logger to write to, also names the source class
+     * @param sampleEvery write 1 in this many info events
+     */
+    EventLog(Logger logger, int sampleEvery) {
+        if (sampleEvery < 1) {
+            throw new IllegalArgumentException("Log sampling must be at least 1: " + sampleEvery);
+        }
+        this.logger = logger;
+        this.sourceClass = logger.getName();
+        this.sampleEvery = sampleEvery;
+        this.sampleTag = "1/" + sampleEvery;
+    }
+
+    /**
+     * Routine event, sampled
+     *
+     * @param event  event name
+     * @param fields alternating field names and values
+     */
+    void info(String event, Object... fields) {
+        if (!logger.isLoggable(Level.INFO)
+                || (sampleEvery > 1 && ThreadLocalRandom.current().nextInt(sampleEvery) != 0)) {
+            return;
+        }
+        logger.logp(Level.INFO, sourceClass, event, format(event, fields) + " sample=" + sampleTag);
+    }
+
+    /**
+     * Something went wrong, always written
+     *
+     * @param event  event name
+     * @param fields alternating field names and values
+     */
+    void warning(String event, Object... fields) {
+        if (logger.isLoggable(Level.WARNING)) {
+            logger.logp(Level.WARNING, sourceClass, event, format(event, fields));
+        }
+    }
+
+    private static String format(String event, Object[] fields) {
+        StringBuilder sb = new StringBuilder(64).append("event=").append(event);
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            sb.append(' ').append(fields[i]).append('=');
+            String value = String.valueOf(fields[i + 1]);
+            // Keep one event per line and one token per field
+            if (value.indexOf(' ') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0) {
+                sb.append('"').append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+            } else {
+                sb.append(value);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,353 @@
+package ie.gmit.ds.client;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.lifecycle.Managed;
+import io.dropwizard.setup.Environment;
+import io.dropwizard.util.Duration;
+import io.dropwizard.validation.MinDuration;
+import io.dropwizard.validation.ValidationMethod;
+import io.grpc.Status;
+import org.hibernate.validator.constraints.NotEmpty;
+
+import javax.validation.Valid;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * The passwordService section of config.yml: where the password nodes are and how UserClient calls them.
+ * Dropwizard validates it before the application starts, a bad value stops startup with the field named.
+ * <pre>
+ * passwordService:
+ *   endpoints: [localhost:50551]     # host:port or dns:///name:port, as many as there are
+ *   balancing: LEAST_OUTSTANDING     # or WEIGHTED_ROUND_ROBIN, on the load the nodes report
+ *   channelsPerEndpoint: 1
+ *   callLimit: FIXED                 # or ADAPTIVE, each node's limit found from its latency
+ *   maxCallsPerEndpoint: 0           # calls in flight to one node, 0 for no limit; ceiling of an adaptive limit
+ *   maxHashesInFlight: 128           # Hash calls in flight in all, past that sign-ups get 503, 0 for no limit
+ *   deadlines: {hash: 5s, validate: 2s, validateBatch: 5s}
+ *   retry: {maxAttempts: 3, initialBackoff: 50ms, maxBackoff: 1s, multiplier: 2.0, retryOn: [UNAVAILABLE]}
+ *   logSampleEvery: 100
+ * </pre>
+ */
+public class PasswordClientFactory {
+    private static final Logger logger = Logger.getLogger(PasswordClientFactory.class.getName());
+
+    @NotEmpty
+    private List<String> endpoints = Collections.singletonList("localhost:50551");
+
+    @NotNull
+    private PasswordEndpointPool.Balancing balancing = PasswordEndpointPool.Balancing.LEAST_OUTSTANDING;
+
+    @Min(1)
+    @Max(64)
+    private int channelsPerEndpoint = 1;
+
+    @NotNull
+    private PasswordEndpointPool.CallLimit callLimit = PasswordEndpointPool.CallLimit.FIXED;
+
+    @Min(0)
+    private int maxCallsPerEndpoint = 0;
+
+    @Min(0)
+    private int maxHashesInFlight = UserClient.DEFAULT_MAX_HASHES_IN_FLIGHT;
+
+    @Valid
+    @NotNull
+    private Deadlines deadlines = new Deadlines();
+
+    @Valid
+    @NotNull
+    private Retry retry = new Retry();
+
+    @Min(1)
+    private int logSampleEvery = EventLog.DEFAULT_SAMPLE_EVERY;
+
+    /**
+     * Per attempt, a retried call gets a fresh deadline
+     */
+    public static class Deadlines {
+        @NotNull
+        @MinDuration(value = 1, unit = TimeUnit.MILLISECONDS)
+        private Duration hash = Duration.milliseconds(UserClient.DEFAULT_HASH_DEADLINE_MILLIS);
+
+        @NotNull
+        @MinDuration(value = 1, unit = TimeUnit.MILLISECONDS)
+        private Duration validate = Duration.milliseconds(UserClient.DEFAULT_VALIDATE_DEADLINE_MILLIS);
+
+        @NotNull
+        @MinDuration(value = 1, unit = TimeUnit.MILLISECONDS)
+        private Duration validateBatch = Duration.milliseconds(UserClient.DEFAULT_VALIDATE_BATCH_DEADLINE_MILLIS);
+
+        @JsonProperty
+        public Duration getHash() {
+            return hash;
+        }
+
+        @JsonProperty
+        public void setHash(Duration hash) {
+            this.hash = hash;
+        }
+
+        @JsonProperty
+        public Duration getValidate() {
+            return validate;
+        }
+
+        @JsonProperty
+        public void setValidate(Duration validate) {
+            this.validate = validate;
+        }
+
+        @JsonProperty
+        public Duration getValidateBatch() {
+            return validateBatch;
+        }
+
+        @JsonProperty
+        public void setValidateBatch(Duration validateBatch) {
+            this.validateBatch = validateBatch;
+        }
+    }
+
+    /**
+     * See RetryPolicy
+     */
+    public static class Retry {
+        @Min(1)
+        @Max(10)
+        private int maxAttempts = RetryPolicy.DEFAULT.getMaxAttempts();
+
+        @NotNull
+        private Duration initialBackoff = Duration.milliseconds(RetryPolicy.DEFAULT.getInitialBackoffMillis());
+
+        @NotNull
+        private Duration maxBackoff = Duration.milliseconds(RetryPolicy.DEFAULT.getMaxBackoffMillis());
+
+        @DecimalMin("1.0")
+        private double multiplier = RetryPolicy.DEFAULT.getMultiplier();
+
+        @NotNull
+        private Set<Status.Code> retryOn = EnumSet.copyOf(RetryPolicy.DEFAULT.getRetryOn());
+
+        @JsonProperty
+        public int getMaxAttempts() {
+            return maxAttempts;
+        }
+
+        @JsonProperty
+        public void setMaxAttempts(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+        }
+
+        @JsonProperty
+        public Duration getInitialBackoff() {
+            return initialBackoff;
+        }
+
+        @JsonProperty
+        public void setInitialBackoff(Duration initialBackoff) {
+            this.initialBackoff = initialBackoff;
+        }
+
+        @JsonProperty
+        public Duration getMaxBackoff() {
+            return maxBackoff;
+        }
+
+        @JsonProperty
+        public void setMaxBackoff(Duration maxBackoff) {
+            this.maxBackoff = maxBackoff;
+        }
+
+        @JsonProperty
+        public double getMultiplier() {
+            return multiplier;
+        }
+
+        @JsonProperty
+        public void setMultiplier(double multiplier) {
+            this.multiplier = multiplier;
+        }
+
+        @JsonProperty
+        public Set<Status.Code> getRetryOn() {
+            return retryOn;
+        }
+
+        @JsonProperty
+        public void setRetryOn(Set<Status.Code> retryOn) {
+            this.retryOn = retryOn;
+        }
+
+        @ValidationMethod(message = "maxBackoff must not be shorter than initialBackoff")
+        public boolean isBackoffOrdered() {
+            return initialBackoff == null || maxBackoff == null
+                    || maxBackoff.toMilliseconds() >= initialBackoff.toMilliseconds();
+        }
+
+        RetryPolicy build() {
+            return new RetryPolicy(maxAttempts, initialBackoff.toMilliseconds(), maxBackoff.toMilliseconds(),
+                    multiplier, retryOn);
+        }
+    }
+
+    @ValidationMethod(message = "endpoints must each be host:port or dns:///name:port")
+    public boolean isEndpointsValid() {
+        return endpoints == null || endpoints.stream().allMatch(PasswordEndpointPool::isValidTarget);
+    }
+
+    /**
+     * Connect to the password nodes; the channels close when the application stops
+     *
+     * @param environment
+     * @return client
+     */
+    public UserClient build(Environment environment) {
+        return build(environment, null);
+    }
+
+    /**
+     * Connect to the password nodes; the channels close when the application stops. The hashes in flight and
+     * rejected are reported as ie.gmit.ds.client.UserClient.hash.inFlight and .rejected on the admin port's /metrics,
+     * the calls in flight to the nodes and the sum of their call limits as
+     * ie.gmit.ds.client.PasswordEndpointPool.outstanding and .callLimit.
+     *
+     * @param environment
+     * @param callbackExecutor runs the call callbacks, null for gRPC's own cached thread pool
+     * @return client
+     */
+    public UserClient build(Environment environment, Executor callbackExecutor) {
+        PasswordEndpointPool passwordNodes = new PasswordEndpointPool(endpoints, balancing, channelsPerEndpoint,
+                maxCallsPerEndpoint, callLimit, callbackExecutor);
+        UserClient userClient = new UserClient(passwordNodes, deadlines.getHash().toMilliseconds(),
+                deadlines.getValidate().toMilliseconds(), deadlines.getValidateBatch().toMilliseconds(),
+                retry.build(), logSampleEvery, maxHashesInFlight);
+        MetricRegistry metrics = environment.metrics();
+        metrics.register(MetricRegistry.name(UserClient.class, "hash", "inFlight"),
+                (Gauge<Long>) userClient::getHashesInFlight);
+        metrics.register(MetricRegistry.name(UserClient.class, "hash", "rejected"),
+                (Gauge<Long>) userClient::getHashesRejected);
+        metrics.register(MetricRegistry.name(PasswordEndpointPool.class, "outstanding"),
+                (Gauge<Integer>) passwordNodes::getOutstanding);
+        metrics.register(MetricRegistry.name(PasswordEndpointPool.class, "callLimit"),
+                (Gauge<Integer>) passwordNodes::getAvailableCallLimit);
+        environment.lifecycle().manage(new Managed() {
+            @Override
+            public void start() {
+            }
+
+            @Override
+            public void stop() throws Exception {
+                userClient.shutdown();
+            }
+        });
+        logger.info(String.format("Password service %s, %d channel(s) and %s %s calls per node, %s hashes in flight, "
+                        + "deadlines hash %s validate %s validateBatch %s, %s", endpoints, channelsPerEndpoint,
+                callLimit == PasswordEndpointPool.CallLimit.ADAPTIVE ? "adaptive up to" : "fixed",
+                maxCallsPerEndpoint == 0 ? "unlimited" : String.valueOf(maxCallsPerEndpoint),
+                maxHashesInFlight == 0 ? "unlimited" : String.valueOf(maxHashesInFlight), deadlines.getHash(),
+                deadlines.getValidate(), deadlines.getValidateBatch(), retry.build()));
+        return userClient;
+    }
+
+    @JsonProperty
+    public List<String> getEndpoints() {
+        return endpoints;
+    }
+
+    @JsonProperty
+    public void setEndpoints(List<String> endpoints) {
+        this.endpoints = endpoints;
+    }
+
+    @JsonProperty
+    public PasswordEndpointPool.Balancing getBalancing() {
+        return balancing;
+    }
+
+    @JsonProperty
+    public void setBalancing(PasswordEndpointPool.Balancing balancing) {
+        this.balancing = balancing;
+    }
+
+    @JsonProperty
+    public int getChannelsPerEndpoint() {
+        return channelsPerEndpoint;
+    }
+
+    @JsonProperty
+    public void setChannelsPerEndpoint(int channelsPerEndpoint) {
+        this.channelsPerEndpoint = channelsPerEndpoint;
+    }
+
+    @JsonProperty
+    public PasswordEndpointPool.CallLimit getCallLimit() {
+        return callLimit;
+    }
+
+    @JsonProperty
+    public void setCallLimit(PasswordEndpointPool.CallLimit callLimit) {
+        this.callLimit = callLimit;
+    }
+
+    @JsonProperty
+    public int getMaxCallsPerEndpoint() {
+        return maxCallsPerEndpoint;
+    }
+
+    @JsonProperty
+    public void setMaxCallsPerEndpoint(int maxCallsPerEndpoint) {
+        this.maxCallsPerEndpoint = maxCallsPerEndpoint;
+    }
+
+    @JsonProperty
+    public int getMaxHashesInFlight() {
+        return maxHashesInFlight;
+    }
+
+    @JsonProperty
+    public void setMaxHashesInFlight(int maxHashesInFlight) {
+        this.maxHashesInFlight = maxHashesInFlight;
+    }
+
+    @JsonProperty
+    public Deadlines getDeadlines() {
+        return deadlines;
+    }
+
+    @JsonProperty
+    public void setDeadlines(Deadlines deadlines) {
+        this.deadlines = deadlines;
+    }
+
+    @JsonProperty
+    public Retry getRetry() {
+        return retry;
+    }
+
+    @JsonProperty
+    public void setRetry(Retry retry) {
+        this.retry = retry;
+    }
+
+    @JsonProperty
+    public int getLogSampleEvery() {
+        return logSampleEvery;
+    }
+
+    @JsonProperty
+    public void setLogSampleEvery(int logSampleEvery) {
+        this.logSampleEvery = logSampleEvery;
+    }
+}
@@ -0,0 +1,378 @@
+package ie.gmit.ds.client;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import ie.gmit.ds.OrcaLoadReport;
+import ie.gmit.ds.PasswordServiceGrpc;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ClientInterceptors;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import io.grpc.health.v1.HealthCheckRequest;
+import io.grpc.health.v1.HealthCheckResponse;
+import io.grpc.health.v1.HealthGrpc;
+import io.grpc.stub.StreamObserver;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * One password service node: its own channels, the calls in flight on it, the load it last reported and
+ * whether it should get calls at all.
+ * <p>
+ * Calls take the node's channels in turn. One HTTP/2 connection carries only so many streams at once and all its
+ * frames go through one event loop thread, more channels open more connections.
+ * <p>
+ * A node stops getting calls as soon as a health check answers NOT_SERVING. A stopping PasswordServer answers that for
+ * password.drain.noticeSeconds before it refuses calls, so it is passed over within one health check interval and no
+ * call fails. A node that goes without notice (killed, network gone) is passed over when two checks in a row fail,
+ * or when several calls in a row fail with UNAVAILABLE -- then it is ejected for a while, longer each time it
+ * happens again.
+ * Load comes from the OrcaLoadReport trailer every PasswordServer response carries.
+ * <p>
+ * The call limit is either fixed (maxCalls) or adaptive, from the latency of its Hash and Validate calls
+ * (see AdaptiveLimit). ValidateBatch calls count as in flight but aren't sampled, they take as long as their batch.
+ */
+final class PasswordEndpoint {
+    private static final Logger logger = Logger.getLogger(PasswordEndpoint.class.getName());
+
+    static final Metadata.Key<byte[]> LOAD_REPORT_KEY =
+            Metadata.Key.of("endpoint-load-metrics-bin", Metadata.BINARY_BYTE_MARSHALLER);
+
+    static final int EJECT_AFTER_FAILURES = 3;
+    // A single slow or lost check doesn't take a node out
+    static final int DOWN_AFTER_FAILED_CHECKS = 2;
+    static final long BASE_EJECTION_MILLIS = 5_000;
+    static final long MAX_EJECTION_MILLIS = 60_000;
+    // A report older than this says nothing about the node now
+    static final long LOAD_REPORT_TTL_MILLIS = 5_000;
+
+    private final String address;
+    private final int maxCalls;
+    private final AdaptiveLimit adaptiveLimit; // null for the fixed limit
+    private final ManagedChannel[] channels;
+    private final PasswordServiceGrpc.PasswordServiceBlockingStub[] blockingStubs;
+    private final PasswordServiceGrpc.PasswordServiceStub[] asyncStubs;
+    private final HealthGrpc.HealthStub healthStub;
+
+    private final AtomicInteger nextChannel = new AtomicInteger();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicInteger failedChecks = new AtomicInteger();
+    private volatile boolean serving = true;
+    private volatile long ejectedUntil;
+    private volatile double utilization;
+    private volatile long reportedAt;
+    // Guarded by this
+    private int ejections;
+    // Guarded by the pool's round robin lock
+    double currentWeight;
+
+    /**
+     * @param host     name or IP
+     * @param port
+     * @param channels connections to open, at least 1
+     * @param maxCalls      calls in flight from here before the node is passed over, 0 for no limit
+     * @param adaptiveLimit replaces maxCalls when not null, one per node
+     * @param executor      runs the call callbacks, null for gRPC's own cached thread pool
+     */
+    PasswordEndpoint(String host, int port, int channels, int maxCalls, AdaptiveLimit adaptiveLimit,
+                     Executor executor) {
+        this(host + ":" + port, openChannels(host, port, channels, executor), maxCalls, adaptiveLimit);
+    }
+
+    /**
+     * Over channels already open, e.g. in-process ones
+     *
+     * @param address       for logs
+     * @param channels      to the node; none leaves out the stubs and health checks, only the bookkeeping is there
+     * @param maxCalls      calls in flight from here before the node is passed over, 0 for no limit
+     * @param adaptiveLimit replaces maxCalls when not null, one per node
+     */
+    PasswordEndpoint(String address, ManagedChannel[] channels, int maxCalls, AdaptiveLimit adaptiveLimit) {
+        this.address = address;
+        this.maxCalls = maxCalls;
+        this.adaptiveLimit = adaptiveLimit;
+        this.channels = channels;
+        blockingStubs = new PasswordServiceGrpc.PasswordServiceBlockingStub[channels.length];
+        asyncStubs = new PasswordServiceGrpc.PasswordServiceStub[channels.length];
+        Tracking tracking = new Tracking();
+        for (int i = 0; i < channels.length; i++) {
+            Channel tracked = ClientInterceptors.intercept(channels[i], tracking);
+            blockingStubs[i] = PasswordServiceGrpc.newBlockingStub(tracked);
+            asyncStubs[i] = PasswordServiceGrpc.newStub(tracked);
+        }
+        healthStub = channels.length > 0 ? HealthGrpc.newStub(channels[0]) : null;
+    }
+
+    private static ManagedChannel[] openChannels(String host, int port, int count, Executor executor) {
+        ManagedChannel[] channels = new ManagedChannel[count];
+        for (int i = 0; i < count; i++) {
+            ManagedChannelBuilder<?> builder = ManagedChannelBuilder.forAddress(host, port).usePlaintext();
+            if (executor != null) {
+                builder.executor(executor);
+            }
+            channels[i] = builder.build();
+        }
+        return channels;
+    }
+
+    String getAddress() {
+        return address;
+    }
+
+    PasswordServiceGrpc.PasswordServiceBlockingStub blocking() {
+        return blockingStubs[channelIndex()];
+    }
+
+    PasswordServiceGrpc.PasswordServiceStub async() {
+        return asyncStubs[channelIndex()];
+    }
+
+    private int channelIndex() {
+        return channels.length == 1 ? 0 : Math.floorMod(nextChannel.getAndIncrement(), channels.length);
+    }
+
+    int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Under its call limit. Checked before the call starts, so callers racing for the last slot can go a few over.
+     *
+     * @return true if another call may go here
+     */
+    boolean hasCapacity() {
+        int limit = getCallLimit();
+        return limit == 0 || outstanding.get() < limit;
+    }
+
+    /**
+     * @return calls this node may have in flight now, 0 for no limit
+     */
+    int getCallLimit() {
+        return adaptiveLimit != null ? adaptiveLimit.get() : maxCalls;
+    }
+
+    /**
+     * @param now System.currentTimeMillis()
+     * @return true if calls should go here: serving and not ejected
+     */
+    boolean isAvailable(long now) {
+        return serving && now >= ejectedUntil;
+    }
+
+    /**
+     * Last reported load: busy and queued hashing tasks per hashing thread
+     *
+     * @param now System.currentTimeMillis()
+     * @return utilization, or -1 if there is no recent report
+     */
+    double getUtilization(long now) {
+        return now - reportedAt <= LOAD_REPORT_TTL_MILLIS ? utilization : -1;
+    }
+
+    /**
+     * Ask the node's grpc.health.v1 service, the answer arrives later
+     *
+     * @param timeoutMillis deadline of the check
+     */
+    void checkHealth(long timeoutMillis) {
+        healthStub.withDeadlineAfter(timeoutMillis, TimeUnit.MILLISECONDS).check(HealthCheckRequest.newBuilder()
+                .setService(PasswordServiceGrpc.SERVICE_NAME)
+                .build(), new StreamObserver<HealthCheckResponse>() {
+            @Override
+            public void onNext(HealthCheckResponse response) {
+                healthAnswered(response.getStatus());
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                healthFailed(Status.fromThrowable(throwable));
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+    }
+
+    /**
+     * A health check answered
+     *
+     * @param status what the node says
+     */
+    void healthAnswered(HealthCheckResponse.ServingStatus status) {
+        failedChecks.set(0);
+        setServing(status == HealthCheckResponse.ServingStatus.SERVING);
+    }
+
+    /**
+     * A health check got no answer
+     *
+     * @param status why
+     */
+    void healthFailed(Status status) {
+        // A node without the health service is taken at its word that it serves
+        if (status.getCode() == Status.Code.UNIMPLEMENTED) {
+            failedChecks.set(0);
+            setServing(true);
+        } else if (failedChecks.incrementAndGet() >= DOWN_AFTER_FAILED_CHECKS) {
+            setServing(false);
+        }
+    }
+
+    private void setServing(boolean serving) {
+        if (this.serving != serving) {
+            logger.info(String.format("Password node %s is %s", address, serving ? "serving" : "not serving"));
+        }
+        this.serving = serving;
+    }
+
+    /**
+     * A call is starting here
+     *
+     * @return calls in flight here, this one included
+     */
+    int callStarted() {
+        return outstanding.incrementAndGet();
+    }
+
+    /**
+     * A call that callStarted() closed
+     *
+     * @param status   how it ended
+     * @param trailers from the node, may hold a load report
+     * @param rttNanos from start to close
+     * @param inFlight what callStarted() returned
+     * @param sampled  if it goes to the adaptive limit, ValidateBatch calls don't
+     * @param now      System.currentTimeMillis()
+     */
+    void callClosed(Status status, Metadata trailers, long rttNanos, int inFlight, boolean sampled, long now) {
+        outstanding.decrementAndGet();
+        if (adaptiveLimit != null && sampled) {
+            sampleLimit(status, rttNanos, inFlight);
+        }
+        completed(status, trailers, now);
+    }
+
+    /**
+     * Outcome of a call, from its status and trailers
+     */
+    private void completed(Status status, Metadata trailers, long now) {
+        byte[] report = trailers.get(LOAD_REPORT_KEY);
+        if (report != null) {
+            try {
+                utilization = OrcaLoadReport.parseFrom(report).getApplicationUtilization();
+                reportedAt = now;
+            } catch (InvalidProtocolBufferException ex) {
+                // Not one of ours, ignore it
+            }
+        }
+        if (status.getCode() == Status.Code.UNAVAILABLE) {
+            if (consecutiveFailures.incrementAndGet() >= EJECT_AFTER_FAILURES) {
+                eject(now);
+            }
+        } else {
+            // Any answer at all means it is there, overload shows in the load report instead
+            consecutiveFailures.set(0);
+            if (ejections > 0) {
+                synchronized (this) {
+                    ejections = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Feed a finished call to the adaptive limit. Calls that never reached the node or were cancelled here say
+     * nothing about its capacity, nor do INVALID_ARGUMENT ones: the node refuses those before they queue, so their
+     * quick answers would pass for an idle node.
+     */
+    private void sampleLimit(Status status, long rttNanos, int inFlight) {
+        switch (status.getCode()) {
+            case OK:
+            case NOT_FOUND:
+                adaptiveLimit.sample(rttNanos, inFlight, false);
+                break;
+            case DEADLINE_EXCEEDED:
+            case RESOURCE_EXHAUSTED:
+                adaptiveLimit.sample(rttNanos, inFlight, true);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private synchronized void eject(long now) {
+        if (now < ejectedUntil) {
+            return;
+        }
+        long millis = Math.min(BASE_EJECTION_MILLIS << Math.min(ejections, 16), MAX_EJECTION_MILLIS);
+        ejections++;
+        ejectedUntil = now + millis;
+        consecutiveFailures.set(0);
+        logger.warning(String.format("Password node %s ejected for %d ms after %d failed calls", address, millis,
+                EJECT_AFTER_FAILURES));
+    }
+
+    /**
+     * Stop taking calls, those in flight finish
+     */
+    void shutdown() {
+        for (ManagedChannel channel : channels) {
+            channel.shutdown();
+        }
+    }
+
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ManagedChannel channel : channels) {
+            if (!channel.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        long now = System.currentTimeMillis();
+        return String.format("%s{outstanding=%d, limit=%s, utilization=%.2f, %s}", address, getOutstanding(),
+                adaptiveLimit != null ? adaptiveLimit : String.valueOf(maxCalls), getUtilization(now), !serving ? "not serving" : now < ejectedUntil ? "ejected" : "available");
+    }
+
+    /**
+     * Counts calls in flight and reads their outcome
+     */
+    private final class Tracking implements ClientInterceptor {
+        @Override
+        public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                                   CallOptions callOptions, Channel next) {
+            return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(next.newCall(method, callOptions)) {
+                @Override
+                public void start(Listener<RespT> responseListener, Metadata headers) {
+                    int inFlight = callStarted();
+                    long startNanos = System.nanoTime();
+                    super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(responseListener) {
+                        @Override
+                        public void onClose(Status status, Metadata trailers) {
+                            callClosed(status, trailers, System.nanoTime() - startNanos, inFlight,
+                                    method != PasswordServiceGrpc.getValidateBatchMethod(), System.currentTimeMillis());
+                            super.onClose(status, trailers);
+                        }
+                    }, headers);
+                }
+            };
+        }
+    }
+}
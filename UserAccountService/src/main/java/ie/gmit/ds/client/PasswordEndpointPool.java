@@ -0,0 +1,444 @@
+package ie.gmit.ds.client;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The password service nodes UserClient spreads its calls over, and how it picks one per call.
+ * <p>
+ * Targets are "host:port", one node each, or "dns:///name:port" for every address the name resolves to,
+ * looked up again every DNS_REFRESH_SECONDS so nodes can come and go. Nodes are health checked every
+ * HEALTH_CHECK_MILLIS; a node that is draining, failing its checks or ejected (see PasswordEndpoint) gets no calls
+ * unless no node is left, then all of them are tried. A node at its call limit is passed over too, but when every
+ * healthy node is full the call fails with RESOURCE_EXHAUSTED rather than pile onto one.
+ * <p>
+ * Balancing:
+ * <ul>
+ * <li>LEAST_OUTSTANDING -- of two nodes picked at random, the one with fewer calls in flight from here</li>
+ * <li>WEIGHTED_ROUND_ROBIN -- smooth weighted round robin, weights from the load reports the nodes send back
+ * (1 / utilization), so a busier or smaller node gets a smaller share. Nodes with no recent report get the
+ * average weight.</li>
+ * </ul>
+ * Call limit per node:
+ * <ul>
+ * <li>FIXED -- maxCallsPerEndpoint, 0 for no limit</li>
+ * <li>ADAPTIVE -- each node's own limit, from how its latency changes as calls are added (see AdaptiveLimit),
+ * up to maxCallsPerEndpoint if set. Calls over it fail fast instead of queueing on the node.</li>
+ * </ul>
+ */
+public final class PasswordEndpointPool {
+    private static final Logger logger = Logger.getLogger(PasswordEndpointPool.class.getName());
+
+    static final long HEALTH_CHECK_MILLIS = 1_000;
+    static final long DNS_REFRESH_SECONDS = 30;
+    private static final String DNS_PREFIX = "dns:///";
+    // Utilization below this counts as this, so an idle node doesn't take everything
+    private static final double MIN_UTILIZATION = 0.05;
+
+    /**
+     * How a node is picked for each call
+     */
+    public enum Balancing {
+        LEAST_OUTSTANDING,
+        WEIGHTED_ROUND_ROBIN
+    }
+
+    /**
+     * How many calls a node gets at once
+     */
+    public enum CallLimit {
+        FIXED,
+        ADAPTIVE
+    }
+
+    private final List<Target> targets = new ArrayList<>();
+    private final Balancing balancing;
+    private final int channelsPerEndpoint;
+    private final int maxCallsPerEndpoint;
+    private final CallLimit callLimit;
+    private final Executor callbackExecutor;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "password-endpoints");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Guards PasswordEndpoint.currentWeight
+    private final Object roundRobinLock = new Object();
+    // By address, replaced whole when DNS changes
+    private volatile Map<String, PasswordEndpoint> endpoints = Collections.emptyMap();
+
+    /**
+     * One channel per node, no call limit
+     *
+     * @param targets   "host:port" or "dns:///name:port" each
+     * @param balancing how to pick a node
+     * @throws IllegalArgumentException if a target is malformed or there are none
+     */
+    public PasswordEndpointPool(List<String> targets, Balancing balancing) {
+        this(targets, balancing, 1, 0, CallLimit.FIXED, null);
+    }
+
+    /**
+     * Resolve the targets and start health checking
+     *
+     * @param targets             "host:port" or "dns:///name:port" each
+     * @param balancing           how to pick a node
+     * @param channelsPerEndpoint connections to each node
+     * @param maxCallsPerEndpoint calls in flight to one node, 0 for no limit; the ceiling of an adaptive limit
+     * @param callLimit           fixed at maxCallsPerEndpoint or adaptive
+     * @param callbackExecutor    runs the call callbacks, null for gRPC's own cached thread pool
+     * @throws IllegalArgumentException if a target is malformed or there are none, or a count is out of range
+     */
+    public PasswordEndpointPool(List<String> targets, Balancing balancing, int channelsPerEndpoint,
+                                int maxCallsPerEndpoint, CallLimit callLimit, Executor callbackExecutor) {
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("No password service endpoints");
+        }
+        if (channelsPerEndpoint < 1) {
+            throw new IllegalArgumentException("Channels per password endpoint must be at least 1: " + channelsPerEndpoint);
+        }
+        if (maxCallsPerEndpoint < 0) {
+            throw new IllegalArgumentException("Calls per password endpoint can't be negative: " + maxCallsPerEndpoint);
+        }
+        for (String target : targets) {
+            this.targets.add(new Target(target));
+        }
+        this.balancing = balancing;
+        this.channelsPerEndpoint = channelsPerEndpoint;
+        this.maxCallsPerEndpoint = maxCallsPerEndpoint;
+        this.callLimit = callLimit;
+        this.callbackExecutor = callbackExecutor;
+        refresh();
+        scheduler.scheduleWithFixedDelay(this::checkHealth, 0, HEALTH_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        if (this.targets.stream().anyMatch(target -> target.dns)) {
+            scheduler.scheduleWithFixedDelay(this::refresh, DNS_REFRESH_SECONDS, DNS_REFRESH_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Over nodes made elsewhere, fixed: no DNS and no health checks unless the nodes are checked by hand
+     *
+     * @param balancing how to pick a node
+     * @param nodes     each with its own call limit
+     */
+    PasswordEndpointPool(Balancing balancing, List<PasswordEndpoint> nodes) {
+        this.balancing = balancing;
+        this.channelsPerEndpoint = 1;
+        this.maxCallsPerEndpoint = 0;
+        this.callLimit = CallLimit.FIXED;
+        this.callbackExecutor = null;
+        Map<String, PasswordEndpoint> byAddress = new LinkedHashMap<>();
+        for (PasswordEndpoint node : nodes) {
+            byAddress.put(node.getAddress(), node);
+        }
+        endpoints = Collections.unmodifiableMap(byAddress);
+    }
+
+    /**
+     * A configured endpoint
+     */
+    private static final class Target {
+        final String text;
+        final String host;
+        final int port;
+        final boolean dns;
+        // Guarded by the pool, last addresses the name resolved to
+        List<String> resolved = Collections.emptyList();
+
+        /**
+         * @param text "host:port" or "dns:///name:port"
+         */
+        Target(String text) {
+            this.text = text;
+            this.dns = text.startsWith(DNS_PREFIX);
+            String hostPort = dns ? text.substring(DNS_PREFIX.length()) : text;
+            int colon = hostPort.lastIndexOf(':');
+            if (colon <= 0 || colon == hostPort.length() - 1) {
+                throw new IllegalArgumentException("Password service endpoint is host:port or dns:///name:port: " + text);
+            }
+            try {
+                port = Integer.parseInt(hostPort.substring(colon + 1));
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Bad port in password service endpoint " + text);
+            }
+            if (port < 1 || port > 65535) {
+                throw new IllegalArgumentException("Bad port in password service endpoint " + text);
+            }
+            host = hostPort.substring(0, colon);
+        }
+    }
+
+    /**
+     * @param target endpoint as configured
+     * @return true if it is "host:port" or "dns:///name:port"
+     */
+    static boolean isValidTarget(String target) {
+        try {
+            new Target(target);
+            return true;
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Work out the nodes from the targets, keeping the ones already known
+     */
+    private synchronized void refresh() {
+        Map<String, PasswordEndpoint> current = endpoints;
+        Map<String, PasswordEndpoint> next = new LinkedHashMap<>();
+        for (Target target : targets) {
+            List<String> hosts;
+            if (target.dns) {
+                try {
+                    hosts = new ArrayList<>();
+                    for (InetAddress address : InetAddress.getAllByName(target.host)) {
+                        hosts.add(address.getHostAddress());
+                    }
+                    target.resolved = hosts;
+                } catch (UnknownHostException ex) {
+                    // Keep what we had rather than drop every node on a DNS hiccup
+                    logger.warning(String.format("Could not resolve %s: %s", target.text, ex.getMessage()));
+                    hosts = target.resolved;
+                }
+            } else {
+                hosts = Collections.singletonList(target.host);
+            }
+            for (String host : hosts) {
+                String address = host + ":" + target.port;
+                PasswordEndpoint endpoint = current.get(address);
+                next.putIfAbsent(address, endpoint != null ? endpoint : new PasswordEndpoint(host, target.port,
+                        channelsPerEndpoint, maxCallsPerEndpoint, newAdaptiveLimit(), callbackExecutor));
+            }
+        }
+        for (Map.Entry<String, PasswordEndpoint> entry : current.entrySet()) {
+            if (!next.containsKey(entry.getKey())) {
+                logger.info(String.format("Password node %s removed", entry.getKey()));
+                entry.getValue().shutdown();
+            }
+        }
+        for (String address : next.keySet()) {
+            if (!current.containsKey(address)) {
+                logger.info(String.format("Password node %s added", address));
+            }
+        }
+        endpoints = Collections.unmodifiableMap(next);
+    }
+
+    private void checkHealth() {
+        try {
+            for (PasswordEndpoint endpoint : endpoints.values()) {
+                endpoint.checkHealth(HEALTH_CHECK_MILLIS);
+            }
+        } catch (RuntimeException ex) {
+            logger.log(Level.WARNING, "Health check failed", ex);
+        }
+    }
+
+    /**
+     * @return a new node's adaptive limit, or null for the fixed limit
+     */
+    private AdaptiveLimit newAdaptiveLimit() {
+        if (callLimit != CallLimit.ADAPTIVE) {
+            return null;
+        }
+        int max = maxCallsPerEndpoint == 0 ? AdaptiveLimit.DEFAULT_MAX_LIMIT : maxCallsPerEndpoint;
+        return new AdaptiveLimit(Math.min(AdaptiveLimit.DEFAULT_INITIAL_LIMIT, max), 1, max);
+    }
+
+    /**
+     * Node for the next call
+     *
+     * @return node
+     * @throws StatusRuntimeException UNAVAILABLE if there are no nodes at all, RESOURCE_EXHAUSTED if every healthy
+     *                                node is at its call limit
+     */
+    PasswordEndpoint pick() {
+        return pick(null);
+    }
+
+    /**
+     * Node for a retry, another one than last time if there is one
+     *
+     * @param avoid node the last attempt went to, or null
+     * @return node
+     * @throws StatusRuntimeException as pick()
+     */
+    PasswordEndpoint pick(PasswordEndpoint avoid) {
+        long now = System.currentTimeMillis();
+        Map<String, PasswordEndpoint> all = endpoints;
+        if (all.isEmpty()) {
+            throw Status.UNAVAILABLE.withDescription("No password service nodes").asRuntimeException();
+        }
+        List<PasswordEndpoint> available = new ArrayList<>(all.size());
+        boolean full = false;
+        for (PasswordEndpoint endpoint : all.values()) {
+            if (!endpoint.isAvailable(now)) {
+                continue;
+            }
+            if (endpoint.hasCapacity()) {
+                available.add(endpoint);
+            } else {
+                full = true;
+            }
+        }
+        if (available.isEmpty()) {
+            if (full) {
+                throw Status.RESOURCE_EXHAUSTED.withDescription("Every password node is at its call limit")
+                        .asRuntimeException();
+            }
+            // Nothing looks healthy -- better to try than to fail every call here
+            available.addAll(all.values());
+        }
+        if (avoid != null && available.size() > 1) {
+            available.remove(avoid);
+        }
+        if (available.size() == 1) {
+            return available.get(0);
+        }
+        return balancing == Balancing.WEIGHTED_ROUND_ROBIN ? weightedRoundRobin(available, now)
+                : leastOutstanding(available, now);
+    }
+
+    /**
+     * Power of two choices: fewer calls in flight wins, then lower reported load
+     */
+    private static PasswordEndpoint leastOutstanding(List<PasswordEndpoint> available, long now) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(available.size());
+        int second = random.nextInt(available.size() - 1);
+        if (second >= first) {
+            second++;
+        }
+        PasswordEndpoint a = available.get(first);
+        PasswordEndpoint b = available.get(second);
+        if (a.getOutstanding() != b.getOutstanding()) {
+            return a.getOutstanding() < b.getOutstanding() ? a : b;
+        }
+        return a.getUtilization(now) <= b.getUtilization(now) ? a : b;
+    }
+
+    /**
+     * Smooth weighted round robin (as nginx): each pick adds every node's weight to its running total, the
+     * highest total wins and gives back the sum of all weights. Spreads a node's share evenly over the rounds.
+     */
+    private PasswordEndpoint weightedRoundRobin(List<PasswordEndpoint> available, long now) {
+        double[] weights = new double[available.size()];
+        double known = 0;
+        int reported = 0;
+        for (int i = 0; i < weights.length; i++) {
+            double utilization = available.get(i).getUtilization(now);
+            if (utilization >= 0) {
+                weights[i] = 1 / Math.max(utilization, MIN_UTILIZATION);
+                known += weights[i];
+                reported++;
+            } else {
+                weights[i] = -1;
+            }
+        }
+        double unknownWeight = reported > 0 ? known / reported : 1;
+        synchronized (roundRobinLock) {
+            double total = 0;
+            PasswordEndpoint best = null;
+            for (int i = 0; i < weights.length; i++) {
+                PasswordEndpoint endpoint = available.get(i);
+                double weight = weights[i] >= 0 ? weights[i] : unknownWeight;
+                endpoint.currentWeight += weight;
+                total += weight;
+                if (best == null || endpoint.currentWeight > best.currentWeight) {
+                    best = endpoint;
+                }
+            }
+            best.currentWeight -= total;
+            return best;
+        }
+    }
+
+    /**
+     * @return every known node, available or not
+     */
+    List<PasswordEndpoint> getEndpoints() {
+        return new ArrayList<>(endpoints.values());
+    }
+
+    public Balancing getBalancing() {
+        return balancing;
+    }
+
+    public int getChannelsPerEndpoint() {
+        return channelsPerEndpoint;
+    }
+
+    public int getMaxCallsPerEndpoint() {
+        return maxCallsPerEndpoint;
+    }
+
+    public CallLimit getCallLimit() {
+        return callLimit;
+    }
+
+    /**
+     * @return sum of the call limits of the nodes taking calls now, 0 if any of them has no limit
+     */
+    public int getAvailableCallLimit() {
+        long now = System.currentTimeMillis();
+        int total = 0;
+        for (PasswordEndpoint endpoint : endpoints.values()) {
+            if (endpoint.isAvailable(now)) {
+                int limit = endpoint.getCallLimit();
+                if (limit == 0) {
+                    return 0;
+                }
+                total += limit;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return calls in flight to every node
+     */
+    public int getOutstanding() {
+        int total = 0;
+        for (PasswordEndpoint endpoint : endpoints.values()) {
+            total += endpoint.getOutstanding();
+        }
+        return total;
+    }
+
+    /**
+     * Stop health checks and close every channel, calls in flight finish
+     *
+     * @throws InterruptedException
+     */
+    public void shutdown() throws InterruptedException {
+        scheduler.shutdownNow();
+        Map<String, PasswordEndpoint> all = endpoints;
+        for (PasswordEndpoint endpoint : all.values()) {
+            endpoint.shutdown();
+        }
+        for (PasswordEndpoint endpoint : all.values()) {
+            endpoint.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PasswordEndpointPool{%s, %s, %s}", balancing, callLimit, endpoints.values());
+    }
+}
@@ -0,0 +1,104 @@
+package ie.gmit.ds.client;
+
+import io.grpc.Status;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * When UserClient tries a failed password call again, on another node if there is one.
+ * <p>
+ * Only calls that failed with one of the retryOn codes are retried, by default UNAVAILABLE: the node was down,
+ * draining or refused the call, so the password was never hashed there. DEADLINE_EXCEEDED is not retried by default,
+ * that node may still be hashing it and trying again doubles the work just when nodes are slowest.
+ * <p>
+ * The wait before attempt n + 1 is random up to initialBackoff * multiplier^(n - 1), capped at maxBackoff, so
+ * clients that failed together don't come back together.
+ */
+public final class RetryPolicy {
+
+    /**
+     * Three attempts, 50 ms backoff doubling to 1 s, UNAVAILABLE only
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3, 50, 1_000, 2.0, EnumSet.of(Status.Code.UNAVAILABLE));
+
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final double multiplier;
+    private final Set<Status.Code> retryOn;
+
+    /**
+     * @param maxAttempts          attempts in all, 1 for no retries
+     * @param initialBackoffMillis longest wait before the first retry
+     * @param maxBackoffMillis     longest wait before any retry
+     * @param multiplier           backoff growth per attempt, at least 1
+     * @param retryOn              status codes worth another attempt
+     * @throws IllegalArgumentException if a value is out of range
+     */
+    public RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis, double multiplier,
+                       Set<Status.Code> retryOn) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Retry attempts must be at least 1: " + maxAttempts);
+        }
+        if (initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis) {
+            throw new IllegalArgumentException(String.format("Retry backoff must be 0 <= initial <= max: %d, %d",
+                    initialBackoffMillis, maxBackoffMillis));
+        }
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("Retry backoff multiplier must be at least 1: " + multiplier);
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.multiplier = multiplier;
+        this.retryOn = retryOn.isEmpty() ? Collections.emptySet()
+                : Collections.unmodifiableSet(EnumSet.copyOf(retryOn));
+    }
+
+    /**
+     * @param code    status the attempt failed with
+     * @param attempt attempts made so far, from 1
+     * @return true if there should be another
+     */
+    boolean shouldRetry(Status.Code code, int attempt) {
+        return attempt < maxAttempts && retryOn.contains(code);
+    }
+
+    /**
+     * @param attempt attempts made so far, from 1
+     * @return how long to wait before the next one
+     */
+    long backoffMillis(int attempt) {
+        double ceiling = Math.min(initialBackoffMillis * Math.pow(multiplier, attempt - 1), maxBackoffMillis);
+        return (long) (ThreadLocalRandom.current().nextDouble() * ceiling);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getInitialBackoffMillis() {
+        return initialBackoffMillis;
+    }
+
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public Set<Status.Code> getRetryOn() {
+        return retryOn;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RetryPolicy{maxAttempts=%d, backoff=%d..%d ms x%.1f, retryOn=%s}", maxAttempts,
+                initialBackoffMillis, maxBackoffMillis, multiplier, retryOn);
+    }
+}
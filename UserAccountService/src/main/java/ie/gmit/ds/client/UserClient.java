@@ -3,15 +3,24 @@ package ie.gmit.ds.client;
 import com.google.protobuf.ByteString;
 import ie.gmit.ds.*;
 import ie.gmit.ds.api.User;
-import ie.gmit.ds.db.UserDB;
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.logging.Logger;
 
 public class UserClient {
@@ -21,20 +30,85 @@ public class UserClient {
      * Using blocking stubs -- Asynchronous and Synchronous
      */
     private static final Logger logger = Logger.getLogger(UserClient.class.getName());
-    private final ManagedChannel channel;
-    private final PasswordServiceGrpc.PasswordServiceBlockingStub syncPasswordService; // Synchronous call
-    private final PasswordServiceGrpc.PasswordServiceStub asyncInventoryService; // Asynchronous call
+    static final long DEFAULT_HASH_DEADLINE_MILLIS = 5_000;
+    static final long DEFAULT_VALIDATE_DEADLINE_MILLIS = 2_000;
+    static final long DEFAULT_VALIDATE_BATCH_DEADLINE_MILLIS = 5_000;
+    static final int DEFAULT_MAX_HASHES_IN_FLIGHT = 128;
+
+    private final PasswordEndpointPool passwordNodes; // Each call goes to one of these
+    private final long hashDeadlineMillis;
+    private final long validateDeadlineMillis;
+    private final long validateBatchDeadlineMillis;
+    private final RetryPolicy retryPolicy;
+    private final EventLog events;
+    private final int maxHashesInFlight; // 0 for no limit
+    private final Semaphore hashPermits; // null for no limit
+    private final AtomicLong hashesInFlight = new AtomicLong();
+    private final AtomicLong hashesRejected = new AtomicLong();
+    // Waits out the backoff before an async retry
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "password-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
-     * Constructor
+     * Constructor -- one password service node, default deadlines and retries
      *
      * @param host
      * @param port
      */
     public UserClient(String host, int port) {
-        channel = ManagedChannelBuilder.forAddress(host, port).usePlaintext().build();
-        syncPasswordService = PasswordServiceGrpc.newBlockingStub(channel);
-        asyncInventoryService = PasswordServiceGrpc.newStub(channel);
+        this(new PasswordEndpointPool(Collections.singletonList(host + ":" + port),
+                        PasswordEndpointPool.Balancing.LEAST_OUTSTANDING),
+                DEFAULT_HASH_DEADLINE_MILLIS, DEFAULT_VALIDATE_DEADLINE_MILLIS, DEFAULT_VALIDATE_BATCH_DEADLINE_MILLIS,
+                RetryPolicy.DEFAULT, EventLog.DEFAULT_SAMPLE_EVERY, DEFAULT_MAX_HASHES_IN_FLIGHT);
+    }
+
+    /**
+     * Constructor -- calls spread over several password service nodes
+     *
+     * @param passwordNodes
+     * @param hashDeadlineMillis          deadline of each Hash attempt
+     * @param validateDeadlineMillis      deadline of each Validate attempt
+     * @param validateBatchDeadlineMillis deadline of each ValidateBatch attempt
+     * @param retryPolicy                 which failed calls to try again
+     * @param logSampleEvery              log 1 in this many successful calls
+     * @param maxHashesInFlight           Hash calls waiting on the password service before more are refused,
+     *                                    0 for no limit
+     */
+    public UserClient(PasswordEndpointPool passwordNodes, long hashDeadlineMillis, long validateDeadlineMillis,
+                      long validateBatchDeadlineMillis, RetryPolicy retryPolicy, int logSampleEvery,
+                      int maxHashesInFlight) {
+        if (maxHashesInFlight < 0) {
+            throw new IllegalArgumentException("Hashes in flight must be 0 (no limit) or more: " + maxHashesInFlight);
+        }
+        this.passwordNodes = passwordNodes;
+        this.hashDeadlineMillis = hashDeadlineMillis;
+        this.validateDeadlineMillis = validateDeadlineMillis;
+        this.validateBatchDeadlineMillis = validateBatchDeadlineMillis;
+        this.retryPolicy = retryPolicy;
+        this.events = new EventLog(logger, logSampleEvery);
+        this.maxHashesInFlight = maxHashesInFlight;
+        this.hashPermits = maxHashesInFlight == 0 ? null : new Semaphore(maxHashesInFlight);
+    }
+
+    /**
+     * @return Hash calls started and not yet finished, retries and backoff included
+     */
+    public long getHashesInFlight() {
+        return hashesInFlight.get();
+    }
+
+    /**
+     * @return Hash calls refused since startup because maxHashesInFlight were already in flight
+     */
+    public long getHashesRejected() {
+        return hashesRejected.get();
+    }
+
+    public int getMaxHashesInFlight() {
+        return maxHashesInFlight;
     }
 
     /**
@@ -43,68 +117,262 @@ public class UserClient {
      * @throws InterruptedException
      */
     public void shutdown() throws InterruptedException {
-        channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        retryScheduler.shutdownNow();
+        passwordNodes.shutdown();
     }
 
     /**
      * Hash password
+     * <p>
+     * The user comes back with the hash, salt and hash parameters in place of the password, for the caller to store
+     * -- nothing is stored before the hash exists, so a user is never visible without one
+     * <p>
+     * At most maxHashesInFlight calls wait on the password service at once. Past that the call isn't made and the
+     * future fails straight away with RESOURCE_EXHAUSTED, so a burst of sign-ups can't pile up calls and users here.
+     *
+     * @param user with the password
+     * @return user to store, or failed with a StatusRuntimeException; cancel it to cancel the call
      */
-    public void Hash(User user) {
-        StreamObserver<UserInputResponse> responseStreamObserver = new StreamObserver<UserInputResponse>() {
+    public CompletableFuture<User> Hash(User user) {
+        if (hashPermits != null && !hashPermits.tryAcquire()) {
+            hashesRejected.incrementAndGet();
+            events.warning("hash", "userId", user.getUserId(), "status", Status.Code.RESOURCE_EXHAUSTED,
+                    "inFlight", hashesInFlight.get());
+            CompletableFuture<User> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(Status.RESOURCE_EXHAUSTED
+                    .withDescription(String.format("%d hashes already in flight", maxHashesInFlight))
+                    .asRuntimeException());
+            return rejected;
+        }
+        hashesInFlight.incrementAndGet();
+        UserInputRequest userInputRequest = UserInputRequest.newBuilder()
+                .setUserId(user.getUserId())
+                .setPassword(user.getPassword())
+                .build();
+        CompletableFuture<UserInputResponse> result = callAsync("hash",
+                (endpoint, observer) -> endpoint.async().withDeadlineAfter(hashDeadlineMillis, TimeUnit.MILLISECONDS)
+                        .hash(userInputRequest, observer));
+        result.whenComplete((userInputResponse, failure) -> {
+            // Cancelled included, the call is being torn down
+            hashesInFlight.decrementAndGet();
+            if (hashPermits != null) {
+                hashPermits.release();
+            }
+            if (failure == null) {
+                events.info("hash", "userId", user.getUserId(), "hashParameters", userInputResponse.getHashParameters());
+            } else if (!result.isCancelled()) {
+                Status status = Status.fromThrowable(failure);
+                events.warning("hash", "userId", user.getUserId(), "status", status.getCode(),
+                        "description", status.getDescription());
+            }
+        });
+        // Avoids storing the password
+        CompletableFuture<User> hashed = result.thenApply(userInputResponse -> new User(user.getUserId(),
+                user.getUserName(), user.getEmail(), userInputResponse.getExpectedHash(), userInputResponse.getSalt(),
+                userInputResponse.getHashParameters()));
+        // Cancelling what the caller holds has to reach the call
+        hashed.whenComplete((value, failure) -> {
+            if (hashed.isCancelled()) {
+                result.cancel(false);
+            }
+        });
+        return hashed;
+    }
+
+    /**
+     * Async call, retried on another node as the retry policy allows. Cancelling the future cancels the call.
+     *
+     * @param event name for the log
+     * @param call  starts the call on the node given, answering the observer given
+     * @return response, or failed with the StatusRuntimeException of the last attempt
+     */
+    private <T> CompletableFuture<T> callAsync(String event, BiConsumer<PasswordEndpoint, StreamObserver<T>> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attemptAsync(event, call, result, 1, null);
+        return result;
+    }
+
+    /**
+     * @param attempt  from 1
+     * @param previous node the last attempt went to, null on the first
+     */
+    private <T> void attemptAsync(String event, BiConsumer<PasswordEndpoint, StreamObserver<T>> call,
+                                  CompletableFuture<T> result, int attempt, PasswordEndpoint previous) {
+        if (result.isDone()) {
+            return; // Cancelled while waiting to retry
+        }
+        PasswordEndpoint endpoint;
+        try {
+            endpoint = passwordNodes.pick(previous);
+        } catch (StatusRuntimeException ex) {
+            result.completeExceptionally(ex);
+            return;
+        }
+        call.accept(endpoint, new ClientResponseObserver<Object, T>() {
+            private T response;
+
+            @Override
+            public void beforeStart(ClientCallStreamObserver<Object> requestStream) {
+                result.whenComplete((value, failure) -> {
+                    if (result.isCancelled()) {
+                        requestStream.cancel("Caller gave up", null);
+                    }
+                });
+            }
+
             @Override
-            public void onNext(UserInputResponse userInputResponse) {
-                // Create an instance of the database and add a user here
-                // This allows for specific entries on the user
-                // Also avoids storing the password
-                User u = new User(user.getUserId(), user.getUserName(),
-                        user.getEmail(), userInputResponse.getExpectedHash(), userInputResponse.getSalt());
-                UserDB.createUser(u.getUserId(), u);
-                logger.info("USER: " + userInputResponse);
+            public void onNext(T value) {
+                response = value;
             }
 
             @Override
             public void onError(Throwable throwable) {
                 Status status = Status.fromThrowable(throwable);
-
-                logger.log(Level.WARNING, "RPC Error: {0}", status);
+                if (retryPolicy.shouldRetry(status.getCode(), attempt) && !result.isDone()) {
+                    long backoffMillis = retryPolicy.backoffMillis(attempt);
+                    events.warning(event, "attempt", attempt, "node", endpoint.getAddress(),
+                            "status", status.getCode(), "retryInMs", backoffMillis);
+                    try {
+                        retryScheduler.schedule(() -> attemptAsync(event, call, result, attempt + 1, endpoint),
+                                backoffMillis, TimeUnit.MILLISECONDS);
+                        return;
+                    } catch (RejectedExecutionException ex) {
+                        // Shutting down, give up
+                    }
+                }
+                result.completeExceptionally(throwable instanceof StatusRuntimeException ? throwable
+                        : status.asRuntimeException());
             }
 
             @Override
             public void onCompleted() {
-//                logger.info("Finished receiving items");
-//                try {
-//                    shutdown();
-//                } catch (InterruptedException e) {
-//                    e.printStackTrace();
-//                }
+                result.complete(response);
             }
-        };
+        });
+    }
+
+    /**
+     * Blocking call, retried on another node as the retry policy allows
+     *
+     * @param event name for the log
+     * @param call  the call on the node given
+     * @return response
+     * @throws StatusRuntimeException from the last attempt
+     */
+    private <T> T withRetries(String event, Function<PasswordEndpoint, T> call) {
+        PasswordEndpoint endpoint = null;
+        for (int attempt = 1; ; attempt++) {
+            endpoint = passwordNodes.pick(endpoint);
+            try {
+                return call.apply(endpoint);
+            } catch (StatusRuntimeException ex) {
+                if (!retryPolicy.shouldRetry(ex.getStatus().getCode(), attempt)) {
+                    throw ex;
+                }
+                long backoffMillis = retryPolicy.backoffMillis(attempt);
+                events.warning(event, "attempt", attempt, "node", endpoint.getAddress(),
+                        "status", ex.getStatus().getCode(), "retryInMs", backoffMillis);
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw Status.CANCELLED.withDescription("Interrupted before retry").withCause(interrupted)
+                            .asRuntimeException();
+                }
+            }
+        }
+    }
+
+    /**
+     * Validate password
+     * <p>
+     * If the password is right but the stored hash uses outdated parameters, the response is rehashed and
+     * carries the new hash, salt and parameters for the caller to store
+     *
+     * @param hashParameters stored with the hash, null or empty for hashes made before they existed
+     * @return response, not valid if the call fails
+     */
+    public PasswordValidateResponse Validate(String password, ByteString expectedHash, ByteString salt, String hashParameters) {
+        PasswordValidateRequest passwordValidateRequest = PasswordValidateRequest.newBuilder()
+                .setPassword(password)
+                .setExpectedHash(expectedHash)
+                .setSalt(salt)
+                .setHashParameters(hashParameters == null ? "" : hashParameters)
+                .build();
         try {
-            asyncInventoryService.hash(UserInputRequest.newBuilder()
-                    .setUserId(user.getUserId())
-                    .setPassword(user.getPassword())
-                    .build(), responseStreamObserver);
+            PasswordValidateResponse passwordValidateResponse = withRetries("validate",
+                    endpoint -> endpoint.blocking().withDeadlineAfter(validateDeadlineMillis, TimeUnit.MILLISECONDS)
+                            .validate(passwordValidateRequest));
+            events.info("validate", "valid", passwordValidateResponse.getValidPassword(),
+                    "rehashed", passwordValidateResponse.getRehashed());
+            return passwordValidateResponse;
         } catch (StatusRuntimeException ex) {
-            logger.warning("Exception: " + ex);
+            events.warning("validate", "status", ex.getStatus().getCode(), "description", ex.getStatus().getDescription());
+            return PasswordValidateResponse.getDefaultInstance();
         }
     }
 
     /**
-     * Validate password
+     * Validate password without waiting for the answer -- no thread is held while the password service hashes
+     * <p>
+     * Same request and response as Validate, but a failed call fails the future instead of answering not valid,
+     * so the caller can tell a wrong password from an unreachable service
+     *
+     * @param hashParameters stored with the hash, null or empty for hashes made before they existed
+     * @return response, or failed with a StatusRuntimeException; cancel it to cancel the call
      */
-    public boolean Validate(String password, ByteString expectedHash, ByteString salt) {
+    public CompletableFuture<PasswordValidateResponse> ValidateAsync(String password, ByteString expectedHash,
+                                                                     ByteString salt, String hashParameters) {
         PasswordValidateRequest passwordValidateRequest = PasswordValidateRequest.newBuilder()
                 .setPassword(password)
                 .setExpectedHash(expectedHash)
                 .setSalt(salt)
+                .setHashParameters(hashParameters == null ? "" : hashParameters)
                 .build();
+        CompletableFuture<PasswordValidateResponse> result = callAsync("validate",
+                (endpoint, observer) -> endpoint.async().withDeadlineAfter(validateDeadlineMillis, TimeUnit.MILLISECONDS)
+                        .validate(passwordValidateRequest, observer));
+        result.whenComplete((passwordValidateResponse, failure) -> {
+            if (failure == null) {
+                events.info("validate", "valid", passwordValidateResponse.getValidPassword(),
+                        "rehashed", passwordValidateResponse.getRehashed());
+            } else if (!result.isCancelled()) {
+                Status status = Status.fromThrowable(failure);
+                events.warning("validate", "status", status.getCode(), "description", status.getDescription());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Validate several passwords in one round trip
+     * <p>
+     * The password service checks them in parallel, results come back in request order
+     *
+     * @param requests
+     * @return one result per request, all false if the call fails
+     */
+    public List<Boolean> ValidateBatch(List<PasswordValidateRequest> requests) {
+        List<Boolean> results = new ArrayList<>(requests.size());
         try {
-            PasswordValidateResponse passwordValidateResponse = syncPasswordService.validate(passwordValidateRequest);
-            logger.info("VALID PASSWORD: " + passwordValidateResponse.getValidPassword());
-            return passwordValidateResponse.getValidPassword();
+            PasswordValidateBatchRequest batchRequest = PasswordValidateBatchRequest.newBuilder()
+                    .addAllRequests(requests)
+                    .build();
+            PasswordValidateBatchResponse batchResponse = withRetries("validateBatch",
+                    endpoint -> endpoint.blocking().withDeadlineAfter(validateBatchDeadlineMillis, TimeUnit.MILLISECONDS)
+                            .validateBatch(batchRequest));
+            for (PasswordValidateResponse passwordValidateResponse : batchResponse.getResponsesList()) {
+                results.add(passwordValidateResponse.getValidPassword());
+            }
+            events.info("validateBatch", "count", results.size(), "valid", Collections.frequency(results, true));
         } catch (StatusRuntimeException ex) {
-            logger.warning("Exception caught: " + ex.getLocalizedMessage());
-            return false;
+            events.warning("validateBatch", "count", requests.size(), "status", ex.getStatus().getCode(),
+                    "description", ex.getStatus().getDescription());
+            results.clear();
+            for (int i = 0; i < requests.size(); i++) {
+                results.add(false);
+            }
         }
+        return results;
     }
-}
\ No newline at end of file
+}
@@ -3,15 +3,17 @@ package ie.gmit.ds.db;
 import ie.gmit.ds.api.User;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class UserDB {
     /**
      * Data persistence
      * Using a hash-map to store the user and data
+     * Concurrent: written from request threads and gRPC callbacks at once
      */
-    private static HashMap<Integer, User> usersMap = new HashMap<>();
+    private static final ConcurrentMap<Integer, User> usersMap = new ConcurrentHashMap<>();
 
     /**
      * Use this for initial testing
@@ -53,6 +55,17 @@ public class UserDB {
         usersMap.put(userId, user);
     }
 
+    /**
+     * Create a user by Id, unless there is one already
+     *
+     * @param userId
+     * @param user
+     * @return true if created, false if the Id was taken
+     */
+    public static boolean createUserIfAbsent(int userId, User user) {
+        return usersMap.putIfAbsent(userId, user) == null;
+    }
+
     /**
      * Update user by Id
      *
@@ -63,6 +76,29 @@ public class UserDB {
         usersMap.put(userId, user);
     }
 
+    /**
+     * Update user by Id, unless it has been deleted
+     *
+     * @param userId
+     * @param user
+     * @return true if updated, false if there is no such user
+     */
+    public static boolean updateUserIfPresent(int userId, User user) {
+        return usersMap.replace(userId, user) != null;
+    }
+
+    /**
+     * Update user by Id, only if it is still the one given -- so a stale write can't undo a newer one
+     *
+     * @param userId
+     * @param expected user as last read
+     * @param user
+     * @return true if updated
+     */
+    public static boolean replaceUser(int userId, User expected, User user) {
+        return usersMap.replace(userId, expected, user);
+    }
+
     /**
      * Delete user by Id
      *
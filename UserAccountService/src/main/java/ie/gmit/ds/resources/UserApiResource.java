@@ -1,5 +1,6 @@
 package ie.gmit.ds.resources;
 
+import ie.gmit.ds.PasswordValidateResponse;
 import ie.gmit.ds.api.Message;
 import ie.gmit.ds.api.User;
 import ie.gmit.ds.api.UserLogin;
@@ -9,11 +10,22 @@ import ie.gmit.ds.db.UserDB;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import java.util.logging.Logger;
 
 import javax.validation.ConstraintViolation;
 import javax.validation.Validator;
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
@@ -32,21 +44,32 @@ import javax.ws.rs.core.Response.Status;
 public class UserApiResource {
 
     private final Validator validator; // Validation
-    private UserClient userClient;// UserClient instance with host and port
-
-    private final String HOST = "localhost";
-    private final int PORT = 50551;
+    private final UserClient userClient; // Password service client, from the passwordService config
+    private final long loginTimeoutMillis; // Longest a login waits for the password service
+    private final boolean blockingLogin; // Wait on the request thread instead of suspending
+    private final long hashTimeoutMillis; // Longest a create or update waits for the password hash
+    private final Set<Integer> creating = ConcurrentHashMap.newKeySet(); // Ids being hashed, not yet stored
 
+    // Retry-After of a request refused because the password service is busy
+    static final int BUSY_RETRY_AFTER_SECONDS = 1;
     private static final Logger logger = Logger.getLogger(UserClient.class.getName());
 
     /**
-     * Single arg constructor to initialise the validator
+     * Constructor
      *
      * @param validator
+     * @param userClient
+     * @param loginTimeoutMillis a login not answered by then gets 503
+     * @param blockingLogin      wait for the password service on the request thread, for virtual threads
+     * @param hashTimeoutMillis  a create or update not stored by then gets 503, and isn't stored later
      */
-    public UserApiResource(Validator validator) {
+    public UserApiResource(Validator validator, UserClient userClient, long loginTimeoutMillis,
+                           boolean blockingLogin, long hashTimeoutMillis) {
         this.validator = validator;
-        this.userClient = new UserClient(HOST, PORT);
+        this.userClient = userClient;
+        this.loginTimeoutMillis = loginTimeoutMillis;
+        this.blockingLogin = blockingLogin;
+        this.hashTimeoutMillis = hashTimeoutMillis;
     }
 
     /**
@@ -78,13 +101,17 @@ public class UserApiResource {
 
     /**
      * Create a user
+     * <p>
+     * Answered once the user is stored with its hash, so it can log in straight away. 503 if the password service
+     * fails or the hash takes longer than the hash timeout -- then nothing is stored and the request can be repeated.
+     * 503 with Retry-After if the password service is busy: maxHashesInFlight hashes already waiting on it.
      *
      * @param user
-     * @return
+     * @param asyncResponse
      * @throws URISyntaxException
      */
     @POST
-    public Response createUser(User user) throws URISyntaxException {
+    public void createUser(User user, @Suspended AsyncResponse asyncResponse) throws URISyntaxException {
         Set<ConstraintViolation<User>> violations = validator.validate(user); // Validation
         User u = UserDB.getUser(user.getUserId()); // Used for validation
         // Validation check => User exists
@@ -93,44 +120,133 @@ public class UserApiResource {
             for (ConstraintViolation<User> violation : violations) {
                 validationMessages.add(violation.getPropertyPath().toString());
             }
-            return Response.status(Response.Status.BAD_REQUEST).entity(validationMessages).build();
+            asyncResponse.resume(Response.status(Response.Status.BAD_REQUEST).entity(validationMessages).build());
+            return;
         }
-        // If user doesn't exist => Create new user
-        if (u == null) {
-            userClient.Hash(user);
-            return Response.status(Status.OK).entity(new Message("User Created Successfully!")).build();
-        } else {
+        // If user doesn't exist (and isn't being created) => Create new user
+        if (u != null || !creating.add(user.getUserId())) {
+            asyncResponse.resume(Response.status(Status.NOT_FOUND).entity(new Message("User Already Exists!")).build());
+            return;
+        }
+        awaitHash(user, asyncResponse, hashed -> {
+            creating.remove(user.getUserId());
+            if (hashed == null) {
+                return null;
+            }
+            if (UserDB.createUserIfAbsent(hashed.getUserId(), hashed)) {
+                return Response.status(Status.OK).entity(new Message("User Created Successfully!")).build();
+            }
             return Response.status(Status.NOT_FOUND).entity(new Message("User Already Exists!")).build();
+        });
+    }
+
+    /**
+     * 503 for a password call that failed. With Retry-After if it was refused for load -- too many hashes in flight
+     * here, or every password node at its call limit -- as that passes soon.
+     *
+     * @param failure from the call's future
+     * @return response
+     */
+    private static Response passwordServiceFailure(Throwable failure) {
+        if (io.grpc.Status.fromThrowable(failure).getCode() == io.grpc.Status.Code.RESOURCE_EXHAUSTED) {
+            return Response.status(Status.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, BUSY_RETRY_AFTER_SECONDS)
+                    .entity(new Message("Password Service Busy!")).build();
         }
+        return Response.status(Status.SERVICE_UNAVAILABLE).entity(new Message("Password Service Unavailable!")).build();
+    }
+
+    /**
+     * Cancel a password call, if it has started
+     */
+    private static void cancel(CompletableFuture<?> call) {
+        if (call != null) {
+            call.cancel(false);
+        }
+    }
+
+    /**
+     * Hash the user's password, then store it and answer -- unless the hash timeout answers first
+     *
+     * @param user          with the password
+     * @param asyncResponse
+     * @param store         stores the hashed user and says what to answer; called once, with null if there will be
+     *                      nothing to store (failed or timed out) and the answer is already decided
+     */
+    private void awaitHash(User user, AsyncResponse asyncResponse, Function<User, Response> store) {
+        // Exactly one of the timeout and the hash decides whether the user is stored
+        AtomicBoolean decided = new AtomicBoolean();
+        AtomicReference<CompletableFuture<User>> hashing = new AtomicReference<>();
+        // Handler before timeout before call: a short timeout can't fire unhandled, the call can't finish first
+        asyncResponse.setTimeoutHandler(timedOut -> {
+            if (decided.compareAndSet(false, true)) {
+                cancel(hashing.get());
+                store.apply(null);
+                timedOut.resume(Response.status(Status.SERVICE_UNAVAILABLE)
+                        .entity(new Message("Password Hashing Timed Out!")).build());
+            }
+        });
+        asyncResponse.setTimeout(hashTimeoutMillis, TimeUnit.MILLISECONDS);
+        hashing.set(userClient.Hash(user));
+        if (decided.get()) {
+            // Timed out while the call was starting
+            cancel(hashing.get());
+        }
+        hashing.get().whenComplete((hashed, failure) -> {
+            if (!decided.compareAndSet(false, true)) {
+                return;
+            }
+            if (failure != null) {
+                store.apply(null);
+                asyncResponse.resume(passwordServiceFailure(failure));
+            } else {
+                asyncResponse.resume(store.apply(hashed));
+            }
+        });
     }
 
     /**
      * Update user by id
      *
+     * Answered once the new password's hash is stored, as createUser. The old password works until then.
+     * The body's userId must be the one in the path.
+     *
      * @param id
      * @param user
-     * @return
+     * @param asyncResponse
      */
     @PUT
     @Path("/{userId}")
-    public Response updateUserById(@PathParam("userId") int id, User user) {
+    public void updateUserById(@PathParam("userId") int id, User user, @Suspended AsyncResponse asyncResponse) {
         // Validation
         Set<ConstraintViolation<User>> violations = validator.validate(user);
-        User u = UserDB.getUser(user.getUserId());
         if (violations.size() > 0) {
             ArrayList<String> validationMessages = new ArrayList<>();
             for (ConstraintViolation<User> violation : violations) {
                 validationMessages.add(violation.getPropertyPath().toString());
             }
-            return Response.status(Status.BAD_REQUEST).entity(validationMessages).build();
+            asyncResponse.resume(Response.status(Status.BAD_REQUEST).entity(validationMessages).build());
+            return;
         }
-        if (u != null) {
-            UserDB.updateUser(id, user); // Remove initial user
-            userClient.Hash(user); // Add updated user with correct hash and salt
-            return Response.status(Status.OK).entity(new Message("User Updated Successfully!")).build();
-        } else {
-            return Response.status(Status.NOT_FOUND).entity(new Message("User Not Found!")).build();
+        if (user.getUserId() != id) {
+            asyncResponse.resume(Response.status(Status.BAD_REQUEST)
+                    .entity(new Message("User Id Does Not Match Path!")).build());
+            return;
         }
+        User u = UserDB.getUser(id);
+        if (u == null) {
+            asyncResponse.resume(Response.status(Status.NOT_FOUND).entity(new Message("User Not Found!")).build());
+            return;
+        }
+        // Replace the user with the updated one, correct hash and salt -- unless it was deleted meanwhile
+        awaitHash(user, asyncResponse, hashed -> {
+            if (hashed == null) {
+                return null;
+            }
+            if (UserDB.updateUserIfPresent(id, hashed)) {
+                return Response.status(Status.OK).entity(new Message("User Updated Successfully!")).build();
+            }
+            return Response.status(Status.NOT_FOUND).entity(new Message("User Not Found!")).build();
+        });
     }
 
     /**
@@ -153,10 +269,15 @@ public class UserApiResource {
 
     /**
      * Login a user
+     * <p>
+     * Asynchronous: the request thread goes back to Jetty while the password service hashes, the response is sent
+     * from the gRPC callback. 503 if the password service fails or takes longer than the login timeout.
+     * With blockingLogin the request thread waits instead -- cheap on virtual threads, a pinned Jetty thread per
+     * login on platform ones.
      */
     @POST
     @Path("/login")
-    public Response validateUser(UserLogin userLogin) {
+    public void validateUser(UserLogin userLogin, @Suspended AsyncResponse asyncResponse) {
         Set<ConstraintViolation<UserLogin>> violations = validator.validate(userLogin);
         User user = UserDB.getUser(userLogin.getUserId());
         if (violations.size() > 0) {
@@ -165,16 +286,71 @@ public class UserApiResource {
                 validationMessages.add(violation.getPropertyPath().toString() + ": " + violation.getMessage());
             }//End for loop
             //Return status response to client
-            return Response.status(Response.Status.BAD_REQUEST).entity(validationMessages).build();
+            asyncResponse.resume(Response.status(Response.Status.BAD_REQUEST).entity(validationMessages).build());
+            return;
         }
-        if (user != null) {
-            if (userClient.Validate(userLogin.getPassword(), user.getHashedPassword(), user.getSalt())) {
-                return Response.status(Status.OK).entity(new Message("User Logged in Successfully!")).build();
+        if (user == null) {
+            asyncResponse.resume(Response.status(Status.NOT_FOUND).entity(new Message("User Not Found!")).build());
+            return;
+        }
+        if (blockingLogin) {
+            asyncResponse.resume(blockingLogin(user, userLogin));
+            return;
+        }
+        AtomicReference<CompletableFuture<PasswordValidateResponse>> validation = new AtomicReference<>();
+        // Handler before timeout before call: a short timeout can't fire unhandled, the call can't finish first
+        asyncResponse.setTimeoutHandler(timedOut -> {
+            cancel(validation.get());
+            timedOut.resume(Response.status(Status.SERVICE_UNAVAILABLE)
+                    .entity(new Message("Login Timed Out!")).build());
+        });
+        asyncResponse.setTimeout(loginTimeoutMillis, TimeUnit.MILLISECONDS);
+        validation.set(userClient.ValidateAsync(userLogin.getPassword(), user.getHashedPassword(), user.getSalt(),
+                user.getHashParameters()));
+        if (asyncResponse.isDone()) {
+            // Timed out while the call was starting
+            cancel(validation.get());
+        }
+        validation.get().whenComplete((validateResponse, failure) -> {
+            if (failure != null) {
+                // Also reached when the timeout handler cancels the call; it has answered, so this resume is ignored
+                asyncResponse.resume(passwordServiceFailure(failure));
             } else {
-                return Response.status(Response.Status.NOT_FOUND).entity(new Message("Invalid Password!")).build();
+                asyncResponse.resume(loginResponse(user, validateResponse));
             }
-        } else
-            return Response.status(Status.NOT_FOUND).entity(new Message("User Not Found!")).build();
+        });
+    }
+
+    private Response blockingLogin(User user, UserLogin userLogin) {
+        CompletableFuture<PasswordValidateResponse> validation = userClient.ValidateAsync(userLogin.getPassword(),
+                user.getHashedPassword(), user.getSalt(), user.getHashParameters());
+        try {
+            return loginResponse(user, validation.get(loginTimeoutMillis, TimeUnit.MILLISECONDS));
+        } catch (TimeoutException ex) {
+            validation.cancel(false);
+            return Response.status(Status.SERVICE_UNAVAILABLE).entity(new Message("Login Timed Out!")).build();
+        } catch (ExecutionException ex) {
+            return passwordServiceFailure(ex.getCause());
+        } catch (InterruptedException ex) {
+            validation.cancel(false);
+            Thread.currentThread().interrupt();
+            return Response.status(Status.SERVICE_UNAVAILABLE).entity(new Message("Login Timed Out!")).build();
+        }
+    }
+
+    private static Response loginResponse(User user, PasswordValidateResponse validateResponse) {
+        if (validateResponse.getValidPassword()) {
+            if (validateResponse.getRehashed()) {
+                // Stored hash was made with outdated parameters, swap in the new one -- unless the user has
+                // changed since it was read, a password update must not be undone
+                UserDB.replaceUser(user.getUserId(), user, new User(user.getUserId(), user.getUserName(),
+                        user.getEmail(), validateResponse.getNewExpectedHash(), validateResponse.getNewSalt(),
+                        validateResponse.getNewHashParameters()));
+            }
+            return Response.status(Status.OK).entity(new Message("User Logged in Successfully!")).build();
+        } else {
+            return Response.status(Response.Status.NOT_FOUND).entity(new Message("Invalid Password!")).build();
+        }
     }
 }
 
@@ -0,0 +1,108 @@
+package ie.gmit.ds.server;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.jetty9.InstrumentedQueuedThreadPool;
+import org.eclipse.jetty.server.HttpChannel;
+import org.eclipse.jetty.util.thread.Invocable;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Jetty thread pool that hands request handling to virtual threads, as Jetty 10's virtual threads executor does.
+ * <p>
+ * Acceptors, selectors and Jetty's own housekeeping stay on the platform threads of the QueuedThreadPool this is.
+ * A selector that finds a connection readable produces a BLOCKING task to fill and handle it; those, and the
+ * redispatch of an async request (HttpChannel), each get a new virtual thread. A request blocked on the password
+ * service then costs a parked virtual thread (a few KB of heap) instead of a platform thread and its stack, and never
+ * holds up a selector.
+ * <p>
+ * tryExecute always refuses, so Jetty never asks a reserved platform thread to take over selecting while the
+ * selector's own thread runs the request (execute-produce-consume). It executes the task instead, which lands here.
+ */
+final class VirtualThreadPool extends InstrumentedQueuedThreadPool {
+
+    private final AtomicInteger running = new AtomicInteger();
+    private volatile ExecutorService virtualExecutor;
+
+    /**
+     * @param metricRegistry  for the platform pool's gauges
+     * @param maxThreads      platform threads, for acceptors, selectors and housekeeping
+     * @param minThreads      platform threads kept
+     * @param idleTimeoutMs   platform thread idle timeout
+     * @param queue           platform job queue
+     */
+    VirtualThreadPool(MetricRegistry metricRegistry, int maxThreads, int minThreads, int idleTimeoutMs,
+                      BlockingQueue<Runnable> queue) {
+        super(metricRegistry, maxThreads, minThreads, idleTimeoutMs, queue);
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        virtualExecutor = VirtualThreads.newThreadPerTaskExecutor(getName() + "-virtual-");
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        ExecutorService executor = virtualExecutor;
+        if (executor != null) {
+            executor.shutdown();
+            if (!executor.awaitTermination(getStopTimeout(), TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @Override
+    public void execute(Runnable job) {
+        if (!isRequestHandling(job)) {
+            super.execute(job);
+            return;
+        }
+        ExecutorService executor = virtualExecutor;
+        if (executor == null) {
+            throw new RejectedExecutionException(getName() + " is not started");
+        }
+        executor.execute(() -> {
+            running.incrementAndGet();
+            try {
+                job.run();
+            } finally {
+                running.decrementAndGet();
+            }
+        });
+    }
+
+    @Override
+    public boolean tryExecute(Runnable job) {
+        return false;
+    }
+
+    /**
+     * @param job from Jetty
+     * @return if it may block in application code: a blocking endpoint task or an async redispatch
+     */
+    private static boolean isRequestHandling(Runnable job) {
+        if (job instanceof HttpChannel) {
+            return true;
+        }
+        return job instanceof Invocable && Invocable.getInvocationType(job) == Invocable.InvocationType.BLOCKING;
+    }
+
+    /**
+     * @return jobs running now, each on its own virtual thread
+     */
+    int getVirtualThreads() {
+        return running.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s{virtual=%d}", super.toString(), getVirtualThreads());
+    }
+}
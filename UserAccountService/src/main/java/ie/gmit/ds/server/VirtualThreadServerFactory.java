@@ -0,0 +1,36 @@
+package ie.gmit.ds.server;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.annotation.JsonTypeName;
+import io.dropwizard.server.DefaultServerFactory;
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * The default server, but request handling on the application connectors runs on virtual threads (see
+ * VirtualThreadPool). Opt in with
+ * <pre>
+ * server:
+ *   type: virtual-threads
+ * </pre>
+ * Every other default server setting applies. maxThreads, minThreads, maxQueuedRequests and idleThreadTimeout size
+ * the platform pool the acceptors and selectors run on; it can be much smaller than for the default server. The admin
+ * connector keeps its own small platform thread pool. Needs Java 21 or later at run time; on an older JVM the server
+ * fails to start rather than quietly run on platform threads.
+ */
+@JsonTypeName("virtual-threads")
+public class VirtualThreadServerFactory extends DefaultServerFactory {
+
+    @Override
+    protected ThreadPool createThreadPool(MetricRegistry metricRegistry) {
+        VirtualThreads.checkSupported();
+        VirtualThreadPool threadPool = new VirtualThreadPool(metricRegistry, getMaxThreads(), getMinThreads(),
+                (int) getIdleThreadTimeout().toMilliseconds(),
+                new BlockingArrayQueue<>(getMinThreads(), getMaxThreads(), getMaxQueuedRequests()));
+        threadPool.setName("dw");
+        metricRegistry.register(MetricRegistry.name(VirtualThreadPool.class, "dw", "virtual"),
+                (Gauge<Integer>) threadPool::getVirtualThreads);
+        return threadPool;
+    }
+}
@@ -0,0 +1,93 @@
+package ie.gmit.ds.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads, when the JVM running us has them (Java 21, or 19/20 with --enable-preview).
+ * <p>
+ * The module is built for Java 11, so Thread.ofVirtual() and Executors.newThreadPerTaskExecutor() are looked up
+ * reflectively, once. Everything else calls through ThreadFactory and ExecutorService as usual.
+ */
+public final class VirtualThreads {
+
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method FACTORY;
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+    private static final String UNSUPPORTED_REASON;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        Method newThreadPerTaskExecutor = null;
+        String reason = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+            newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            // Present but disabled on 19/20 without --enable-preview
+            ofVirtual.invoke(null);
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            Throwable cause = ex instanceof InvocationTargetException ? ex.getCause() : ex;
+            reason = String.format("Virtual threads need Java 21 or later, this is Java %s (%s)",
+                    System.getProperty("java.version"), cause);
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+        UNSUPPORTED_REASON = reason;
+    }
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isSupported() {
+        return UNSUPPORTED_REASON == null;
+    }
+
+    /**
+     * @throws IllegalStateException if this JVM has no virtual threads, saying why
+     */
+    public static void checkSupported() {
+        if (UNSUPPORTED_REASON != null) {
+            throw new IllegalStateException(UNSUPPORTED_REASON);
+        }
+    }
+
+    /**
+     * @param prefix thread names are this followed by a counter
+     * @return factory for virtual threads
+     * @throws IllegalStateException if this JVM has no virtual threads
+     */
+    public static ThreadFactory factory(String prefix) {
+        checkSupported();
+        try {
+            Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 0L);
+            return (ThreadFactory) FACTORY.invoke(builder);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("Could not make a virtual thread factory", ex);
+        }
+    }
+
+    /**
+     * @param prefix thread names are this followed by a counter
+     * @return executor starting a new virtual thread for each task
+     * @throws IllegalStateException if this JVM has no virtual threads
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String prefix) {
+        ThreadFactory factory = factory(prefix);
+        try {
+            return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, factory);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("Could not make a virtual thread executor", ex);
+        }
+    }
+}
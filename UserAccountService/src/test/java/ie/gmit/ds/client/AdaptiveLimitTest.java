@@ -0,0 +1,73 @@
+package ie.gmit.ds.client;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * AdaptiveLimit moving up under steady latency and down on drops and rising latency
+ */
+public class AdaptiveLimitTest {
+
+    private static final int INITIAL = 20;
+    private static final int MAX = 50;
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final AdaptiveLimit limit = new AdaptiveLimit(INITIAL, 1, MAX);
+
+    @Test
+    public void growsWhileBusyAtSteadyLatencyUpToTheMax() {
+        sampleBusy(FAST, 10);
+        assertTrue(limit.toString(), limit.get() > INITIAL);
+        sampleBusy(FAST, 200);
+        assertEquals(MAX, limit.get());
+    }
+
+    @Test
+    public void doesNotGrowWhileMostlyIdle() {
+        for (int i = 0; i < 200; i++) {
+            limit.sample(FAST, INITIAL / 2 - 1, false);
+        }
+        assertEquals(INITIAL, limit.get());
+    }
+
+    @Test
+    public void dropTakesTenPercentOffDownToTheMin() {
+        limit.sample(FAST, 1, true);
+        assertEquals(18, limit.get());
+        limit.sample(FAST, 1, true);
+        assertEquals(16, limit.get());
+        for (int i = 0; i < 100; i++) {
+            limit.sample(FAST, 1, true);
+        }
+        assertEquals(1, limit.get());
+    }
+
+    @Test
+    public void shrinksWhenLatencyRisesAndGrowsBackWhenItFalls() {
+        sampleBusy(FAST, 100);
+        int grown = limit.get();
+        // Slower calls, idle or not
+        for (int i = 0; i < 200; i++) {
+            limit.sample(SLOW, 1, false);
+        }
+        int shrunk = limit.get();
+        assertTrue(grown + " -> " + limit, shrunk < INITIAL / 2);
+
+        sampleBusy(FAST, 200);
+        assertTrue(shrunk + " -> " + limit, limit.get() > shrunk);
+    }
+
+    /**
+     * Calls at latency with the node's whole limit in flight
+     */
+    private void sampleBusy(long rttNanos, int samples) {
+        for (int i = 0; i < samples; i++) {
+            limit.sample(rttNanos, limit.get(), false);
+        }
+    }
+}
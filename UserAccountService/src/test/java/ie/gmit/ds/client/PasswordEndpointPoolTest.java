@@ -0,0 +1,124 @@
+package ie.gmit.ds.client;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.health.v1.HealthCheckResponse;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static ie.gmit.ds.client.PasswordEndpointTest.call;
+import static ie.gmit.ds.client.PasswordEndpointTest.failCalls;
+import static ie.gmit.ds.client.PasswordEndpointTest.loadReport;
+import static ie.gmit.ds.client.PasswordEndpointTest.newEndpoint;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Which node PasswordEndpointPool.pick gives a call, over nodes without channels
+ */
+public class PasswordEndpointPoolTest {
+
+    private static final int PICKS = 50;
+
+    private final PasswordEndpoint a = newEndpoint("a:50551", 1);
+    private final PasswordEndpoint b = newEndpoint("b:50551", 1);
+    private final PasswordEndpointPool pool = new PasswordEndpointPool(
+            PasswordEndpointPool.Balancing.LEAST_OUTSTANDING, Arrays.asList(a, b));
+
+    @Test
+    public void nodeAtItsCallLimitIsPassedOver() {
+        a.callStarted();
+        assertAlwaysPicked(b);
+    }
+
+    @Test
+    public void everyHealthyNodeFullIsResourceExhausted() {
+        a.callStarted();
+        b.callStarted();
+        assertPickFails(Status.Code.RESOURCE_EXHAUSTED);
+
+        // Still full with the other node draining, not a reason to pile onto it
+        b.healthAnswered(HealthCheckResponse.ServingStatus.NOT_SERVING);
+        assertPickFails(Status.Code.RESOURCE_EXHAUSTED);
+    }
+
+    @Test
+    public void drainingNodeGetsNoCalls() {
+        a.healthAnswered(HealthCheckResponse.ServingStatus.NOT_SERVING);
+        assertAlwaysPicked(b);
+        a.healthAnswered(HealthCheckResponse.ServingStatus.SERVING);
+        assertSame(a, pool.pick(b));
+    }
+
+    @Test
+    public void ejectedNodeGetsNoCalls() {
+        failCalls(a, PasswordEndpoint.EJECT_AFTER_FAILURES, System.currentTimeMillis());
+        assertAlwaysPicked(b);
+    }
+
+    @Test
+    public void nothingHealthyTriesEveryNode() {
+        a.healthAnswered(HealthCheckResponse.ServingStatus.NOT_SERVING);
+        failCalls(b, PasswordEndpoint.EJECT_AFTER_FAILURES, System.currentTimeMillis());
+        assertSame(b, pool.pick(a));
+        assertSame(a, pool.pick(b));
+    }
+
+    @Test
+    public void retryGoesToAnotherNode() {
+        for (int i = 0; i < PICKS; i++) {
+            assertSame(b, pool.pick(a));
+            assertSame(a, pool.pick(b));
+        }
+    }
+
+    @Test
+    public void noNodesIsUnavailable() {
+        PasswordEndpointPool empty = new PasswordEndpointPool(PasswordEndpointPool.Balancing.LEAST_OUTSTANDING,
+                Collections.emptyList());
+        try {
+            empty.pick();
+            fail("Picked a node");
+        } catch (StatusRuntimeException ex) {
+            assertEquals(Status.Code.UNAVAILABLE, ex.getStatus().getCode());
+        }
+    }
+
+    @Test
+    public void weightedRoundRobinSharesByReportedLoad() {
+        PasswordEndpoint idle = newEndpoint("idle:50551", 0);
+        PasswordEndpoint busy = newEndpoint("busy:50551", 0);
+        PasswordEndpointPool weighted = new PasswordEndpointPool(PasswordEndpointPool.Balancing.WEIGHTED_ROUND_ROBIN,
+                Arrays.asList(idle, busy));
+        long now = System.currentTimeMillis();
+        call(idle, Status.OK, loadReport(0.25), now);
+        call(busy, Status.OK, loadReport(1.0), now);
+
+        // Weights 4 and 1
+        int idlePicks = 0;
+        for (int i = 0; i < 5 * PICKS; i++) {
+            if (weighted.pick() == idle) {
+                idlePicks++;
+            }
+        }
+        assertEquals(4 * PICKS, idlePicks);
+    }
+
+    private void assertAlwaysPicked(PasswordEndpoint expected) {
+        for (int i = 0; i < PICKS; i++) {
+            assertSame(expected, pool.pick());
+        }
+    }
+
+    private void assertPickFails(Status.Code code) {
+        try {
+            pool.pick();
+            fail("Picked a node");
+        } catch (StatusRuntimeException ex) {
+            assertEquals(code, ex.getStatus().getCode());
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package ie.gmit.ds.client;
+
+import ie.gmit.ds.OrcaLoadReport;
+import ie.gmit.ds.PasswordServiceGrpc;
+import ie.gmit.ds.PasswordValidateRequest;
+import ie.gmit.ds.PasswordValidateResponse;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.health.v1.HealthCheckResponse;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.services.HealthStatusManager;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * What PasswordEndpoint makes of call outcomes and health checks: ejection, its back-off, load reports and draining
+ */
+public class PasswordEndpointTest {
+
+    private static final long NOW = 1_000_000;
+
+    @Rule
+    public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+    @Test
+    public void ejectedAfterEjectAfterFailuresUnavailableInARow() {
+        PasswordEndpoint endpoint = newEndpoint();
+        failCalls(endpoint, PasswordEndpoint.EJECT_AFTER_FAILURES - 1, NOW);
+        // An answer in between starts the count again
+        call(endpoint, Status.INVALID_ARGUMENT, new Metadata(), NOW);
+        failCalls(endpoint, PasswordEndpoint.EJECT_AFTER_FAILURES - 1, NOW);
+        assertTrue(endpoint.isAvailable(NOW));
+
+        failCalls(endpoint, 1, NOW);
+        assertFalse(endpoint.isAvailable(NOW));
+        assertFalse(endpoint.isAvailable(NOW + PasswordEndpoint.BASE_EJECTION_MILLIS - 1));
+        assertTrue(endpoint.isAvailable(NOW + PasswordEndpoint.BASE_EJECTION_MILLIS));
+    }
+
+    @Test
+    public void ejectionBacksOffUntilTheNodeAnswers() {
+        PasswordEndpoint endpoint = newEndpoint();
+        long now = NOW;
+        long expected = PasswordEndpoint.BASE_EJECTION_MILLIS;
+        for (int i = 0; i < 6; i++) {
+            now = ejectAndWait(endpoint, now, expected);
+            expected = Math.min(2 * expected, PasswordEndpoint.MAX_EJECTION_MILLIS);
+        }
+        assertEquals(PasswordEndpoint.MAX_EJECTION_MILLIS, expected);
+
+        // Back at the base once a call gets an answer
+        call(endpoint, Status.OK, new Metadata(), now);
+        ejectAndWait(endpoint, now, PasswordEndpoint.BASE_EJECTION_MILLIS);
+    }
+
+    @Test
+    public void failuresWhileEjectedDontExtendIt() {
+        PasswordEndpoint endpoint = newEndpoint();
+        failCalls(endpoint, PasswordEndpoint.EJECT_AFTER_FAILURES, NOW);
+        // Calls already in flight when it was ejected
+        failCalls(endpoint, PasswordEndpoint.EJECT_AFTER_FAILURES, NOW + 1);
+        assertTrue(endpoint.isAvailable(NOW + PasswordEndpoint.BASE_EJECTION_MILLIS));
+    }
+
+    @Test
+    public void loadReportIsForgottenAfterItsTtl() {
+        PasswordEndpoint endpoint = newEndpoint();
+        assertEquals(-1, endpoint.getUtilization(NOW), 0);
+
+        call(endpoint, Status.OK, loadReport(0.75), NOW);
+        assertEquals(0.75, endpoint.getUtilization(NOW), 0);
+        assertEquals(0.75, endpoint.getUtilization(NOW + PasswordEndpoint.LOAD_REPORT_TTL_MILLIS), 0);
+        assertEquals(-1, endpoint.getUtilization(NOW + PasswordEndpoint.LOAD_REPORT_TTL_MILLIS + 1), 0);
+
+        // Failed calls carry reports too
+        call(endpoint, Status.RESOURCE_EXHAUSTED, loadReport(2.5), NOW + 10_000);
+        assertEquals(2.5, endpoint.getUtilization(NOW + 10_000), 0);
+    }
+
+    @Test
+    public void notServingNodeDrainsUntilItServesAgain() {
+        PasswordEndpoint endpoint = newEndpoint();
+        endpoint.healthAnswered(HealthCheckResponse.ServingStatus.NOT_SERVING);
+        assertFalse(endpoint.isAvailable(NOW));
+        endpoint.healthAnswered(HealthCheckResponse.ServingStatus.SERVING);
+        assertTrue(endpoint.isAvailable(NOW));
+    }
+
+    @Test
+    public void downAfterDownAfterFailedChecksInARow() {
+        PasswordEndpoint endpoint = newEndpoint();
+        for (int i = 1; i < PasswordEndpoint.DOWN_AFTER_FAILED_CHECKS; i++) {
+            endpoint.healthFailed(Status.DEADLINE_EXCEEDED);
+        }
+        assertTrue(endpoint.isAvailable(NOW));
+        endpoint.healthFailed(Status.UNAVAILABLE);
+        assertFalse(endpoint.isAvailable(NOW));
+
+        // No health service at all counts as serving
+        endpoint.healthFailed(Status.UNIMPLEMENTED);
+        assertTrue(endpoint.isAvailable(NOW));
+    }
+
+    @Test
+    public void adaptiveLimitLearnsOnlyFromCallsThatQueued() {
+        PasswordEndpoint endpoint = new PasswordEndpoint("node:50551", new ManagedChannel[0], 0,
+                new AdaptiveLimit(20, 1, 100));
+        // Refused before queueing, or never reached it
+        call(endpoint, Status.INVALID_ARGUMENT, new Metadata(), NOW);
+        call(endpoint, Status.UNAVAILABLE, new Metadata(), NOW);
+        call(endpoint, Status.CANCELLED, new Metadata(), NOW);
+        assertEquals(20, endpoint.getCallLimit());
+
+        call(endpoint, Status.RESOURCE_EXHAUSTED, new Metadata(), NOW);
+        assertEquals(18, endpoint.getCallLimit());
+        call(endpoint, Status.DEADLINE_EXCEEDED, new Metadata(), NOW);
+        assertEquals(16, endpoint.getCallLimit());
+    }
+
+    @Test
+    public void callsThroughTheChannelAreTracked() throws Exception {
+        String name = InProcessServerBuilder.generateName();
+        HealthStatusManager health = new HealthStatusManager();
+        grpcCleanup.register(InProcessServerBuilder.forName(name).directExecutor()
+                .addService(new Unavailable())
+                .addService(health.getHealthService())
+                .build().start());
+        ManagedChannel channel = grpcCleanup.register(InProcessChannelBuilder.forName(name).directExecutor().build());
+        PasswordEndpoint endpoint = new PasswordEndpoint(name, new ManagedChannel[]{channel}, 0, null);
+
+        for (int i = 0; i < PasswordEndpoint.EJECT_AFTER_FAILURES; i++) {
+            try {
+                endpoint.blocking().validate(PasswordValidateRequest.getDefaultInstance());
+                fail("Node answered");
+            } catch (StatusRuntimeException ex) {
+                assertEquals(Status.Code.UNAVAILABLE, ex.getStatus().getCode());
+            }
+        }
+        long now = System.currentTimeMillis();
+        assertEquals(0, endpoint.getOutstanding());
+        assertFalse(endpoint.isAvailable(now));
+        assertEquals(0.5, endpoint.getUtilization(now), 0);
+
+        health.setStatus(PasswordServiceGrpc.SERVICE_NAME, HealthCheckResponse.ServingStatus.NOT_SERVING);
+        endpoint.checkHealth(1_000);
+        assertFalse(endpoint.isAvailable(now + PasswordEndpoint.MAX_EJECTION_MILLIS));
+        health.setStatus(PasswordServiceGrpc.SERVICE_NAME, HealthCheckResponse.ServingStatus.SERVING);
+        endpoint.checkHealth(1_000);
+        assertTrue(endpoint.isAvailable(now + PasswordEndpoint.MAX_EJECTION_MILLIS));
+    }
+
+    /**
+     * Without channels, only the bookkeeping
+     */
+    static PasswordEndpoint newEndpoint() {
+        return newEndpoint("node:50551", 0);
+    }
+
+    static PasswordEndpoint newEndpoint(String address, int maxCalls) {
+        return new PasswordEndpoint(address, new ManagedChannel[0], maxCalls, null);
+    }
+
+    static void call(PasswordEndpoint endpoint, Status status, Metadata trailers, long now) {
+        int inFlight = endpoint.callStarted();
+        endpoint.callClosed(status, trailers, 1_000_000, inFlight, true, now);
+    }
+
+    static void failCalls(PasswordEndpoint endpoint, int calls, long now) {
+        for (int i = 0; i < calls; i++) {
+            call(endpoint, Status.UNAVAILABLE, new Metadata(), now);
+        }
+    }
+
+    static Metadata loadReport(double utilization) {
+        Metadata trailers = new Metadata();
+        trailers.put(PasswordEndpoint.LOAD_REPORT_KEY, OrcaLoadReport.newBuilder()
+                .setApplicationUtilization(utilization)
+                .build().toByteArray());
+        return trailers;
+    }
+
+    /**
+     * Eject at now and check it lasts expectedMillis
+     *
+     * @return when it is back
+     */
+    private static long ejectAndWait(PasswordEndpoint endpoint, long now, long expectedMillis) {
+        failCalls(endpoint, PasswordEndpoint.EJECT_AFTER_FAILURES, now);
+        assertFalse(endpoint.isAvailable(now + expectedMillis - 1));
+        assertTrue(endpoint.isAvailable(now + expectedMillis));
+        return now + expectedMillis;
+    }
+
+    /**
+     * A node that turns every Validate away, with a load report
+     */
+    private static final class Unavailable extends PasswordServiceGrpc.PasswordServiceImplBase {
+        @Override
+        public void validate(PasswordValidateRequest request,
+                             StreamObserver<PasswordValidateResponse> responseObserver) {
+            responseObserver.onError(Status.UNAVAILABLE.asRuntimeException(loadReport(0.5)));
+        }
+    }
+}
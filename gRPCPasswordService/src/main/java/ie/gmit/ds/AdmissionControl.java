@@ -0,0 +1,119 @@
+package ie.gmit.ds;
+
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.Status;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Sheds hashing work whose answer nobody will read.
+ * <p>
+ * Checked twice per request: admit() on arrival, before the work is queued, and dequeued() on the hashing thread
+ * before the hash starts. A request is turned away if its call is cancelled or past its deadline, and on arrival also
+ * if the estimated queue wait (from HashingExecutor) is longer than the time left before the deadline.
+ * A request that would start straight away is always let in, which also keeps the task time estimate fresh.
+ * Calls without a deadline are only shed when cancelled.
+ * <p>
+ * Thread-safe, one instance per service.
+ */
+final class AdmissionControl implements AdmissionMXBean {
+    private static final Logger logger = Logger.getLogger(AdmissionControl.class.getName());
+
+    private final HashingExecutor hashingExecutor;
+    private final AtomicLong shedOverloaded = new AtomicLong();
+    private final AtomicLong shedExpired = new AtomicLong();
+    private final AtomicLong shedCancelled = new AtomicLong();
+
+    AdmissionControl(HashingExecutor hashingExecutor) {
+        this.hashingExecutor = hashingExecutor;
+    }
+
+    /**
+     * On arrival, in the call's context
+     *
+     * @param context call context, holds the deadline
+     * @param tasks    hashing tasks the call will queue
+     * @param priority lane they go in
+     * @return status to fail the call with, null to go ahead
+     */
+    Status admit(Context context, int tasks, HashingExecutor.Priority priority) {
+        Status status = cancelled(context);
+        if (status != null) {
+            return status;
+        }
+        Deadline deadline = context.getDeadline();
+        if (deadline == null) {
+            return null;
+        }
+        long estimate = hashingExecutor.estimateWaitNanos(tasks, priority);
+        long remaining = deadline.timeRemaining(TimeUnit.NANOSECONDS);
+        if (estimate > remaining) {
+            count(shedOverloaded, "overloaded");
+            return Status.RESOURCE_EXHAUSTED.withDescription(String.format(
+                    "Password hashing queue wait is about %d ms, deadline is in %d ms",
+                    TimeUnit.NANOSECONDS.toMillis(estimate), TimeUnit.NANOSECONDS.toMillis(remaining)));
+        }
+        return null;
+    }
+
+    /**
+     * On the hashing thread, before hashing
+     *
+     * @param context call context captured on arrival
+     * @return status to fail the call with, null to go ahead
+     */
+    Status dequeued(Context context) {
+        return cancelled(context);
+    }
+
+    private Status cancelled(Context context) {
+        Deadline deadline = context.getDeadline();
+        if (deadline != null && deadline.isExpired()) {
+            count(shedExpired, "expired");
+            return Status.DEADLINE_EXCEEDED.withDescription("Deadline passed before hashing started");
+        }
+        if (context.isCancelled()) {
+            count(shedCancelled, "cancelled");
+            return Status.CANCELLED.withDescription("Call cancelled before hashing started");
+        }
+        return null;
+    }
+
+    private void count(AtomicLong counter, String reason) {
+        long shed = counter.incrementAndGet();
+        // Don't flood the log during a storm -- first one then every 100th
+        if (shed == 1 || shed % 100 == 0) {
+            logger.warning(String.format("Shed hashing request, %s (total %s: %d, %s)", reason, reason, shed,
+                    hashingExecutor));
+        }
+    }
+
+    @Override
+    public long getShedOverloaded() {
+        return shedOverloaded.get();
+    }
+
+    @Override
+    public long getShedExpired() {
+        return shedExpired.get();
+    }
+
+    @Override
+    public long getShedCancelled() {
+        return shedCancelled.get();
+    }
+
+    @Override
+    public double getEstimatedWaitMillis() {
+        return hashingExecutor.estimateWaitNanos(1, HashingExecutor.Priority.INTERACTIVE) / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AdmissionControl{shedOverloaded=%d, shedExpired=%d, shedCancelled=%d}",
+                getShedOverloaded(), getShedExpired(), getShedCancelled());
+    }
+}
@@ -0,0 +1,35 @@
+package ie.gmit.ds;
+
+/**
+ * Requests shed before hashing, registered as "ie.gmit.ds:type=Admission"
+ */
+public interface AdmissionMXBean {
+
+    /**
+     * Turned away because the estimated queue wait was longer than the time left before the deadline
+     *
+     * @return count
+     */
+    long getShedOverloaded();
+
+    /**
+     * Deadline had passed before the hashing started, on arrival or while queued
+     *
+     * @return count
+     */
+    long getShedExpired();
+
+    /**
+     * Client cancelled while the request was queued
+     *
+     * @return count
+     */
+    long getShedCancelled();
+
+    /**
+     * Current estimate of the queue wait for a new login (Validate)
+     *
+     * @return estimate in ms
+     */
+    double getEstimatedWaitMillis();
+}
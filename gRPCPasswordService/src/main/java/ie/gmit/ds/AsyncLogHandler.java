@@ -0,0 +1,123 @@
+package ie.gmit.ds;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * JUL handler that hands records to a background thread, which writes them to the wrapped handler.
+ * <p>
+ * Logging threads never wait for console or file I/O: records go into a bounded queue and are dropped (and counted)
+ * when it is full. The drop count is written with the next record that gets through. WARNING and SEVERE records are
+ * never dropped: when the queue is full they are written on the calling thread instead, which then waits.
+ * Once closed, records are written on the calling thread -- the JVM's shutdown hooks run alongside the one that
+ * closes the handlers, and what they log is worth the wait.
+ */
+final class AsyncLogHandler extends Handler {
+
+    static final int DEFAULT_QUEUE_CAPACITY = 8192;
+
+    private final Handler target;
+    private final BlockingQueue<LogRecord> queue;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    /**
+     * @param target        handler doing the writing
+     * @param queueCapacity max records waiting to be written
+     */
+    AsyncLogHandler(Handler target, int queueCapacity) {
+        this.target = target;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        setLevel(target.getLevel());
+        writer = new Thread(this::write, "async-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Wrap every handler of the root logger, e.g. the default ConsoleHandler
+     *
+     * @param queueCapacity per handler
+     */
+    static void install(int queueCapacity) {
+        Logger root = LogManager.getLogManager().getLogger("");
+        for (Handler handler : root.getHandlers()) {
+            if (!(handler instanceof AsyncLogHandler)) {
+                root.removeHandler(handler);
+                root.addHandler(new AsyncLogHandler(handler, queueCapacity));
+            }
+        }
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (!isLoggable(record)) {
+            return;
+        }
+        if (closed) {
+            target.publish(record);
+            target.flush();
+            return;
+        }
+        // Caller class and method are worked out from the stack, which is only right on the logging thread
+        record.getSourceClassName();
+        if (queue.offer(record)) {
+            return;
+        }
+        if (record.getLevel().intValue() >= Level.WARNING.intValue()) {
+            target.publish(record);
+            return;
+        }
+        dropped.incrementAndGet();
+    }
+
+    private void write() {
+        while (!closed || !queue.isEmpty()) {
+            LogRecord record;
+            try {
+                record = queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (record == null) {
+                continue;
+            }
+            long lost = dropped.getAndSet(0);
+            if (lost > 0) {
+                record.setMessage(record.getMessage() + " (" + lost + " log records dropped before this one)");
+            }
+            target.publish(record);
+        }
+    }
+
+    @Override
+    public void flush() {
+        target.flush();
+    }
+
+    /**
+     * Write what is queued, then close the wrapped handler
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        target.close();
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+}
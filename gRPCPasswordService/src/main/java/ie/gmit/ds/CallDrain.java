@@ -0,0 +1,100 @@
+package ie.gmit.ds;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps count of calls in flight, so shutdown can let them finish and say how many did.
+ * <p>
+ * Once draining, a call that ends with a status counts as drained, one that is cancelled (by the client giving up
+ * or by a forced shutdown) counts as aborted. Calls never answered at all are left in getInFlight. Calls can still
+ * arrive for a moment after the drain starts, on connections the client hasn't yet seen go away; getLate counts
+ * them, whatever their outcome -- they are in the drained and aborted counts too.
+ */
+final class CallDrain implements ServerInterceptor {
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder drained = new LongAdder();
+    private final LongAdder aborted = new LongAdder();
+    private final LongAdder late = new LongAdder();
+    private volatile boolean draining;
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        inFlight.incrementAndGet();
+        if (draining) {
+            late.increment();
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        ServerCall<ReqT, RespT> trackedCall = new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void close(Status status, Metadata trailers) {
+                if (done.compareAndSet(false, true)) {
+                    finished(false);
+                }
+                super.close(status, trailers);
+            }
+        };
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(next.startCall(trackedCall, headers)) {
+            @Override
+            public void onCancel() {
+                if (done.compareAndSet(false, true)) {
+                    finished(true);
+                }
+                super.onCancel();
+            }
+        };
+    }
+
+    private void finished(boolean cancelled) {
+        inFlight.decrementAndGet();
+        if (draining) {
+            (cancelled ? aborted : drained).increment();
+        }
+    }
+
+    /**
+     * Start counting calls as drained or aborted
+     *
+     * @return calls in flight now
+     */
+    int startDrain() {
+        draining = true;
+        return inFlight.get();
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return calls answered since the drain started
+     */
+    long getDrained() {
+        return drained.sum();
+    }
+
+    /**
+     * @return calls cancelled since the drain started
+     */
+    long getAborted() {
+        return aborted.sum();
+    }
+
+    /**
+     * @return calls that arrived after the drain started
+     */
+    long getLate() {
+        return late.sum();
+    }
+}
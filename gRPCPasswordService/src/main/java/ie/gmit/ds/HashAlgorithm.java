@@ -0,0 +1,239 @@
+package ie.gmit.ds;
+
+import org.bouncycastle.crypto.generators.Argon2BytesGenerator;
+import org.bouncycastle.crypto.generators.SCrypt;
+import org.bouncycastle.crypto.params.Argon2Parameters;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Supported password hashing schemes and the cost parameters each one takes.
+ * <p>
+ * Parameter keys (all ints):
+ * <ul>
+ * <li>pbkdf2-sha1, pbkdf2-sha256: i = iterations, l = hash length in bytes</li>
+ * <li>scrypt: n = CPU/memory cost (power of 2), r = block size, p = parallelism, l = hash length</li>
+ * <li>argon2id: m = memory in KiB, t = iterations, p = parallelism (lanes), l = hash length</li>
+ * </ul>
+ * The bounds here are only sanity limits on what can be configured or parsed at all. Parameters that arrive from
+ * clients on Validate are held to far less: a small multiple of the work and memory of what this server accepts
+ * (see HashCostLimit), so one request can't tie up a hashing thread or the heap.
+ */
+public enum HashAlgorithm {
+    PBKDF2_SHA1("pbkdf2-sha1", "i", "l") {
+        @Override
+        byte[] hash(char[] password, int passwordLength, byte[] salt, HashParameters parameters) {
+            return Pbkdf2Hmac.sha1().derive(password, passwordLength, salt, parameters.get("i"), parameters.get("l"));
+        }
+
+        @Override
+        void check(HashParameters parameters) {
+            checkRange(parameters, "i", 1, MAX_ITERATIONS);
+        }
+
+        @Override
+        long work(HashParameters parameters) {
+            return parameters.get("i");
+        }
+    },
+    PBKDF2_SHA256("pbkdf2-sha256", "i", "l") {
+        @Override
+        byte[] hash(char[] password, int passwordLength, byte[] salt, HashParameters parameters) {
+            return Pbkdf2Hmac.sha256().derive(password, passwordLength, salt, parameters.get("i"), parameters.get("l"));
+        }
+
+        @Override
+        void check(HashParameters parameters) {
+            checkRange(parameters, "i", 1, MAX_ITERATIONS);
+        }
+
+        @Override
+        long work(HashParameters parameters) {
+            return parameters.get("i");
+        }
+    },
+    SCRYPT("scrypt", "n", "r", "p", "l") {
+        @Override
+        byte[] hash(char[] password, int passwordLength, byte[] salt, HashParameters parameters) {
+            byte[] passwordBytes = utf8(password, passwordLength);
+            try {
+                return SCrypt.generate(passwordBytes, salt, parameters.get("n"), parameters.get("r"),
+                        parameters.get("p"), parameters.get("l"));
+            } finally {
+                Arrays.fill(passwordBytes, (byte) 0);
+            }
+        }
+
+        @Override
+        void check(HashParameters parameters) {
+            int n = parameters.get("n");
+            if (n < 2 || Integer.bitCount(n) != 1) {
+                throw new IllegalArgumentException("scrypt n must be a power of 2: " + n);
+            }
+            checkRange(parameters, "r", 1, 32);
+            checkRange(parameters, "p", 1, MAX_PARALLELISM);
+            // scrypt needs 128 * n * r bytes
+            if (memoryKib(parameters) > MAX_MEMORY_KIB) {
+                throw new IllegalArgumentException("scrypt memory over " + MAX_MEMORY_KIB + " KiB: " + parameters);
+            }
+        }
+
+        @Override
+        long work(HashParameters parameters) {
+            // p independent passes over n * r blocks, run one after another here
+            return (long) parameters.get("n") * parameters.get("r") * parameters.get("p");
+        }
+
+        @Override
+        long memoryKib(HashParameters parameters) {
+            return 128L * parameters.get("n") * parameters.get("r") / 1024;
+        }
+    },
+    ARGON2ID("argon2id", "m", "t", "p", "l") {
+        @Override
+        byte[] hash(char[] password, int passwordLength, byte[] salt, HashParameters parameters) {
+            Argon2BytesGenerator generator = new Argon2BytesGenerator();
+            generator.init(new Argon2Parameters.Builder(Argon2Parameters.ARGON2_id)
+                    .withVersion(Argon2Parameters.ARGON2_VERSION_13)
+                    .withMemoryAsKB(parameters.get("m"))
+                    .withIterations(parameters.get("t"))
+                    .withParallelism(parameters.get("p"))
+                    .withSalt(salt)
+                    .build());
+            byte[] passwordBytes = utf8(password, passwordLength);
+            try {
+                byte[] hash = new byte[parameters.get("l")];
+                generator.generateBytes(passwordBytes, hash);
+                return hash;
+            } finally {
+                Arrays.fill(passwordBytes, (byte) 0);
+            }
+        }
+
+        @Override
+        void check(HashParameters parameters) {
+            checkRange(parameters, "p", 1, MAX_PARALLELISM);
+            checkRange(parameters, "m", 8 * parameters.get("p"), MAX_MEMORY_KIB);
+            checkRange(parameters, "t", 1, 64);
+        }
+
+        @Override
+        long work(HashParameters parameters) {
+            // t passes over m KiB, the lanes run one after another here
+            return (long) parameters.get("m") * parameters.get("t");
+        }
+
+        @Override
+        long memoryKib(HashParameters parameters) {
+            return parameters.get("m");
+        }
+    };
+
+    /**
+     * Upper bounds for parameters
+     */
+    static final int MAX_ITERATIONS = 10_000_000;
+    static final int MAX_MEMORY_KIB = 1 << 20;
+    static final int MAX_PARALLELISM = 16;
+    static final int MIN_HASH_LENGTH = 16;
+    static final int MAX_HASH_LENGTH = 64;
+
+    private final String id;
+    private final List<String> keys;
+
+    HashAlgorithm(String id, String... keys) {
+        this.id = id;
+        this.keys = Collections.unmodifiableList(Arrays.asList(keys));
+    }
+
+    /**
+     * Name used in the hash parameter string
+     *
+     * @return id
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Parameter keys in the order they are written
+     *
+     * @return keys
+     */
+    public List<String> getKeys() {
+        return keys;
+    }
+
+    /**
+     * Hash the first passwordLength chars of password
+     *
+     * @param password
+     * @param passwordLength
+     * @param salt
+     * @param parameters parameters for this algorithm, already checked
+     * @return hash of parameters.get("l") bytes
+     */
+    abstract byte[] hash(char[] password, int passwordLength, byte[] salt, HashParameters parameters);
+
+    /**
+     * Throw IllegalArgumentException if the parameters are out of bounds. Hash length is checked for all.
+     *
+     * @param parameters
+     */
+    abstract void check(HashParameters parameters);
+
+    /**
+     * Hashing time, in units of this algorithm only -- comparable between parameters of one algorithm
+     *
+     * @param parameters parameters for this algorithm
+     * @return work
+     */
+    abstract long work(HashParameters parameters);
+
+    /**
+     * Memory one hash allocates
+     *
+     * @param parameters parameters for this algorithm
+     * @return KiB, 0 if next to nothing
+     */
+    long memoryKib(HashParameters parameters) {
+        return 0;
+    }
+
+    /**
+     * Find by id
+     *
+     * @param id
+     * @return algorithm
+     * @throws IllegalArgumentException if not supported
+     */
+    public static HashAlgorithm fromId(String id) {
+        for (HashAlgorithm algorithm : values()) {
+            if (algorithm.id.equals(id)) {
+                return algorithm;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported hash algorithm: " + id);
+    }
+
+    private static void checkRange(HashParameters parameters, String key, int min, int max) {
+        int value = parameters.get(key);
+        if (value < min || value > max) {
+            throw new IllegalArgumentException(String.format("%s %s must be between %d and %d: %d",
+                    parameters.getAlgorithm().id, key, min, max, value));
+        }
+    }
+
+    private static byte[] utf8(char[] password, int passwordLength) {
+        byte[] buffer = new byte[Utf8.maxBytes(passwordLength)];
+        int length = Utf8.encode(password, passwordLength, buffer);
+        if (length == buffer.length) {
+            return buffer;
+        }
+        byte[] bytes = Arrays.copyOf(buffer, length);
+        Arrays.fill(buffer, (byte) 0);
+        return bytes;
+    }
+}
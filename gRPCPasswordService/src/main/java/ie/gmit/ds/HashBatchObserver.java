@@ -0,0 +1,175 @@
+package ie.gmit.ds;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * Request side of one HashBatch stream.
+ * <p>
+ * Inbound flow control is manual: at most window requests are asked for from the client and not yet answered.
+ * A new request is only asked for when a response has gone out and the outbound side is ready, so a slow reader
+ * stops the client sending instead of piling up requests and responses on the server. Responses go out in
+ * completion order, tagged with the userId.
+ * <p>
+ * Callbacks come from the transport and from the hashing threads, everything touching the stream holds lock.
+ */
+final class HashBatchObserver implements StreamObserver<UserInputRequest> {
+    private static final Logger logger = Logger.getLogger(HashBatchObserver.class.getName());
+    private static final EventLog events = EventLog.fromSystemProperties(logger);
+
+    /**
+     * Default window per hashing thread -- enough to keep every thread busy while responses go out
+     */
+    static final int WINDOW_PER_THREAD = 2;
+
+    private final PasswordServiceImpl passwordService;
+    private final HashingExecutor hashingExecutor;
+    private final ServerCallStreamObserver<UserInputResponse> responseObserver;
+    private final Object lock = new Object();
+
+    // Guarded by lock
+    private int pending; // received, not answered yet
+    private int deferredRequests; // slots freed while the outbound side wasn't ready
+    private int hashed;
+    private boolean halfClosed;
+    private boolean closed;
+
+    /**
+     * @param hashingThreads threads the executor really has, password.hashing.threads or one per core
+     * @return window when password.hashBatch.window isn't set
+     */
+    static int defaultWindow(int hashingThreads) {
+        return hashingThreads * WINDOW_PER_THREAD;
+    }
+
+    /**
+     * Must be created inside the hashBatch call, before the first message
+     *
+     * @param passwordService  does the hashing
+     * @param hashingExecutor  pool to hash on
+     * @param responseObserver response side of the stream
+     * @param window           max requests in flight for this stream
+     */
+    HashBatchObserver(PasswordServiceImpl passwordService, HashingExecutor hashingExecutor,
+                      ServerCallStreamObserver<UserInputResponse> responseObserver, int window) {
+        this.passwordService = passwordService;
+        this.hashingExecutor = hashingExecutor;
+        this.responseObserver = responseObserver;
+        responseObserver.disableAutoInboundFlowControl();
+        responseObserver.setOnReadyHandler(this::onReady);
+        responseObserver.setOnCancelHandler(this::onCancel);
+        responseObserver.request(window);
+    }
+
+    @Override
+    public void onNext(UserInputRequest request) {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            pending++;
+        }
+        try {
+            hashingExecutor.execute(() -> hash(request));
+        } catch (RejectedExecutionException ex) {
+            // Client can resume from the userIds it already got back
+            fail(Status.RESOURCE_EXHAUSTED.withDescription("Password hashing queue is full"));
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        synchronized (lock) {
+            closed = true;
+            events.warning("hashBatchAborted", "hashes", hashed, "status", Status.fromThrowable(throwable).getCode());
+        }
+    }
+
+    @Override
+    public void onCompleted() {
+        synchronized (lock) {
+            halfClosed = true;
+            completeIfDone();
+        }
+    }
+
+    /**
+     * Runs on a hashing thread
+     *
+     * @param request
+     */
+    private void hash(UserInputRequest request) {
+        synchronized (lock) {
+            // Nobody is reading any more, don't burn the CPU
+            if (closed) {
+                return;
+            }
+        }
+        UserInputResponse userInputResponse;
+        try {
+            userInputResponse = passwordService.hashPassword(request);
+        } catch (RuntimeException ex) {
+            events.warning("hashBatch", "userId", request.getUserId(), "error", ex);
+            fail(PasswordServiceImpl.errorStatus(ex));
+            return;
+        }
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            responseObserver.onNext(userInputResponse);
+            pending--;
+            hashed++;
+            if (!halfClosed) {
+                if (responseObserver.isReady()) {
+                    responseObserver.request(1);
+                } else {
+                    deferredRequests++;
+                }
+            }
+            completeIfDone();
+        }
+    }
+
+    /**
+     * Outbound side drained -- ask for the requests held back while it was full
+     */
+    private void onReady() {
+        synchronized (lock) {
+            if (closed || halfClosed || deferredRequests == 0) {
+                return;
+            }
+            responseObserver.request(deferredRequests);
+            deferredRequests = 0;
+        }
+    }
+
+    private void onCancel() {
+        synchronized (lock) {
+            closed = true;
+        }
+    }
+
+    private void fail(Status status) {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            responseObserver.onError(status.asRuntimeException());
+        }
+    }
+
+    // Call holding lock
+    private void completeIfDone() {
+        if (halfClosed && pending == 0 && !closed) {
+            closed = true;
+            responseObserver.onCompleted();
+            events.info("hashBatch", "hashes", hashed);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package ie.gmit.ds;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Picks the PBKDF2 iteration count that takes about a target time per hash on this machine.
+ * <p>
+ * Runs once at startup, before the server takes requests: hashes with the configured parameters to warm up and
+ * measure, scales the iteration count to the target and measures again to correct. Times are the median of a few
+ * single threaded hashes, with one hashing thread per core that is also the time a hash takes under load.
+ * <p>
+ * The count is rounded to two significant figures so restarts on the same hardware normally land on the same
+ * value -- every change makes logins rehash (see PasswordServiceImpl.validatePassword).
+ * Only PBKDF2 is calibrated, other algorithms are returned unchanged.
+ */
+final class HashCostCalibrator implements HashCostMXBean {
+    private static final Logger logger = Logger.getLogger(HashCostCalibrator.class.getName());
+
+    /**
+     * Calibration never goes below this, however slow the machine
+     */
+    static final int MIN_ITERATIONS = 1000;
+    private static final int WARMUP_HASHES = 5;
+    private static final int SAMPLES = 5;
+    private static final char[] PASSWORD = "calibration-password".toCharArray();
+
+    private final long targetMillis;
+    private HashParameters parameters;
+    private double measuredMillis;
+
+    /**
+     * @param targetMillis time per hash to aim for, 0 to keep the configured parameters
+     */
+    HashCostCalibrator(long targetMillis) {
+        if (targetMillis < 0) {
+            throw new IllegalArgumentException("Calibration target must not be negative: " + targetMillis);
+        }
+        this.targetMillis = targetMillis;
+    }
+
+    /**
+     * Calibrate the iteration count of the configured parameters
+     *
+     * @param configured    parameters from the configuration, algorithm and hash length are kept
+     * @param maxIterations never above this, the most any node accepts (HashCostLimit.getMaxWork)
+     * @return parameters for new hashes
+     */
+    synchronized HashParameters calibrate(HashParameters configured, long maxIterations) {
+        HashAlgorithm algorithm = configured.getAlgorithm();
+        if (targetMillis == 0 || !calibrates(algorithm)) {
+            if (targetMillis > 0) {
+                logger.warning(String.format("Only PBKDF2 is calibrated, keeping %s", configured));
+            }
+            parameters = configured;
+            return parameters;
+        }
+        long start = System.nanoTime();
+        byte[] salt = Passwords.getNextSalt();
+        for (int i = 0; i < WARMUP_HASHES; i++) {
+            Passwords.hash(PASSWORD, PASSWORD.length, salt, configured);
+        }
+        HashParameters candidate = configured;
+        double millis = medianMillis(candidate, salt);
+        // Cost is linear in the iterations, second pass corrects for warm-up and JIT left over from the first
+        for (int pass = 0; pass < 2; pass++) {
+            int iterations = round(candidate.get("i") * (targetMillis / millis), maxIterations);
+            if (iterations == candidate.get("i")) {
+                break;
+            }
+            candidate = HashParameters.of(algorithm, iterations, configured.getHashLength());
+            millis = medianMillis(candidate, salt);
+        }
+        parameters = candidate;
+        measuredMillis = millis;
+        logger.info(String.format("Calibrated %s for %d ms: %s, %.1f ms per hash (took %d ms)", configured,
+                targetMillis, parameters, measuredMillis, (System.nanoTime() - start) / 1_000_000));
+        return parameters;
+    }
+
+    private static double medianMillis(HashParameters parameters, byte[] salt) {
+        long[] samples = new long[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            long start = System.nanoTime();
+            Passwords.hash(PASSWORD, PASSWORD.length, salt, parameters);
+            samples[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(samples);
+        return Math.max(samples[SAMPLES / 2], 1) / 1e6;
+    }
+
+    /**
+     * Two significant figures, rounded down at the top, within bounds
+     */
+    private static int round(double iterations, long maxIterations) {
+        long max = Math.max(Math.min(maxIterations, HashAlgorithm.MAX_ITERATIONS), MIN_ITERATIONS);
+        long value = (long) Math.min(Math.max(iterations, MIN_ITERATIONS), max);
+        long step = 1;
+        while (value / step >= 100) {
+            step *= 10;
+        }
+        long rounded = Math.round((double) value / step) * step;
+        return (int) (rounded > max ? rounded - step : rounded);
+    }
+
+    /**
+     * @param algorithm any
+     * @return if calibrate() scales its cost, only PBKDF2's iterations are
+     */
+    static boolean calibrates(HashAlgorithm algorithm) {
+        return algorithm == HashAlgorithm.PBKDF2_SHA1 || algorithm == HashAlgorithm.PBKDF2_SHA256;
+    }
+
+    @Override
+    public synchronized String getHashParameters() {
+        return String.valueOf(parameters);
+    }
+
+    @Override
+    public synchronized int getIterations() {
+        if (parameters == null || !parameters.getAlgorithm().getKeys().contains("i")) {
+            return 0;
+        }
+        return parameters.get("i");
+    }
+
+    @Override
+    public long getTargetMillis() {
+        return targetMillis;
+    }
+
+    @Override
+    public synchronized double getMeasuredMillis() {
+        return measuredMillis;
+    }
+}
@@ -0,0 +1,165 @@
+package ie.gmit.ds;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How costly the hash parameters a client sends on Validate and ValidateBatch may be.
+ * <p>
+ * Stored hashes come back with whatever parameters they were made with -- on any node -- so the server can't insist
+ * on its own. Instead they must be of an algorithm this server accepts: the configured one, LEGACY, one listed in
+ * password.hash.accepted (e.g. the previous setting, while users still log in with hashes made under it) or one with
+ * a ceiling in password.hash.maxCost. And they may cost no more than that algorithm's limit in work and in memory.
+ * <p>
+ * Limits come only from settings the whole fleet shares, never from what this node calibrated, so a hash made on
+ * one node is accepted by every other. An algorithm's limit is its password.hash.maxCost ceiling when it has one,
+ * otherwise maxCostFactor times its most costly configured profile. A calibrated algorithm without a ceiling takes
+ * whatever the calibrator may pick on any node, up to HashAlgorithm.MAX_ITERATIONS; with a ceiling the calibrator
+ * stays under it (see getMaxWork).
+ * <p>
+ * Anything else is refused with INVALID_ARGUMENT before it is queued. Immutable.
+ */
+final class HashCostLimit {
+
+    static final int DEFAULT_MAX_COST_FACTOR = 2;
+
+    private final Map<HashAlgorithm, Limit> limits = new EnumMap<>(HashAlgorithm.class);
+
+    /**
+     * @param configured    password.hash.parameters as configured, before calibration
+     * @param calibrated    if each node calibrates the iterations of the configured algorithm
+     * @param accepted      other parameters stored hashes may have been made with
+     * @param maxCostFactor how many times the work and memory of a profile a client may ask for, at least 1
+     * @param ceilings      most work and memory for an algorithm, at most one each, over any other limit
+     * @throws IllegalArgumentException on a bad factor, two ceilings for one algorithm, or a ceiling below the
+     *                                  configured parameters
+     */
+    HashCostLimit(HashParameters configured, boolean calibrated, Collection<HashParameters> accepted,
+                  int maxCostFactor, Collection<HashParameters> ceilings) {
+        if (maxCostFactor < 1) {
+            throw new IllegalArgumentException("Hash cost factor must be at least 1: " + maxCostFactor);
+        }
+        List<HashParameters> profiles = new ArrayList<>(accepted.size() + 2);
+        profiles.add(configured);
+        profiles.add(HashParameters.LEGACY);
+        profiles.addAll(accepted);
+        for (HashParameters profile : profiles) {
+            HashAlgorithm algorithm = profile.getAlgorithm();
+            Limit limit = new Limit(maxCostFactor * algorithm.work(profile),
+                    maxCostFactor * algorithm.memoryKib(profile), maxCostFactor + "x");
+            limits.merge(algorithm, limit, Limit::max);
+        }
+        // Calibration can pick any iterations on another node, this one's only says where it landed here
+        boolean scaled = calibrated && HashCostCalibrator.calibrates(configured.getAlgorithm());
+        if (scaled) {
+            HashAlgorithm algorithm = configured.getAlgorithm();
+            limits.merge(algorithm, new Limit(HashAlgorithm.MAX_ITERATIONS, algorithm.memoryKib(configured),
+                    "calibrated"), Limit::max);
+        }
+        Map<HashAlgorithm, HashParameters> ceilingOf = new EnumMap<>(HashAlgorithm.class);
+        for (HashParameters ceiling : ceilings) {
+            HashAlgorithm algorithm = ceiling.getAlgorithm();
+            if (ceilingOf.put(algorithm, ceiling) != null) {
+                throw new IllegalArgumentException(String.format("Two hash cost ceilings for %s: %s",
+                        algorithm.getId(), ceilings));
+            }
+            limits.put(algorithm, new Limit(algorithm.work(ceiling), algorithm.memoryKib(ceiling),
+                    "max " + ceiling));
+        }
+        // Not calibrated, this node's own hashes must pass
+        if (!scaled && !limits.get(configured.getAlgorithm()).allows(configured)) {
+            throw new IllegalArgumentException(String.format("Hash parameters %s cost more than %s", configured,
+                    limits.get(configured.getAlgorithm())));
+        }
+    }
+
+    /**
+     * Only the configured parameters and LEGACY, default factor, no calibration or ceilings
+     *
+     * @param current parameters new hashes are made with
+     */
+    HashCostLimit(HashParameters current) {
+        this(current, false, Collections.emptyList(), DEFAULT_MAX_COST_FACTOR, Collections.emptyList());
+    }
+
+    /**
+     * Parse parameters a client sent and check they are affordable
+     *
+     * @param text hash parameters from the request, empty for LEGACY
+     * @return parameters
+     * @throws IllegalArgumentException if malformed, unsupported or too costly
+     */
+    HashParameters parse(String text) {
+        HashParameters parameters = HashParameters.parse(text);
+        check(parameters);
+        return parameters;
+    }
+
+    /**
+     * @param parameters from a client
+     * @throws IllegalArgumentException if the algorithm isn't accepted or the parameters cost more than its limit
+     */
+    void check(HashParameters parameters) {
+        Limit limit = limits.get(parameters.getAlgorithm());
+        if (limit == null) {
+            throw new IllegalArgumentException(String.format("Hash algorithm %s is not accepted here: %s",
+                    parameters.getAlgorithm().getId(), parameters));
+        }
+        if (!limit.allows(parameters)) {
+            throw new IllegalArgumentException(String.format("Hash parameters %s cost more than %s", parameters,
+                    limit));
+        }
+    }
+
+    /**
+     * For the calibrator, which must not pick parameters another node would refuse
+     *
+     * @param algorithm any
+     * @return most work accepted for it, 0 if not accepted
+     */
+    long getMaxWork(HashAlgorithm algorithm) {
+        Limit limit = limits.get(algorithm);
+        return limit == null ? 0 : limit.work;
+    }
+
+    @Override
+    public String toString() {
+        List<String> text = new ArrayList<>(limits.size());
+        limits.forEach((algorithm, limit) -> text.add(algorithm.getId() + " " + limit));
+        return String.format("HashCostLimit{%s}", String.join(", ", text));
+    }
+
+    /**
+     * Work and memory allowed for one algorithm, and where they come from
+     */
+    private static final class Limit {
+        final long work;
+        final long memoryKib;
+        final String reason;
+
+        Limit(long work, long memoryKib, String reason) {
+            this.work = work;
+            this.memoryKib = memoryKib;
+            this.reason = reason;
+        }
+
+        boolean allows(HashParameters parameters) {
+            HashAlgorithm algorithm = parameters.getAlgorithm();
+            return algorithm.work(parameters) <= work && algorithm.memoryKib(parameters) <= memoryKib;
+        }
+
+        static Limit max(Limit a, Limit b) {
+            return new Limit(Math.max(a.work, b.work), Math.max(a.memoryKib, b.memoryKib),
+                    a.reason.equals(b.reason) ? a.reason : a.reason + "/" + b.reason);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("work<=%d memory<=%d KiB (%s)", work, memoryKib, reason);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package ie.gmit.ds;
+
+/**
+ * Cost of new hashes as picked at startup, registered as "ie.gmit.ds:type=HashCost" (jconsole, JMX exporters)
+ */
+public interface HashCostMXBean {
+
+    /**
+     * Parameters new hashes are made with
+     *
+     * @return canonical parameter string
+     */
+    String getHashParameters();
+
+    /**
+     * PBKDF2 iteration count of new hashes
+     *
+     * @return iterations, 0 if the algorithm isn't PBKDF2
+     */
+    int getIterations();
+
+    /**
+     * Target time per hash the cost was calibrated for
+     *
+     * @return target in ms, 0 if not calibrated
+     */
+    long getTargetMillis();
+
+    /**
+     * Time one hash took at startup with the chosen parameters
+     *
+     * @return measured time in ms, 0 if not calibrated
+     */
+    double getMeasuredMillis();
+}
@@ -0,0 +1,169 @@
+package ie.gmit.ds;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Algorithm and cost parameters of a stored hash, e.g. "pbkdf2-sha1$i=10000,l=32" or "argon2id$m=19456,t=2,p=1,l=32".
+ * <p>
+ * Sent with every hash (UserInputResponse.hashParameters) and stored next to it, so the server can verify any
+ * supported scheme and the cost for new hashes can change without breaking old ones.
+ * An empty string means LEGACY -- hashes stored before the parameters were sent.
+ * <p>
+ * Immutable.
+ */
+public final class HashParameters {
+
+    /**
+     * What every hash was before the parameters existed
+     */
+    public static final HashParameters LEGACY = of(HashAlgorithm.PBKDF2_SHA1, Passwords.ITERATIONS, Passwords.HASH_LENGTH);
+
+    // Clients send the same few strings over and over, don't parse them every time
+    private static final int MAX_CACHED = 64;
+    private static final ConcurrentMap<String, HashParameters> PARSED = new ConcurrentHashMap<>();
+
+    private final HashAlgorithm algorithm;
+    private final int[] values;
+    private final String text;
+
+    private HashParameters(HashAlgorithm algorithm, int[] values) {
+        this.algorithm = algorithm;
+        this.values = values;
+        StringBuilder sb = new StringBuilder(algorithm.getId()).append('$');
+        List<String> keys = algorithm.getKeys();
+        for (int i = 0; i < keys.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(keys.get(i)).append('=').append(values[i]);
+        }
+        this.text = sb.toString();
+    }
+
+    /**
+     * Parameters from values in the algorithm's key order (see HashAlgorithm)
+     *
+     * @param algorithm
+     * @param values
+     * @return parameters
+     * @throws IllegalArgumentException if the values are missing or out of bounds
+     */
+    public static HashParameters of(HashAlgorithm algorithm, int... values) {
+        if (values.length != algorithm.getKeys().size()) {
+            throw new IllegalArgumentException(algorithm.getId() + " takes parameters " + algorithm.getKeys());
+        }
+        HashParameters parameters = new HashParameters(algorithm, values.clone());
+        int length = parameters.get("l");
+        if (length < HashAlgorithm.MIN_HASH_LENGTH || length > HashAlgorithm.MAX_HASH_LENGTH) {
+            throw new IllegalArgumentException(String.format("Hash length must be between %d and %d: %d",
+                    HashAlgorithm.MIN_HASH_LENGTH, HashAlgorithm.MAX_HASH_LENGTH, length));
+        }
+        algorithm.check(parameters);
+        return parameters;
+    }
+
+    /**
+     * Parse "algorithm$key=value,key=value", keys in any order. Empty means LEGACY.
+     *
+     * @param text
+     * @return parameters
+     * @throws IllegalArgumentException if malformed, unsupported or out of bounds
+     */
+    public static HashParameters parse(String text) {
+        if (text == null || text.isEmpty()) {
+            return LEGACY;
+        }
+        HashParameters cached = PARSED.get(text);
+        if (cached != null) {
+            return cached;
+        }
+        int dollar = text.indexOf('$');
+        if (dollar < 0) {
+            throw new IllegalArgumentException("Malformed hash parameters: " + text);
+        }
+        HashAlgorithm algorithm = HashAlgorithm.fromId(text.substring(0, dollar));
+        List<String> keys = algorithm.getKeys();
+        int[] values = new int[keys.size()];
+        boolean[] seen = new boolean[keys.size()];
+        for (String pair : text.substring(dollar + 1).split(",")) {
+            int equals = pair.indexOf('=');
+            int index = equals < 0 ? -1 : keys.indexOf(pair.substring(0, equals));
+            if (index < 0 || seen[index]) {
+                throw new IllegalArgumentException("Malformed hash parameters: " + text);
+            }
+            try {
+                values[index] = Integer.parseInt(pair.substring(equals + 1));
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Malformed hash parameters: " + text);
+            }
+            seen[index] = true;
+        }
+        for (boolean found : seen) {
+            if (!found) {
+                throw new IllegalArgumentException(algorithm.getId() + " takes parameters " + keys + ": " + text);
+            }
+        }
+        HashParameters parameters = of(algorithm, values);
+        if (PARSED.size() < MAX_CACHED) {
+            PARSED.putIfAbsent(text, parameters);
+        }
+        return parameters;
+    }
+
+    public HashAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Value of a parameter
+     *
+     * @param key one of getAlgorithm().getKeys()
+     * @return value
+     */
+    public int get(String key) {
+        int index = algorithm.getKeys().indexOf(key);
+        if (index < 0) {
+            throw new IllegalArgumentException(algorithm.getId() + " has no parameter " + key);
+        }
+        return values[index];
+    }
+
+    /**
+     * Hash length in bytes
+     *
+     * @return length
+     */
+    public int getHashLength() {
+        return get("l");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof HashParameters)) {
+            return false;
+        }
+        HashParameters that = (HashParameters) o;
+        return algorithm == that.algorithm && Arrays.equals(values, that.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * algorithm.hashCode() + Arrays.hashCode(values);
+    }
+
+    /**
+     * Canonical form, the one sent to clients
+     *
+     * @return parameter string
+     */
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,30 @@
+package ie.gmit.ds;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Compute time of every Passwords.hash call (so every validation too), per algorithm.
+ * <p>
+ * Static like Passwords: one set for the process.
+ */
+final class HashTimings {
+    private static final Map<HashAlgorithm, LatencyHistogram> COMPUTE = new EnumMap<>(HashAlgorithm.class);
+
+    static {
+        for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+            COMPUTE.put(algorithm, new LatencyHistogram());
+        }
+    }
+
+    private HashTimings() {
+    }
+
+    static void record(HashAlgorithm algorithm, long nanos) {
+        COMPUTE.get(algorithm).record(nanos);
+    }
+
+    static LatencyHistogram compute(HashAlgorithm algorithm) {
+        return COMPUTE.get(algorithm);
+    }
+}
@@ -0,0 +1,91 @@
+package ie.gmit.ds;
+
+import com.google.protobuf.ByteString;
+
+import java.util.Arrays;
+
+/**
+ * Scratch buffers owned by one hashing thread.
+ * <p>
+ * The request strings/bytes are copied into these instead of fresh arrays on every call.
+ * Always call clear() when done so no password is left behind for the next request.
+ */
+final class HashingBuffers {
+    private static final ThreadLocal<HashingBuffers> BUFFERS = ThreadLocal.withInitial(HashingBuffers::new);
+
+    private char[] password = new char[64];
+    private int passwordLength;
+    private final byte[] salt = new byte[Passwords.SALT_LENGTH];
+    private final byte[] expectedHash = new byte[Passwords.HASH_LENGTH];
+
+    private HashingBuffers() {
+    }
+
+    /**
+     * Buffers for the calling thread
+     *
+     * @return buffers
+     */
+    static HashingBuffers get() {
+        return BUFFERS.get();
+    }
+
+    /**
+     * Copy the password into the char buffer, grows the buffer if needed
+     *
+     * @param value
+     * @return the buffer, only the first passwordLength() chars are the password
+     */
+    char[] password(String value) {
+        int length = value.length();
+        if (length > password.length) {
+            Arrays.fill(password, '\0');
+            password = new char[Math.max(length, password.length * 2)];
+        }
+        value.getChars(0, length, password, 0);
+        passwordLength = length;
+        return password;
+    }
+
+    int passwordLength() {
+        return passwordLength;
+    }
+
+    /**
+     * Copy salt into the buffer. Salts that aren't the standard length get their own array.
+     *
+     * @param value
+     * @return salt bytes
+     */
+    byte[] salt(ByteString value) {
+        return copy(value, salt);
+    }
+
+    /**
+     * Copy expected hash into the buffer. Hashes that aren't the standard length get their own array.
+     *
+     * @param value
+     * @return hash bytes
+     */
+    byte[] expectedHash(ByteString value) {
+        return copy(value, expectedHash);
+    }
+
+    /**
+     * Zero everything that was written
+     */
+    void clear() {
+        Arrays.fill(password, 0, passwordLength, '\0');
+        passwordLength = 0;
+        Arrays.fill(salt, (byte) 0);
+        Arrays.fill(expectedHash, (byte) 0);
+    }
+
+    private static byte[] copy(ByteString value, byte[] buffer) {
+        if (value.size() != buffer.length) {
+            return value.toByteArray();
+        }
+        value.copyTo(buffer, 0);
+        return buffer;
+    }
+}
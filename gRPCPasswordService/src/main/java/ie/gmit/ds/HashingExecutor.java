@@ -0,0 +1,255 @@
+package ie.gmit.ds;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Bounded worker pool for the CPU heavy hashing work (PBKDF2).
+ * <p>
+ * Fixed number of threads (one per core by default) with a bounded queue in front of them.
+ * When the queue is full the task is rejected straight away instead of spawning more threads,
+ * so the service can answer RESOURCE_EXHAUSTED rather than thrash the CPU.
+ * <p>
+ * The queue has a lane per Priority (see PriorityLaneQueue): logins go ahead of queued account creation.
+ */
+public class HashingExecutor {
+    private static final Logger logger = Logger.getLogger(HashingExecutor.class.getName());
+
+    /**
+     * Defaults -- can be overridden with -Dpassword.hashing.threads and -Dpassword.hashing.queueCapacity.
+     * The queue capacity is per thread actually configured, so AdmissionControl's wait estimate holds for a full queue
+     */
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_QUEUE_CAPACITY_PER_THREAD = 32;
+    /**
+     * While logins keep coming, one task in this many still goes to queued BACKGROUND work
+     * -- -Dpassword.hashing.backgroundEvery
+     */
+    public static final int DEFAULT_BACKGROUND_EVERY = 8;
+
+    /**
+     * Which queue lane a task goes in
+     */
+    public enum Priority {
+        /**
+         * Someone is waiting on it -- Validate
+         */
+        INTERACTIVE,
+        /**
+         * Can wait behind logins -- Hash, account creation and updates
+         */
+        BACKGROUND
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final PriorityLaneQueue queue;
+    private final int queueCapacity;
+    private final AtomicLong rejectedCount = new AtomicLong();
+    /**
+     * Moving average of the time one hashing task takes, 0 until the first one finishes
+     */
+    private final AtomicLong averageTaskNanos = new AtomicLong();
+    /**
+     * Time from queueing to a thread picking the task up, per lane
+     */
+    private final Map<Priority, LatencyHistogram> queueWait = new EnumMap<>(Priority.class);
+    private final HashingThreadFactory threadFactory = new HashingThreadFactory();
+
+    /**
+     * Constructor -- default share for BACKGROUND work
+     *
+     * @param threads       number of hashing threads, normally the number of cores
+     * @param queueCapacity max number of tasks waiting for a thread, per priority
+     */
+    public HashingExecutor(int threads, int queueCapacity) {
+        this(threads, queueCapacity, DEFAULT_BACKGROUND_EVERY);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param threads         number of hashing threads, normally the number of cores
+     * @param queueCapacity   max number of tasks waiting for a thread, per priority
+     * @param backgroundEvery while INTERACTIVE work is queued, one task in this many is BACKGROUND work if any waits
+     */
+    public HashingExecutor(int threads, int queueCapacity, int backgroundEvery) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Hashing threads must be at least 1: " + threads);
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Hashing queue capacity must be at least 1: " + queueCapacity);
+        }
+        this.queueCapacity = queueCapacity;
+        this.queue = new PriorityLaneQueue(queueCapacity, backgroundEvery);
+        for (Priority priority : Priority.values()) {
+            queueWait.put(priority, new LatencyHistogram());
+        }
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                queue, threadFactory, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Build from system properties, falling back to the defaults
+     *
+     * @return executor
+     */
+    public static HashingExecutor fromSystemProperties() {
+        int threads = Integer.getInteger("password.hashing.threads", DEFAULT_THREADS);
+        return new HashingExecutor(threads,
+                Integer.getInteger("password.hashing.queueCapacity", threads * DEFAULT_QUEUE_CAPACITY_PER_THREAD),
+                Integer.getInteger("password.hashing.backgroundEvery", DEFAULT_BACKGROUND_EVERY));
+    }
+
+    /**
+     * Queue a BACKGROUND task for a hashing thread
+     *
+     * @param task
+     * @throws RejectedExecutionException if the queue is full or the executor is shut down
+     */
+    public void execute(Runnable task) {
+        execute(task, Priority.BACKGROUND);
+    }
+
+    /**
+     * Queue a task for a hashing thread
+     *
+     * @param task
+     * @param priority lane to queue it in
+     * @throws RejectedExecutionException if the lane is full or the executor is shut down
+     */
+    public void execute(Runnable task, Priority priority) {
+        try {
+            executor.execute(new PriorityLaneQueue.Task(task, priority, queueWait.get(priority)));
+        } catch (RejectedExecutionException ex) {
+            long rejected = rejectedCount.incrementAndGet();
+            // Don't flood the log during a storm -- first one then every 100th
+            if (rejected == 1 || rejected % 100 == 0) {
+                logger.warning(String.format("Hashing task rejected (total rejected: %d, %s queue depth: %d/%d)",
+                        rejected, priority, getQueueDepth(priority), queueCapacity));
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Report how long a hashing task took, feeds the queue wait estimate
+     *
+     * @param nanos
+     */
+    public void recordTaskTime(long nanos) {
+        // Weight 1/8 -- follows a change of hash cost or load within a few dozen tasks
+        averageTaskNanos.accumulateAndGet(nanos, (average, sample) -> average == 0 ? sample : average + (sample - average) / 8);
+    }
+
+    LatencyHistogram getQueueWait(Priority priority) {
+        return queueWait.get(priority);
+    }
+
+    public long getAverageTaskNanos() {
+        return averageTaskNanos.get();
+    }
+
+    /**
+     * Rough time until tasks queued now would all have started: the tasks ahead of them spread over the threads,
+     * plus the earlier rounds of their own if there are more tasks than threads.
+     * INTERACTIVE tasks only wait for queued INTERACTIVE work and the BACKGROUND share.
+     *
+     * @param tasks    number of tasks about to be queued together
+     * @param priority lane they go in
+     * @return estimate in nanos, 0 if a thread is free or no task time has been recorded yet
+     */
+    public long estimateWaitNanos(int tasks, Priority priority) {
+        long average = averageTaskNanos.get();
+        int threads = getThreads();
+        int interactive = queue.size(Priority.INTERACTIVE);
+        int background = queue.size(Priority.BACKGROUND);
+        int queued = priority == Priority.INTERACTIVE
+                ? interactive + Math.min(background, interactive / queue.getBackgroundEvery())
+                : interactive + background;
+        int ahead = Math.max(0, queued + getBusyThreads() - threads + 1);
+        int ownRounds = Math.max(0, (tasks - 1) / threads);
+        return (long) ((double) ahead / threads * average) + ownRounds * average;
+    }
+
+    public int getThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Threads running a task, other than the calling thread if it is one of these -- a task reading the figures as
+     * it finishes doesn't count itself
+     *
+     * @return count
+     */
+    public int getBusyThreads() {
+        int active = executor.getActiveCount();
+        return threadFactory.threads.contains(Thread.currentThread()) ? Math.max(active - 1, 0) : active;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getQueueDepth(Priority priority) {
+        return queue.size(priority);
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getCompletedCount() {
+        return executor.getCompletedTaskCount();
+    }
+
+    /**
+     * Stop taking new work, queued work still runs
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("HashingExecutor{threads=%d, active=%d, queueDepth=%d+%d, queueCapacity=%d, rejected=%d, completed=%d, averageTaskMillis=%.1f}",
+                getThreads(), getActiveCount(), getQueueDepth(Priority.INTERACTIVE), getQueueDepth(Priority.BACKGROUND),
+                queueCapacity, getRejectedCount(), getCompletedCount(), getAverageTaskNanos() / 1e6);
+    }
+
+    /**
+     * Named daemon threads -- same as the grpc library threads
+     */
+    private static class HashingThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+        private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "password-hashing-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            threads.add(thread);
+            return thread;
+        }
+    }
+}
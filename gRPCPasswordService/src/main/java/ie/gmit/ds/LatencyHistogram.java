@@ -0,0 +1,50 @@
+package ie.gmit.ds;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency distribution since startup, 3 significant digits.
+ * <p>
+ * Recording is wait-free (HdrHistogram Recorder), so it can sit on the hashing and transport threads.
+ * Each snapshot folds what was recorded since the last one into the running total. The exact sum of everything
+ * recorded is kept alongside, the histogram only holds values to 3 digits.
+ */
+final class LatencyHistogram {
+    private final Recorder recorder = new Recorder(3);
+    private final LongAdder sumNanos = new LongAdder();
+    // Guarded by this
+    private final Histogram total = new Histogram(3);
+    private Histogram interval;
+
+    /**
+     * @param nanos
+     */
+    void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        recorder.recordValue(value);
+        sumNanos.add(value);
+    }
+
+    /**
+     * Exact, read without a lock, so a call or two may be in it but not yet in a snapshot
+     *
+     * @return nanoseconds recorded since startup
+     */
+    long getSumNanos() {
+        return sumNanos.sum();
+    }
+
+    /**
+     * Everything recorded so far
+     *
+     * @return copy, the caller's to keep
+     */
+    synchronized Histogram snapshot() {
+        interval = recorder.getIntervalHistogram(interval);
+        total.add(interval);
+        return total.copy();
+    }
+}
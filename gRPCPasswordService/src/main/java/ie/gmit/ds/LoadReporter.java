@@ -0,0 +1,102 @@
+package ie.gmit.ds;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ORCA-style load reports: every PasswordService call carries an OrcaLoadReport in its trailers
+ * ("endpoint-load-metrics-bin"), so clients can send each call to the least loaded node.
+ * <p>
+ * Queue depth and hashing pool use are read when the call closes. CPU is sampled in the background, asking the OS
+ * costs too much to do per call.
+ */
+final class LoadReporter implements ServerInterceptor {
+
+    static final Metadata.Key<byte[]> LOAD_REPORT_KEY =
+            Metadata.Key.of("endpoint-load-metrics-bin", Metadata.BINARY_BYTE_MARSHALLER);
+    private static final long CPU_SAMPLE_MILLIS = 500;
+
+    private final HashingExecutor hashingExecutor;
+    private final AdmissionMXBean admission;
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "load-report-cpu");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile double cpuUtilization;
+
+    /**
+     * @param hashingExecutor pool and queue to report on
+     * @param admission       wait estimate
+     */
+    LoadReporter(HashingExecutor hashingExecutor, AdmissionMXBean admission) {
+        this.hashingExecutor = hashingExecutor;
+        this.admission = admission;
+    }
+
+    void start() {
+        sampler.scheduleAtFixedRate(this::sampleCpu, 0, CPU_SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        sampler.shutdownNow();
+    }
+
+    private void sampleCpu() {
+        double load = -1;
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            load = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad();
+        }
+        if (load < 0) {
+            // Not measured (yet), the load average per core is the next best thing
+            load = os.getSystemLoadAverage() / os.getAvailableProcessors();
+        }
+        cpuUtilization = Math.min(Math.max(load, 0), 1);
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        return next.startCall(new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void close(Status status, Metadata trailers) {
+                trailers.put(LOAD_REPORT_KEY, report().toByteArray());
+                super.close(status, trailers);
+            }
+        }, headers);
+    }
+
+    /**
+     * Load now
+     *
+     * @return report
+     */
+    OrcaLoadReport report() {
+        int threads = hashingExecutor.getThreads();
+        // Reports are mostly written on a hashing thread, as its task finishes
+        int active = hashingExecutor.getBusyThreads();
+        int queued = hashingExecutor.getQueueDepth();
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        long maxHeap = heap.getMax() > 0 ? heap.getMax() : heap.getCommitted();
+        return OrcaLoadReport.newBuilder()
+                .setCpuUtilization(cpuUtilization)
+                .setMemUtilization(maxHeap > 0 ? (double) heap.getUsed() / maxHeap : 0)
+                .putUtilization("hashing", Math.min((double) active / threads, 1))
+                .putNamedMetrics("queue_depth", queued)
+                .putNamedMetrics("estimated_wait_ms", admission.getEstimatedWaitMillis())
+                .setApplicationUtilization((double) (active + queued) / threads)
+                .build();
+    }
+}
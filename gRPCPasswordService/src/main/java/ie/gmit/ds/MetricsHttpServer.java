@@ -0,0 +1,190 @@
+package ie.gmit.ds;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * Scrape endpoint: GET http://localhost:port/metrics in the Prometheus text format.
+ * <p>
+ * Only listens on the loopback interface, a local agent is expected to scrape it.
+ * Latencies are summaries in seconds, cumulative since startup:
+ * <ul>
+ * <li>password_rpc_latency_seconds -- per gRPC method, headers in to status out (MetricsInterceptor)</li>
+ * <li>password_queue_wait_seconds -- per priority lane, queued to picked up by a hashing thread</li>
+ * <li>password_hash_compute_seconds -- per algorithm, one Passwords.hash call</li>
+ * </ul>
+ * so a slow login can be put down to the network and transport, the queue or the hashing itself.
+ */
+final class MetricsHttpServer {
+    private static final Logger logger = Logger.getLogger(MetricsHttpServer.class.getName());
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final HttpServer server;
+    private final MetricsInterceptor rpcMetrics;
+    private final HashingExecutor hashingExecutor;
+    private final AdmissionMXBean admission;
+    private final HashCostMXBean hashCost;
+
+    /**
+     * @param port            port on localhost
+     * @param rpcMetrics      per method counts and latencies
+     * @param hashingExecutor queue and pool state
+     * @param admission       shed requests
+     * @param hashCost        parameters of new hashes
+     * @throws IOException if the port can't be bound
+     */
+    MetricsHttpServer(int port, MetricsInterceptor rpcMetrics, HashingExecutor hashingExecutor,
+                      AdmissionMXBean admission, HashCostMXBean hashCost) throws IOException {
+        this.rpcMetrics = rpcMetrics;
+        this.hashingExecutor = hashingExecutor;
+        this.admission = admission;
+        this.hashCost = hashCost;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", this::handle);
+    }
+
+    void start() {
+        server.start();
+        logger.info(String.format("Metrics at http://%s:%d/metrics", server.getAddress().getHostString(),
+                server.getAddress().getPort()));
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Current values of everything
+     *
+     * @return Prometheus text format
+     */
+    String render() {
+        StringBuilder sb = new StringBuilder(4096);
+        // Sorted so the output is stable between scrapes
+        Map<String, MetricsInterceptor.MethodMetrics> methods = new TreeMap<>(rpcMetrics.getMethods());
+
+        type(sb, "password_rpc_started_total", "counter", "Calls received");
+        for (Map.Entry<String, MetricsInterceptor.MethodMetrics> method : methods.entrySet()) {
+            sample(sb, "password_rpc_started_total", "method=\"" + method.getKey() + "\"",
+                    method.getValue().started.sum());
+        }
+        type(sb, "password_rpc_completed_total", "counter", "Calls finished, by status code");
+        for (Map.Entry<String, MetricsInterceptor.MethodMetrics> method : methods.entrySet()) {
+            new TreeMap<>(method.getValue().completed).forEach((code, count) -> sample(sb, "password_rpc_completed_total",
+                    "method=\"" + method.getKey() + "\",code=\"" + code + "\"", count.sum()));
+        }
+        type(sb, "password_rpc_latency_seconds", "summary", "Server side call latency");
+        for (Map.Entry<String, MetricsInterceptor.MethodMetrics> method : methods.entrySet()) {
+            summary(sb, "password_rpc_latency_seconds", "method=\"" + method.getKey() + "\"",
+                    method.getValue().latency);
+        }
+
+        type(sb, "password_queue_wait_seconds", "summary", "Time hashing tasks waited for a thread");
+        for (HashingExecutor.Priority priority : HashingExecutor.Priority.values()) {
+            summary(sb, "password_queue_wait_seconds", "priority=\"" + priority + "\"",
+                    hashingExecutor.getQueueWait(priority));
+        }
+        type(sb, "password_hash_compute_seconds", "summary", "Time of one password hash");
+        for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+            LatencyHistogram compute = HashTimings.compute(algorithm);
+            if (compute.getSumNanos() > 0) {
+                summary(sb, "password_hash_compute_seconds", "algorithm=\"" + algorithm.getId() + "\"", compute);
+            }
+        }
+
+        gauge(sb, "password_hashing_threads", hashingExecutor.getThreads());
+        gauge(sb, "password_hashing_active", hashingExecutor.getActiveCount());
+        type(sb, "password_hashing_queue_depth", "gauge", null);
+        for (HashingExecutor.Priority priority : HashingExecutor.Priority.values()) {
+            sample(sb, "password_hashing_queue_depth", "priority=\"" + priority + "\"",
+                    hashingExecutor.getQueueDepth(priority));
+        }
+        gauge(sb, "password_hashing_queue_capacity", hashingExecutor.getQueueCapacity());
+        counter(sb, "password_hashing_rejected_total", hashingExecutor.getRejectedCount());
+        counter(sb, "password_hashing_completed_total", hashingExecutor.getCompletedCount());
+
+        type(sb, "password_shed_total", "counter", "Requests shed before hashing, by reason");
+        sample(sb, "password_shed_total", "reason=\"overloaded\"", admission.getShedOverloaded());
+        sample(sb, "password_shed_total", "reason=\"expired\"", admission.getShedExpired());
+        sample(sb, "password_shed_total", "reason=\"cancelled\"", admission.getShedCancelled());
+
+        type(sb, "password_hash_parameters_info", "gauge", "Parameters of new hashes");
+        sample(sb, "password_hash_parameters_info", "parameters=\"" + hashCost.getHashParameters() + "\"", 1);
+        gauge(sb, "password_hash_iterations", hashCost.getIterations());
+        return sb.toString();
+    }
+
+    private static void type(StringBuilder sb, String name, String type, String help) {
+        if (help != null) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        }
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name);
+        if (labels != null) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, double value) {
+        type(sb, name, "gauge", null);
+        sample(sb, name, null, value);
+    }
+
+    private static void counter(StringBuilder sb, String name, double value) {
+        type(sb, name, "counter", null);
+        sample(sb, name, null, value);
+    }
+
+    /**
+     * Quantiles, count and exact sum of a nanosecond histogram, in seconds
+     */
+    private static void summary(StringBuilder sb, String name, String labels, LatencyHistogram latency) {
+        long sumNanos = latency.getSumNanos();
+        Histogram histogram = latency.snapshot();
+        for (double quantile : QUANTILES) {
+            sample(sb, name, labels + ",quantile=\"" + quantile + "\"",
+                    histogram.getValueAtPercentile(quantile * 100) / 1e9);
+        }
+        long count = histogram.getTotalCount();
+        sample(sb, name + "_sum", labels, sumNanos / 1e9);
+        sample(sb, name + "_count", labels, count);
+    }
+}
@@ -0,0 +1,75 @@
+package ie.gmit.ds;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts calls per method and status code and records how long each call took on the server, from the headers
+ * arriving to the status going out. Calls the client cancels count as CANCELLED.
+ */
+final class MetricsInterceptor implements ServerInterceptor {
+
+    /**
+     * Counters of one method
+     */
+    static final class MethodMetrics {
+        final LongAdder started = new LongAdder();
+        final ConcurrentMap<Status.Code, LongAdder> completed = new ConcurrentHashMap<>();
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        void complete(Status.Code code, long nanos) {
+            completed.computeIfAbsent(code, c -> new LongAdder()).increment();
+            latency.record(nanos);
+        }
+    }
+
+    private final ConcurrentMap<String, MethodMetrics> methods = new ConcurrentHashMap<>();
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        long start = System.nanoTime();
+        MethodMetrics metrics = methods.computeIfAbsent(call.getMethodDescriptor().getFullMethodName(),
+                name -> new MethodMetrics());
+        metrics.started.increment();
+        AtomicBoolean done = new AtomicBoolean();
+        ServerCall<ReqT, RespT> countingCall = new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void close(Status status, Metadata trailers) {
+                if (done.compareAndSet(false, true)) {
+                    metrics.complete(status.getCode(), System.nanoTime() - start);
+                }
+                super.close(status, trailers);
+            }
+        };
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(next.startCall(countingCall, headers)) {
+            @Override
+            public void onCancel() {
+                if (done.compareAndSet(false, true)) {
+                    metrics.complete(Status.Code.CANCELLED, System.nanoTime() - start);
+                }
+                super.onCancel();
+            }
+        };
+    }
+
+    /**
+     * By full method name, e.g. "ie.gmit.ds.PasswordService/Hash"
+     *
+     * @return live view
+     */
+    Map<String, MethodMetrics> getMethods() {
+        return methods;
+    }
+}
@@ -4,7 +4,11 @@ import com.google.protobuf.ByteString;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
 
+import java.util.Iterator;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -15,15 +19,17 @@ public class PasswordClient {
      * Using blocking stubs -- Asynchronous and Synchronous
      */
     private static final Logger logger = Logger.getLogger(PasswordClient.class.getName());
+    private static final EventLog events = EventLog.fromSystemProperties(logger);
     private final ManagedChannel channel;
     private final PasswordServiceGrpc.PasswordServiceBlockingStub syncPasswordService;
+    private final PasswordServiceGrpc.PasswordServiceStub asyncPasswordService;
 
     /**
      * Variables
-     * HOST, PORT -- Connection
+     * HOST, PORT -- Connection defaults
      */
-    private static final String HOST = "localhost";
-    private static final int PORT = 50551;
+    static final String HOST = "localhost";
+    static final int PORT = 50551;
 
     /**
      * Client store variables
@@ -46,6 +52,7 @@ public class PasswordClient {
     public PasswordClient(String host, int port) {
         channel = ManagedChannelBuilder.forAddress(host, port).usePlaintext().build();
         syncPasswordService = PasswordServiceGrpc.newBlockingStub(channel);
+        asyncPasswordService = PasswordServiceGrpc.newStub(channel);
     }
 
     public int getUserId() {
@@ -94,7 +101,6 @@ public class PasswordClient {
      */
     public void Hash(int userId, String password) {
         UserInputRequest userInputRequest;
-        logger.info("Hash Request\nUserId: " + userId + "\nPassword: " + password); // Logging request
         try {
             // Create request
             userInputRequest = UserInputRequest.newBuilder()
@@ -107,10 +113,7 @@ public class PasswordClient {
         }
         // Send request using stub
         UserInputResponse userInputResponse = syncPasswordService.hash(userInputRequest);
-        // Logging response
-        logger.info("Hash Response\nUserId: " + userId
-                + "\nSalt: " + userInputResponse.getExpectedHash().toByteArray()
-                + "\nHashed Password: " + userInputResponse.getSalt().toByteArray());
+        events.info("hash", "userId", userId, "hashParameters", userInputResponse.getHashParameters());
 
         // Set all global variables
         setUserId(userId);
@@ -137,34 +140,88 @@ public class PasswordClient {
         }
         // Send response using stub
         PasswordValidateResponse passwordValidateResponse = syncPasswordService.validate(passwordValidateRequest);
-        logger.info("Validate Request\nPassword: " + password + "\nSalt: " + salt + "\nHashed Password: " + expectedHash); // Logging request
-        logger.info("Validate Response\nIs Valid Password: " + passwordValidateResponse.getValidPassword()); // Logging response
+        events.info("validate", "valid", passwordValidateResponse.getValidPassword());
     }
 
     /**
-     * Main -- Client Runner
+     * Hash password without blocking
      *
-     * @param args
-     * @throws InterruptedException
+     * @param request          user id and password
+     * @param deadlineMillis   deadline for the call, 0 for none
+     * @param responseObserver gets the response, or onError with the status
      */
-    public static void main(String[] args) throws InterruptedException {
-        PasswordClient passwordClient = new PasswordClient(HOST, PORT);
+    public void HashAsync(UserInputRequest request, long deadlineMillis, StreamObserver<UserInputResponse> responseObserver) {
+        PasswordServiceGrpc.PasswordServiceStub stub = asyncPasswordService;
+        if (deadlineMillis > 0) {
+            stub = stub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS);
+        }
+        stub.hash(request, responseObserver);
+    }
 
-        try {
-            // Test 1 -- should pass --> Return true
-            passwordClient.Hash(001, "password");
-            passwordClient.Validate(passwordClient.getPassword(),
-                    passwordClient.getSalt(),
-                    passwordClient.getExpectedHash());
-
-            // Test 2 -- should fail --> Return false
-            passwordClient.Hash(002, "password");
-            passwordClient.Validate("abcd",
-                    passwordClient.getSalt(),
-                    passwordClient.getExpectedHash());
-        } finally {
-            // Thread.currentThread().join();
-            passwordClient.shutdown();
+    /**
+     * Validate password without blocking
+     *
+     * @param request          password, salt and expected hash
+     * @param deadlineMillis   deadline for the call, 0 for none
+     * @param responseObserver gets the response, or onError with the status
+     */
+    public void ValidateAsync(PasswordValidateRequest request, long deadlineMillis,
+                              StreamObserver<PasswordValidateResponse> responseObserver) {
+        PasswordServiceGrpc.PasswordServiceStub stub = asyncPasswordService;
+        if (deadlineMillis > 0) {
+            stub = stub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS);
         }
+        stub.validate(request, responseObserver);
+    }
+
+    /**
+     * Hash many passwords over one HashBatch stream
+     * <p>
+     * Requests are only pulled from the iterator while the stream is ready to send, so a large import
+     * is never held in memory or buffered in the channel. Responses arrive as each hash completes, match
+     * them up by userId.
+     *
+     * @param requests         requests to send, read lazily
+     * @param responseObserver gets each response, then onCompleted or onError
+     */
+    public void HashBatch(Iterator<UserInputRequest> requests, StreamObserver<UserInputResponse> responseObserver) {
+        asyncPasswordService.hashBatch(new ClientResponseObserver<UserInputRequest, UserInputResponse>() {
+            private ClientCallStreamObserver<UserInputRequest> requestStream;
+            private boolean sentAll;
+
+            @Override
+            public void beforeStart(ClientCallStreamObserver<UserInputRequest> requestStream) {
+                this.requestStream = requestStream;
+                // Called on the channel executor each time the stream can take more
+                requestStream.setOnReadyHandler(this::send);
+            }
+
+            private void send() {
+                while (!sentAll && requestStream.isReady()) {
+                    if (requests.hasNext()) {
+                        requestStream.onNext(requests.next());
+                    } else {
+                        sentAll = true;
+                        requestStream.onCompleted();
+                    }
+                }
+            }
+
+            @Override
+            public void onNext(UserInputResponse userInputResponse) {
+                responseObserver.onNext(userInputResponse);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                logger.log(Level.WARNING, "HashBatch Failed", throwable);
+                responseObserver.onError(throwable);
+            }
+
+            @Override
+            public void onCompleted() {
+                responseObserver.onCompleted();
+            }
+        });
     }
 }
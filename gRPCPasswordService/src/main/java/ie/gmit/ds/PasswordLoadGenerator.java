@@ -0,0 +1,533 @@
+package ie.gmit.ds;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.HdrHistogram.Histogram;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Load generator for a password node, built on PasswordClient's async calls. For capacity planning.
+ * <p>
+ * Two ways of driving load:
+ * <ul>
+ * <li>closed loop -- a fixed number of callers, each sends its next call when its last one is answered (paced to
+ * --rate calls per second between them, if given). Shows the throughput a node sustains at that concurrency.</li>
+ * <li>open loop -- calls go out on a fixed schedule at --rate per second whether or not earlier ones were answered,
+ * like independent users logging in. Shows what happens to latency as the rate nears and passes capacity.</li>
+ * </ul>
+ * Response time is measured from when a call was due to be sent, not from when it was, so a stall on the node
+ * (or in this client) counts against every call that should have gone out during it -- corrected for coordinated
+ * omission. Service time, sent to answered, is reported next to it; the two only agree while the node keeps up.
+ * A closed loop without --rate has no schedule, there response time is service time.
+ * <p>
+ * Users for the Validate calls are hashed first, over HashBatch. Calls due in the warm-up aren't counted.
+ * <p>
+ * Usage: PasswordLoadGenerator [--host localhost] [--port 50551] [--mode closed|open] [--concurrency 16]
+ * [--rate calls/s] [--duration 30] [--warmup 5] [--validate 0.9] [--users 100] [--deadline ms]
+ * [--maxOutstanding 10000]
+ */
+public class PasswordLoadGenerator {
+    private static final Logger logger = Logger.getLogger(PasswordLoadGenerator.class.getName());
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9"};
+    private static final int PASSWORD_LENGTH = 12;
+
+    /**
+     * Command line settings
+     */
+    static final class Options {
+        String host = PasswordClient.HOST;
+        int port = PasswordClient.PORT;
+        boolean open;
+        int concurrency = 16;
+        double rate;
+        int durationSeconds = 30;
+        int warmupSeconds = 5;
+        double validateShare = 0.9;
+        int users = 100;
+        long deadlineMillis;
+        int maxOutstanding = 10_000;
+
+        /**
+         * @param args --name value or --name=value pairs
+         * @return settings, checked
+         * @throws IllegalArgumentException on an unknown name or a bad value
+         */
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String name = args[i];
+                String value;
+                int equals = name.indexOf('=');
+                if (equals > 0) {
+                    value = name.substring(equals + 1);
+                    name = name.substring(0, equals);
+                } else if (i + 1 < args.length) {
+                    value = args[++i];
+                } else {
+                    throw new IllegalArgumentException("No value for " + name);
+                }
+                switch (name) {
+                    case "--host":
+                        options.host = value;
+                        break;
+                    case "--port":
+                        options.port = Integer.parseInt(value);
+                        break;
+                    case "--mode":
+                        if (!value.equals("open") && !value.equals("closed")) {
+                            throw new IllegalArgumentException("Mode is open or closed: " + value);
+                        }
+                        options.open = value.equals("open");
+                        break;
+                    case "--concurrency":
+                        options.concurrency = Integer.parseInt(value);
+                        break;
+                    case "--rate":
+                        options.rate = Double.parseDouble(value);
+                        break;
+                    case "--duration":
+                        options.durationSeconds = Integer.parseInt(value);
+                        break;
+                    case "--warmup":
+                        options.warmupSeconds = Integer.parseInt(value);
+                        break;
+                    case "--validate":
+                        options.validateShare = Double.parseDouble(value);
+                        break;
+                    case "--users":
+                        options.users = Integer.parseInt(value);
+                        break;
+                    case "--deadline":
+                        options.deadlineMillis = Long.parseLong(value);
+                        break;
+                    case "--maxOutstanding":
+                        options.maxOutstanding = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + name);
+                }
+            }
+            if (options.open && options.rate <= 0) {
+                throw new IllegalArgumentException("Open loop needs --rate");
+            }
+            if (options.concurrency < 1 || options.durationSeconds < 1 || options.warmupSeconds < 0
+                    || options.users < 1 || options.maxOutstanding < 1 || options.rate < 0 || options.deadlineMillis < 0) {
+                throw new IllegalArgumentException("Counts and times must be positive");
+            }
+            if (options.validateShare < 0 || options.validateShare > 1) {
+                throw new IllegalArgumentException("Validate share is between 0 and 1: " + options.validateShare);
+            }
+            return options;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s:%d %s, %s, %d s after %d s warm-up, %.0f%% Validate over %d users, deadline %s",
+                    host, port, open ? "open loop" : "closed loop",
+                    open ? String.format("%.1f calls/s", rate)
+                            : concurrency + " callers" + (rate > 0 ? String.format(" at %.1f calls/s", rate) : ""),
+                    durationSeconds, warmupSeconds, validateShare * 100, users,
+                    deadlineMillis > 0 ? deadlineMillis + " ms" : "none");
+        }
+    }
+
+    /**
+     * Outcomes and latencies of one kind of call, over the measured window
+     */
+    private static final class CallStats {
+        final String name;
+        final LatencyHistogram responseTime = new LatencyHistogram();
+        final LatencyHistogram serviceTime = new LatencyHistogram();
+        final LongAdder succeeded = new LongAdder();
+        final ConcurrentMap<Status.Code, LongAdder> failed = new ConcurrentHashMap<>();
+
+        CallStats(String name) {
+            this.name = name;
+        }
+
+        void failed(Status.Code code) {
+            failed.computeIfAbsent(code, c -> new LongAdder()).increment();
+        }
+    }
+
+    private final Options options;
+    private final PasswordClient passwordClient;
+    private final CallStats hashStats = new CallStats("Hash");
+    private final CallStats validateStats = new CallStats("Validate");
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final LongAdder wrongAnswers = new LongAdder();
+    private final LongAdder notSent = new LongAdder();
+    private final AtomicLong lastAnswered = new AtomicLong();
+    private String[] passwords;
+    private AtomicReferenceArray<PasswordValidateRequest> validateRequests;
+    private long measureFrom;
+    private long measureUntil;
+
+    /**
+     * @param options        settings
+     * @param passwordClient client for the node under test
+     */
+    public PasswordLoadGenerator(Options options, PasswordClient passwordClient) {
+        this.options = options;
+        this.passwordClient = passwordClient;
+    }
+
+    /**
+     * Hash the users the Validate calls log in as
+     *
+     * @throws InterruptedException
+     */
+    void prepare() throws InterruptedException {
+        int users = options.users;
+        passwords = new String[users];
+        for (int i = 0; i < users; i++) {
+            passwords[i] = Passwords.generateRandomPassword(PASSWORD_LENGTH);
+        }
+        validateRequests = new AtomicReferenceArray<>(users);
+        CountDownLatch done = new CountDownLatch(1);
+        Throwable[] error = new Throwable[1];
+        long start = System.nanoTime();
+        passwordClient.HashBatch(new Iterator<UserInputRequest>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < users;
+            }
+
+            @Override
+            public UserInputRequest next() {
+                if (next >= users) {
+                    throw new NoSuchElementException();
+                }
+                int userId = next++;
+                return UserInputRequest.newBuilder().setUserId(userId).setPassword(passwords[userId]).build();
+            }
+        }, new StreamObserver<UserInputResponse>() {
+            @Override
+            public void onNext(UserInputResponse response) {
+                validateRequests.set(response.getUserId(), PasswordValidateRequest.newBuilder()
+                        .setPassword(passwords[response.getUserId()])
+                        .setSalt(response.getSalt())
+                        .setExpectedHash(response.getExpectedHash())
+                        .setHashParameters(response.getHashParameters())
+                        .build());
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                error[0] = throwable;
+                done.countDown();
+            }
+
+            @Override
+            public void onCompleted() {
+                done.countDown();
+            }
+        });
+        done.await();
+        if (error[0] != null) {
+            throw new IllegalStateException("Hashing users failed: " + Status.fromThrowable(error[0]), error[0]);
+        }
+        for (int i = 0; i < users; i++) {
+            if (validateRequests.get(i) == null) {
+                throw new IllegalStateException("No hash for user " + i);
+            }
+        }
+        logger.info(String.format("Hashed %d users in %d ms", users,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+    }
+
+    /**
+     * Drive load for the warm-up and the duration, then wait for calls still out
+     *
+     * @throws InterruptedException
+     */
+    void run() throws InterruptedException {
+        long start = System.nanoTime();
+        measureFrom = start + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+        measureUntil = measureFrom + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        if (options.open) {
+            runOpen(start);
+        } else {
+            runClosed(start);
+        }
+        // Give calls still out the time they could take, they were due in the window so they count
+        long drainUntil = System.nanoTime() + (options.deadlineMillis > 0
+                ? TimeUnit.MILLISECONDS.toNanos(options.deadlineMillis) * 2 : TimeUnit.SECONDS.toNanos(30));
+        while (outstanding.get() > 0 && System.nanoTime() < drainUntil) {
+            Thread.sleep(10);
+        }
+        if (outstanding.get() > 0) {
+            logger.warning(String.format("%d calls still unanswered, left out of the results", outstanding.get()));
+        }
+    }
+
+    /**
+     * Calls due every 1/rate seconds from this thread, sent even if earlier ones are unanswered
+     */
+    private void runOpen(long start) {
+        double intervalNanos = 1e9 / options.rate;
+        for (long n = 0; ; n++) {
+            long due = start + (long) (n * intervalNanos);
+            if (due - measureUntil >= 0) {
+                return;
+            }
+            long wait = due - System.nanoTime();
+            while (wait > 0) {
+                LockSupport.parkNanos(wait);
+                wait = due - System.nanoTime();
+            }
+            if (outstanding.get() >= options.maxOutstanding) {
+                // This client can't keep up, not the node -- counted apart so it's not mistaken for a node failure
+                if (measured(due)) {
+                    notSent.increment();
+                }
+                continue;
+            }
+            send(due, null);
+        }
+    }
+
+    /**
+     * Each caller sends its next call when its last one is answered, paced to rate / concurrency if a rate is set
+     */
+    private void runClosed(long start) throws InterruptedException {
+        int callers = options.concurrency;
+        long intervalNanos = options.rate > 0 ? (long) (1e9 * callers / options.rate) : 0;
+        ScheduledExecutorService pacer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "load-pacer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        CountDownLatch finished = new CountDownLatch(callers);
+        try {
+            for (int i = 0; i < callers; i++) {
+                // Staggered so paced callers don't all fire together
+                long first = start + intervalNanos * i / callers;
+                pacer.schedule(() -> call(first, intervalNanos, pacer, finished),
+                        Math.max(first - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+            }
+            finished.await();
+        } finally {
+            pacer.shutdownNow();
+        }
+    }
+
+    private void call(long due, long intervalNanos, ScheduledExecutorService pacer, CountDownLatch finished) {
+        if (due - measureUntil >= 0) {
+            finished.countDown();
+            return;
+        }
+        send(due, () -> {
+            long now = System.nanoTime();
+            // Unpaced: the next call is due now. Paced: it stays on schedule, running late counts against it
+            long next = intervalNanos > 0 ? due + intervalNanos : now;
+            if (next - now > 0) {
+                pacer.schedule(() -> call(next, intervalNanos, pacer, finished), next - now, TimeUnit.NANOSECONDS);
+            } else {
+                call(next, intervalNanos, pacer, finished);
+            }
+        });
+    }
+
+    private boolean measured(long due) {
+        return due - measureFrom >= 0 && due - measureUntil < 0;
+    }
+
+    /**
+     * Send one call, Validate or Hash by the mix
+     *
+     * @param due        when it was due to be sent
+     * @param onAnswered run after it's answered, on a channel thread, may be null
+     */
+    private void send(long due, Runnable onAnswered) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int userId = random.nextInt(options.users);
+        outstanding.incrementAndGet();
+        long sent = System.nanoTime();
+        if (random.nextDouble() < options.validateShare) {
+            passwordClient.ValidateAsync(validateRequests.get(userId), options.deadlineMillis,
+                    new CallObserver<PasswordValidateResponse>(validateStats, due, sent, onAnswered) {
+                        @Override
+                        void check(PasswordValidateResponse response) {
+                            if (!response.getValidPassword()) {
+                                wrongAnswers.increment();
+                            }
+                        }
+                    });
+        } else {
+            passwordClient.HashAsync(UserInputRequest.newBuilder()
+                            .setUserId(userId)
+                            .setPassword(passwords[userId])
+                            .build(), options.deadlineMillis,
+                    new CallObserver<UserInputResponse>(hashStats, due, sent, onAnswered) {
+                        @Override
+                        void check(UserInputResponse response) {
+                            if (response.getUserId() != userId || response.getExpectedHash().isEmpty()) {
+                                wrongAnswers.increment();
+                            }
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Records the outcome of one call
+     */
+    private abstract class CallObserver<T> implements StreamObserver<T> {
+        private final CallStats stats;
+        private final long due;
+        private final long sent;
+        private final Runnable onAnswered;
+
+        CallObserver(CallStats stats, long due, long sent, Runnable onAnswered) {
+            this.stats = stats;
+            this.due = due;
+            this.sent = sent;
+            this.onAnswered = onAnswered;
+        }
+
+        abstract void check(T response);
+
+        @Override
+        public void onNext(T response) {
+            long now = System.nanoTime();
+            if (measured(due)) {
+                lastAnswered.accumulateAndGet(now, Math::max);
+                stats.responseTime.record(now - due);
+                stats.serviceTime.record(now - sent);
+                stats.succeeded.increment();
+                check(response);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            if (measured(due)) {
+                lastAnswered.accumulateAndGet(System.nanoTime(), Math::max);
+                stats.failed(Status.fromThrowable(throwable).getCode());
+            }
+            answered();
+        }
+
+        @Override
+        public void onCompleted() {
+            answered();
+        }
+
+        private void answered() {
+            outstanding.decrementAndGet();
+            if (onAnswered != null) {
+                onAnswered.run();
+            }
+        }
+    }
+
+    /**
+     * Throughput, failures and percentiles per kind of call and overall
+     *
+     * @return report, several lines
+     */
+    String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(options).append('\n');
+        // Calls due in the window, over the time they took to be answered -- longer than the window past capacity
+        double seconds = Math.max(options.durationSeconds, (lastAnswered.get() - measureFrom) / 1e9);
+        Histogram totalResponse = new Histogram(3);
+        Histogram totalService = new Histogram(3);
+        long totalSucceeded = 0;
+        Map<Status.Code, Long> totalFailed = new TreeMap<>();
+        for (CallStats stats : new CallStats[]{validateStats, hashStats}) {
+            Histogram response = stats.responseTime.snapshot();
+            Histogram service = stats.serviceTime.snapshot();
+            Map<Status.Code, Long> failed = new TreeMap<>();
+            stats.failed.forEach((code, count) -> failed.put(code, count.sum()));
+            report(sb, stats.name, seconds, stats.succeeded.sum(), failed, response, service);
+            totalResponse.add(response);
+            totalService.add(service);
+            totalSucceeded += stats.succeeded.sum();
+            failed.forEach((code, count) -> totalFailed.merge(code, count, Long::sum));
+        }
+        report(sb, "All", seconds, totalSucceeded, totalFailed, totalResponse, totalService);
+        if (notSent.sum() > 0) {
+            sb.append(String.format("%d calls not sent, over %d outstanding -- this client is the bottleneck%n",
+                    notSent.sum(), options.maxOutstanding));
+        }
+        if (wrongAnswers.sum() > 0) {
+            sb.append(String.format("%d WRONG ANSWERS%n", wrongAnswers.sum()));
+        }
+        return sb.toString();
+    }
+
+    private static void report(StringBuilder sb, String name, double seconds, long succeeded, Map<Status.Code, Long> failed,
+                        Histogram response, Histogram service) {
+        long failures = failed.values().stream().mapToLong(Long::longValue).sum();
+        sb.append(String.format("%-8s %,10d ok %8.1f/s, %,d failed%s%n", name, succeeded,
+                succeeded / seconds, failures, failures > 0 ? " " + failed : ""));
+        if (succeeded > 0) {
+            percentiles(sb, "response", response);
+            percentiles(sb, "service", service);
+        }
+    }
+
+    private static void percentiles(StringBuilder sb, String name, Histogram histogram) {
+        sb.append(String.format("  %-9s ms", name));
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            sb.append(String.format("  %s %8.2f", PERCENTILE_NAMES[i], histogram.getValueAtPercentile(PERCENTILES[i]) / 1e6));
+        }
+        sb.append(String.format("  max %8.2f%n", histogram.getMaxValue() / 1e6));
+    }
+
+    /**
+     * Runner
+     *
+     * @param args see the class comment
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws InterruptedException {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("Usage: PasswordLoadGenerator [--host localhost] [--port 50551] [--mode closed|open]"
+                    + " [--concurrency 16] [--rate calls/s] [--duration 30] [--warmup 5] [--validate 0.9]"
+                    + " [--users 100] [--deadline ms] [--maxOutstanding 10000]");
+            System.exit(2);
+            return;
+        }
+        // Per-call events would swamp the output
+        Logger.getLogger(PasswordClient.class.getName()).setLevel(Level.WARNING);
+        PasswordClient passwordClient = new PasswordClient(options.host, options.port);
+        try {
+            PasswordLoadGenerator generator = new PasswordLoadGenerator(options, passwordClient);
+            generator.prepare();
+            logger.info("Running " + options);
+            generator.run();
+            System.out.print(generator.report());
+        } finally {
+            passwordClient.shutdown();
+        }
+    }
+}
@@ -1,18 +1,55 @@
 package ie.gmit.ds;
 
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.netty.shaded.io.netty.channel.EventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.ServerChannel;
+import io.grpc.netty.shaded.io.netty.channel.epoll.Epoll;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.channel.nio.NioEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.util.concurrent.DefaultThreadFactory;
+import io.grpc.health.v1.HealthCheckResponse.ServingStatus;
+import io.grpc.services.HealthStatusManager;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.IOException; 
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
 import java.util.logging.Logger;
 
 public class PasswordServer {
     /**
      * Variables
      */
+    private final PasswordServerConfig config;
     private Server grpcServer;
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    private HashingExecutor hashingExecutor;
+    private MetricsHttpServer metricsServer;
+    private LoadReporter loadReporter;
+    private final HealthStatusManager health = new HealthStatusManager();
+    private final CallDrain callDrain = new CallDrain();
     private static final Logger logger = Logger.getLogger(PasswordServer.class.getName());
-    private static final int PORT = 50551;
+    // For the drain: the JVM's logging shutdown hook takes the handlers off every named logger while it runs
+    private static final Logger drainLogger = Logger.getAnonymousLogger();
+    // How long a forced shutdown waits for things to stop
+    private static final int FORCE_SECONDS = 5;
+
+    /**
+     * @param config port, transport and the rest, see PasswordServerConfig
+     */
+    private PasswordServer(PasswordServerConfig config) {
+        this.config = config;
+    }
 
     /**
      * Server startup and shutdown methods
@@ -21,20 +58,176 @@ public class PasswordServer {
      */
     // Start server
     private void start() throws IOException {
-        grpcServer = ServerBuilder.forPort(PORT)
-                .addService(new PasswordServiceImpl())
+        // Hashing runs on its own bounded pool, the handlers only queue work so they can run on the transport threads
+        hashingExecutor = HashingExecutor.fromSystemProperties();
+        // Algorithm and cost for new hashes, e.g. -Dpassword.hash.parameters=argon2id$m=19456,t=2,p=1,l=32
+        HashParameters hashParameters = HashParameters.parse(System.getProperty("password.hash.parameters", ""));
+        // Optionally scale the PBKDF2 iterations to take about this long per hash here, e.g. -Dpassword.hash.calibrateMillis=50
+        long calibrateMillis = config.getHashCalibrateMillis();
+        // Stored hashes sent to Validate may cost at most what the fleet's shared settings allow, whichever node
+        // made them
+        HashCostLimit costLimit = new HashCostLimit(hashParameters, calibrateMillis > 0,
+                config.getAcceptedHashParameters(), config.getMaxHashCostFactor(), config.getHashCostCeilings());
+        HashCostCalibrator hashCost = new HashCostCalibrator(calibrateMillis);
+        hashParameters = hashCost.calibrate(hashParameters, costLimit.getMaxWork(hashParameters.getAlgorithm()));
+        registerMBean(hashCost, "ie.gmit.ds:type=HashCost");
+        PasswordServiceImpl passwordService = new PasswordServiceImpl(hashingExecutor, hashParameters,
+                Integer.getInteger("password.hashBatch.window",
+                        HashBatchObserver.defaultWindow(hashingExecutor.getThreads())), costLimit);
+        registerMBean(passwordService.getAdmission(), "ie.gmit.ds:type=Admission");
+        MetricsInterceptor rpcMetrics = new MetricsInterceptor();
+        // Load in the trailers of every call, for load-aware clients
+        loadReporter = new LoadReporter(hashingExecutor, passwordService.getAdmission());
+        loadReporter.start();
+        grpcServer = transport(NettyServerBuilder.forPort(config.getPort()))
+                .directExecutor()
+                .addService(ServerInterceptors.intercept(passwordService, rpcMetrics, callDrain, loadReporter))
+                .addService(health.getHealthService())
                 .build()
                 .start();
-        logger.info(String.format("Server started, listening on port: %s", PORT));
+        // Standard grpc.health.v1 checks, for the whole server ("") and by service name
+        health.setStatus("", ServingStatus.SERVING);
+        health.setStatus(PasswordServiceGrpc.SERVICE_NAME, ServingStatus.SERVING);
+        // Scrape endpoint on localhost, password.metrics.port=0 to turn off
+        int metricsPort = config.getMetricsPort();
+        if (metricsPort > 0) {
+            metricsServer = new MetricsHttpServer(metricsPort, rpcMetrics, hashingExecutor,
+                    passwordService.getAdmission(), hashCost);
+            metricsServer.start();
+        }
+        logger.info(String.format("Server started, listening on port: %s (%s)", grpcServer.getPort(),
+                workerGroup instanceof EpollEventLoopGroup ? "epoll" : "nio"));
+        logger.info(String.format("Settings: %s", config));
+        logger.info(String.format("Hashing executor: %s", hashingExecutor));
+        logger.info(String.format("New hashes use: %s", hashParameters));
+        logger.info(String.format("Validate accepts: %s", costLimit));
     }
 
     /**
-     * Stop server
+     * Event loops, connection limits, keepalive and flow control from the config
+     *
+     * @param builder
+     * @return builder
+     */
+    private NettyServerBuilder transport(NettyServerBuilder builder) {
+        PasswordServerConfig.Transport transport = config.getTransport();
+        boolean epoll = transport == PasswordServerConfig.Transport.EPOLL
+                || (transport == PasswordServerConfig.Transport.AUTO && Epoll.isAvailable());
+        if (transport == PasswordServerConfig.Transport.EPOLL) {
+            // Fail at startup rather than quietly fall back to NIO
+            Epoll.ensureAvailability();
+        }
+        Class<? extends ServerChannel> channelType;
+        if (epoll) {
+            bossGroup = new EpollEventLoopGroup(config.getBossThreads(), threadFactory("grpc-boss"));
+            workerGroup = new EpollEventLoopGroup(config.getWorkerThreads(), threadFactory("grpc-worker"));
+            channelType = EpollServerSocketChannel.class;
+        } else {
+            bossGroup = new NioEventLoopGroup(config.getBossThreads(), threadFactory("grpc-boss"));
+            workerGroup = new NioEventLoopGroup(config.getWorkerThreads(), threadFactory("grpc-worker"));
+            channelType = NioServerSocketChannel.class;
+        }
+        builder.channelType(channelType)
+                .bossEventLoopGroup(bossGroup)
+                .workerEventLoopGroup(workerGroup)
+                .maxInboundMessageSize(config.getMaxInboundMessageSize())
+                .maxInboundMetadataSize(config.getMaxInboundMetadataSize())
+                .flowControlWindow(config.getFlowControlWindow())
+                .permitKeepAliveWithoutCalls(config.isPermitKeepAliveWithoutCalls());
+        // 0 keeps gRPC's own default for each of these
+        if (config.getMaxConcurrentCallsPerConnection() > 0) {
+            builder.maxConcurrentCallsPerConnection(config.getMaxConcurrentCallsPerConnection());
+        }
+        if (config.getKeepAliveSeconds() > 0) {
+            builder.keepAliveTime(config.getKeepAliveSeconds(), TimeUnit.SECONDS);
+        }
+        if (config.getKeepAliveTimeoutSeconds() > 0) {
+            builder.keepAliveTimeout(config.getKeepAliveTimeoutSeconds(), TimeUnit.SECONDS);
+        }
+        if (config.getPermitKeepAliveSeconds() > 0) {
+            builder.permitKeepAliveTime(config.getPermitKeepAliveSeconds(), TimeUnit.SECONDS);
+        }
+        if (config.getMaxConnectionIdleSeconds() > 0) {
+            builder.maxConnectionIdle(config.getMaxConnectionIdleSeconds(), TimeUnit.SECONDS);
+        }
+        if (config.getMaxConnectionAgeSeconds() > 0) {
+            builder.maxConnectionAge(config.getMaxConnectionAgeSeconds(), TimeUnit.SECONDS);
+        }
+        if (config.getMaxConnectionAgeGraceSeconds() > 0) {
+            builder.maxConnectionAgeGrace(config.getMaxConnectionAgeGraceSeconds(), TimeUnit.SECONDS);
+        }
+        return builder;
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        return new DefaultThreadFactory(name, true);
+    }
+
+    private static void registerMBean(Object mbean, String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, new ObjectName(name));
+        } catch (JMException ex) {
+            logger.log(Level.WARNING, "Could not register " + name, ex);
+        }
+    }
+
+    /**
+     * Stop server, letting calls in flight finish -- runs from the shutdown hook.
+     * <p>
+     * Health goes NOT_SERVING first, and the node keeps serving -- health checks included -- for
+     * password.drain.noticeSeconds, so health checking clients and load balancers see it and stop sending calls.
+     * Then new calls are refused, calls already in (and their queued hashes) get up to password.drain.graceSeconds to
+     * finish. What is left after that is cancelled: its queued hashes are dropped and the clients see
+     * CANCELLED/UNAVAILABLE, which they retry on another node.
      */
     private void stop() {
-        if (grpcServer != null) {
-            grpcServer.shutdown();
+        long start = System.nanoTime();
+        int noticeSeconds = config.getDrainNoticeSeconds();
+        int graceSeconds = config.getDrainGraceSeconds();
+        health.enterTerminalState();
+        try {
+            if (noticeSeconds > 0) {
+                drainLogger.info(String.format("Health is NOT_SERVING, still taking calls for %d s", noticeSeconds));
+                Thread.sleep(TimeUnit.SECONDS.toMillis(noticeSeconds));
+            }
+            drainLogger.info(String.format("Draining %d calls in flight, up to %d s", callDrain.startDrain(),
+                    graceSeconds));
+            if (grpcServer != null) {
+                grpcServer.shutdown();
+                if (!grpcServer.awaitTermination(graceSeconds, TimeUnit.SECONDS)) {
+                    drainLogger.warning(String.format("Grace period over, cancelling %d calls", callDrain.getInFlight()));
+                    grpcServer.shutdownNow();
+                    grpcServer.awaitTermination(FORCE_SECONDS, TimeUnit.SECONDS);
+                }
+            }
+            if (hashingExecutor != null) {
+                // Only tasks of cancelled calls can be left, they are skipped when dequeued
+                hashingExecutor.shutdown();
+                hashingExecutor.awaitTermination(FORCE_SECONDS, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            // May be before start() built either of them
+            if (grpcServer != null) {
+                grpcServer.shutdownNow();
+            }
+            if (hashingExecutor != null) {
+                hashingExecutor.shutdown();
+            }
+        }
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        if (loadReporter != null) {
+            loadReporter.stop();
+        }
+        if (bossGroup != null) {
+            bossGroup.shutdownGracefully(0, FORCE_SECONDS, TimeUnit.SECONDS);
+            workerGroup.shutdownGracefully(0, FORCE_SECONDS, TimeUnit.SECONDS);
         }
+        drainLogger.info(String.format("Drained in %d ms: %d calls finished, %d aborted; %d arrived after the drain "
+                        + "started", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), callDrain.getDrained(),
+                callDrain.getAborted() + callDrain.getInFlight(), callDrain.getLate()));
     }
 
     /**
@@ -51,13 +244,32 @@ public class PasswordServer {
     /**
      * Server runner
      *
-     * @param args
+     * @param args [--config password-server.properties] [--name=value]..., see PasswordServerConfig
      * @throws IOException
      * @throws InterruptedException
      */
     public static void main(String[] args) throws IOException, InterruptedException {
-        final PasswordServer passwordServer = new PasswordServer();
+        PasswordServerConfig config;
+        try {
+            config = PasswordServerConfig.load(args);
+        } catch (IllegalArgumentException ex) {
+            logger.severe("Bad settings: " + ex.getMessage());
+            System.exit(2);
+            return;
+        }
+        config.publish();
+        // Console writes happen on a background thread, see AsyncLogHandler. password.log.async=false to turn off
+        if (Boolean.parseBoolean(System.getProperty("password.log.async", "true"))) {
+            AsyncLogHandler.install(Integer.getInteger("password.log.queueCapacity", AsyncLogHandler.DEFAULT_QUEUE_CAPACITY));
+        }
+        drainLogger.setUseParentHandlers(false);
+        for (Handler handler : LogManager.getLogManager().getLogger("").getHandlers()) {
+            drainLogger.addHandler(handler);
+        }
+        final PasswordServer passwordServer = new PasswordServer(config);
         passwordServer.start();
+        // SIGTERM (rolling restart) drains rather than drops the calls in flight
+        Runtime.getRuntime().addShutdownHook(new Thread(passwordServer::stop, "password-server-drain"));
         passwordServer.blockUntilShutdown();
     }
 }
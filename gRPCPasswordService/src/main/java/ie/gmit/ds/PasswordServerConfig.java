@@ -0,0 +1,392 @@
+package ie.gmit.ds;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Settings of a password node, from a properties file, -D system properties and the command line, in rising order
+ * of precedence. All use the same names, e.g. password.server.port=50551 in the file, -Dpassword.server.port=50551
+ * or --server.port=50551 (the "password." is optional on the command line). See password-server.properties.
+ * <p>
+ * Settings are checked when loaded, an unknown name or a bad value stops the server from starting.
+ * The final values are published back as system properties, so the parts that read their own settings
+ * (HashingExecutor, EventLog, ...) see the same ones.
+ */
+final class PasswordServerConfig {
+
+    static final int DEFAULT_PORT = 50551;
+    static final int DEFAULT_METRICS_PORT = 9551;
+    static final int DEFAULT_MAX_INBOUND_MESSAGE_SIZE = 4 * 1024 * 1024;
+    static final int DEFAULT_MAX_INBOUND_METADATA_SIZE = 8192;
+    static final int DEFAULT_FLOW_CONTROL_WINDOW = 1024 * 1024;
+    static final int DEFAULT_DRAIN_GRACE_SECONDS = 30;
+    // Over the clients' 1 s health check interval, with room for one slow check
+    static final int DEFAULT_DRAIN_NOTICE_SECONDS = 3;
+
+    /**
+     * Netty channel implementation
+     */
+    enum Transport {
+        /**
+         * Epoll where it's available (Linux), NIO elsewhere
+         */
+        AUTO,
+        NIO,
+        /**
+         * Native epoll, Linux only
+         */
+        EPOLL
+    }
+
+    /**
+     * Every setting there is, anything else under password. is a mistake
+     */
+    private static final Set<String> NAMES = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(
+            "password.server.port",
+            "password.server.transport",
+            "password.server.bossThreads",
+            "password.server.workerThreads",
+            "password.server.maxConcurrentCallsPerConnection",
+            "password.server.keepAliveSeconds",
+            "password.server.keepAliveTimeoutSeconds",
+            "password.server.permitKeepAliveSeconds",
+            "password.server.permitKeepAliveWithoutCalls",
+            "password.server.maxConnectionIdleSeconds",
+            "password.server.maxConnectionAgeSeconds",
+            "password.server.maxConnectionAgeGraceSeconds",
+            "password.server.maxInboundMessageSize",
+            "password.server.maxInboundMetadataSize",
+            "password.server.flowControlWindow",
+            "password.drain.noticeSeconds",
+            "password.drain.graceSeconds",
+            "password.hashing.threads",
+            "password.hashing.queueCapacity",
+            "password.hashing.backgroundEvery",
+            "password.hashBatch.window",
+            "password.hash.parameters",
+            "password.hash.calibrateMillis",
+            "password.hash.accepted",
+            "password.hash.maxCostFactor",
+            "password.hash.maxCost",
+            "password.log.sampleEvery",
+            "password.log.async",
+            "password.log.queueCapacity",
+            "password.metrics.port")));
+
+    private final Properties properties;
+
+    private PasswordServerConfig(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Settings for this process
+     *
+     * @param args [--config file] [--name=value | --name value]...
+     * @return checked settings
+     * @throws IOException              if the file can't be read
+     * @throws IllegalArgumentException on an unknown name or a bad value
+     */
+    static PasswordServerConfig load(String[] args) throws IOException {
+        Properties properties = new Properties();
+        Properties commandLine = new Properties();
+        String file = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Expected --name=value: " + arg);
+            }
+            String name = arg.substring(2);
+            String value;
+            int equals = name.indexOf('=');
+            if (equals > 0) {
+                value = name.substring(equals + 1);
+                name = name.substring(0, equals);
+            } else if (i + 1 < args.length) {
+                value = args[++i];
+            } else {
+                throw new IllegalArgumentException("No value for " + arg);
+            }
+            if (name.equals("config")) {
+                file = value;
+            } else {
+                commandLine.setProperty(name.startsWith("password.") ? name : "password." + name, value);
+            }
+        }
+        if (file != null) {
+            try (InputStream in = Files.newInputStream(Paths.get(file))) {
+                properties.load(in);
+            }
+        }
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("password.")) {
+                properties.setProperty(name, System.getProperty(name));
+            }
+        }
+        properties.putAll(commandLine);
+        PasswordServerConfig config = new PasswordServerConfig(properties);
+        config.check();
+        return config;
+    }
+
+    private void check() {
+        for (String name : properties.stringPropertyNames()) {
+            if (!NAMES.contains(name)) {
+                throw new IllegalArgumentException("Unknown setting " + name);
+            }
+        }
+        // Read everything once so a bad value fails here, not halfway through startup
+        getPort();
+        getTransport();
+        getBossThreads();
+        getWorkerThreads();
+        getMaxConcurrentCallsPerConnection();
+        getKeepAliveSeconds();
+        getKeepAliveTimeoutSeconds();
+        getPermitKeepAliveSeconds();
+        isPermitKeepAliveWithoutCalls();
+        getMaxConnectionIdleSeconds();
+        getMaxConnectionAgeSeconds();
+        getMaxConnectionAgeGraceSeconds();
+        getMaxInboundMessageSize();
+        getMaxInboundMetadataSize();
+        getFlowControlWindow();
+        getDrainNoticeSeconds();
+        getDrainGraceSeconds();
+        getMetricsPort();
+        getInt("password.hashing.threads", 1, 1);
+        getInt("password.hashing.queueCapacity", 1, 1);
+        getInt("password.hashing.backgroundEvery", 1, 1);
+        getInt("password.hashBatch.window", 1, 1);
+        getHashCalibrateMillis();
+        getInt("password.log.sampleEvery", 1, 1);
+        getInt("password.log.queueCapacity", 1, 1);
+        getBoolean("password.log.async", true);
+        if (properties.containsKey("password.hash.parameters")) {
+            HashParameters.parse(properties.getProperty("password.hash.parameters"));
+        }
+        getAcceptedHashParameters();
+        getMaxHashCostFactor();
+        getHashCostCeilings();
+    }
+
+    /**
+     * Set the final values as system properties, for the parts that read their own
+     */
+    void publish() {
+        for (String name : properties.stringPropertyNames()) {
+            System.setProperty(name, properties.getProperty(name));
+        }
+    }
+
+    private int getInt(String name, int defaultValue, int min) {
+        String value = properties.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        int parsed;
+        try {
+            parsed = Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(name + " must be a whole number: " + value);
+        }
+        if (parsed < min) {
+            throw new IllegalArgumentException(name + " must be at least " + min + ": " + value);
+        }
+        return parsed;
+    }
+
+    private boolean getBoolean(String name, boolean defaultValue) {
+        String value = properties.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (!value.trim().equalsIgnoreCase("true") && !value.trim().equalsIgnoreCase("false")) {
+            throw new IllegalArgumentException(name + " must be true or false: " + value);
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+
+    int getPort() {
+        int port = getInt("password.server.port", DEFAULT_PORT, 0);
+        if (port > 65535) {
+            throw new IllegalArgumentException("password.server.port out of range: " + port);
+        }
+        return port;
+    }
+
+    Transport getTransport() {
+        String value = properties.getProperty("password.server.transport", Transport.AUTO.name());
+        try {
+            return Transport.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("password.server.transport is one of "
+                    + Arrays.toString(Transport.values()) + ": " + value);
+        }
+    }
+
+    /**
+     * @return threads accepting connections
+     */
+    int getBossThreads() {
+        return getInt("password.server.bossThreads", 1, 1);
+    }
+
+    /**
+     * @return event loop threads for connection I/O, 0 for Netty's default of 2 per core
+     */
+    int getWorkerThreads() {
+        return getInt("password.server.workerThreads", 0, 0);
+    }
+
+    /**
+     * @return calls open at once on one connection, 0 for no limit
+     */
+    int getMaxConcurrentCallsPerConnection() {
+        return getInt("password.server.maxConcurrentCallsPerConnection", 0, 0);
+    }
+
+    /**
+     * @return seconds without reads before the server pings a client, 0 for gRPC's default (2 hours)
+     */
+    int getKeepAliveSeconds() {
+        return getInt("password.server.keepAliveSeconds", 0, 0);
+    }
+
+    /**
+     * @return seconds to wait for a ping ack before closing the connection, 0 for gRPC's default (20 s)
+     */
+    int getKeepAliveTimeoutSeconds() {
+        return getInt("password.server.keepAliveTimeoutSeconds", 0, 0);
+    }
+
+    /**
+     * @return shortest ping interval allowed from clients, 0 for gRPC's default (5 minutes)
+     */
+    int getPermitKeepAliveSeconds() {
+        return getInt("password.server.permitKeepAliveSeconds", 0, 0);
+    }
+
+    boolean isPermitKeepAliveWithoutCalls() {
+        return getBoolean("password.server.permitKeepAliveWithoutCalls", false);
+    }
+
+    /**
+     * @return seconds a connection with no calls stays open, 0 for ever
+     */
+    int getMaxConnectionIdleSeconds() {
+        return getInt("password.server.maxConnectionIdleSeconds", 0, 0);
+    }
+
+    /**
+     * @return seconds before a connection is asked to go away, so clients spread over new nodes; 0 for ever
+     */
+    int getMaxConnectionAgeSeconds() {
+        return getInt("password.server.maxConnectionAgeSeconds", 0, 0);
+    }
+
+    /**
+     * @return seconds calls get to finish on a connection past its age, 0 for no limit
+     */
+    int getMaxConnectionAgeGraceSeconds() {
+        return getInt("password.server.maxConnectionAgeGraceSeconds", 0, 0);
+    }
+
+    int getMaxInboundMessageSize() {
+        return getInt("password.server.maxInboundMessageSize", DEFAULT_MAX_INBOUND_MESSAGE_SIZE, 1);
+    }
+
+    int getMaxInboundMetadataSize() {
+        return getInt("password.server.maxInboundMetadataSize", DEFAULT_MAX_INBOUND_METADATA_SIZE, 1);
+    }
+
+    /**
+     * @return HTTP/2 flow-control window per stream, bytes
+     */
+    int getFlowControlWindow() {
+        return getInt("password.server.flowControlWindow", DEFAULT_FLOW_CONTROL_WINDOW, 1);
+    }
+
+    /**
+     * @return seconds a stopping node reports NOT_SERVING while still taking calls, before it refuses new ones;
+     * at least the clients' health check interval, or they only notice from failed calls
+     */
+    int getDrainNoticeSeconds() {
+        return getInt("password.drain.noticeSeconds", DEFAULT_DRAIN_NOTICE_SECONDS, 0);
+    }
+
+    /**
+     * @return seconds calls in flight get to finish on shutdown before they are cancelled
+     */
+    int getDrainGraceSeconds() {
+        return getInt("password.drain.graceSeconds", DEFAULT_DRAIN_GRACE_SECONDS, 0);
+    }
+
+    /**
+     * @return hash parameters, besides the current ones and LEGACY, that stored hashes may have been made with;
+     * password.hash.accepted separates them with ';' as the parameters themselves hold ','
+     */
+    List<HashParameters> getAcceptedHashParameters() {
+        return getHashParametersList("password.hash.accepted");
+    }
+
+    /**
+     * @return most costly parameters Validate takes, at most one per algorithm, ';' between them; the same on every
+     * node, calibration stays under them too
+     */
+    List<HashParameters> getHashCostCeilings() {
+        return getHashParametersList("password.hash.maxCost");
+    }
+
+    /**
+     * @return calibration target in ms per hash, 0 to keep password.hash.parameters as they are
+     */
+    long getHashCalibrateMillis() {
+        return getInt("password.hash.calibrateMillis", 0, 0);
+    }
+
+    private List<HashParameters> getHashParametersList(String name) {
+        List<HashParameters> list = new ArrayList<>();
+        for (String text : properties.getProperty(name, "").split(";")) {
+            if (!text.trim().isEmpty()) {
+                list.add(HashParameters.parse(text.trim()));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * @return how many times the work and memory of an accepted profile Validate may ask for
+     */
+    int getMaxHashCostFactor() {
+        return getInt("password.hash.maxCostFactor", HashCostLimit.DEFAULT_MAX_COST_FACTOR, 1);
+    }
+
+    /**
+     * @return port of the scrape endpoint on localhost, 0 for none
+     */
+    int getMetricsPort() {
+        return getInt("password.metrics.port", DEFAULT_METRICS_PORT, 0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (String name : NAMES) {
+            if (properties.containsKey(name)) {
+                sb.append(sb.length() == 0 ? "" : ", ").append(name).append('=').append(properties.getProperty(name));
+            }
+        }
+        return sb.length() == 0 ? "defaults" : sb.toString();
+    }
+}
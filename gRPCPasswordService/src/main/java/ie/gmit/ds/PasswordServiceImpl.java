@@ -1,32 +1,94 @@
 package ie.gmit.ds;
 
-import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
+/**
+ * A single instance serves every call concurrently -- keep per-call state out of fields.
+ * Request state lives in locals and in the per-thread HashingBuffers.
+ */
 public class PasswordServiceImpl extends PasswordServiceGrpc.PasswordServiceImplBase {
     private static final Logger logger = Logger.getLogger(PasswordServiceImpl.class.getName());
     /**
-     * Variables for:
-     * checking password
-     * hashing password
-     * salting password
-     * isValid password
+     * Sampled one-line events -- never the request itself, it holds the password
      */
-    private char[] charPassword; // Use for converting String password from request
-    private byte[] salt; // Use for return value: getNextSalt()
-    private byte[] expectedHash; // Use for params in isExpectedPassword()
-    private boolean isValidPassword; // Use for checking if password is valid or not
+    private static final EventLog events = EventLog.fromSystemProperties(logger);
+
+    /**
+     * Most validations accepted in one ValidateBatch call
+     */
+    static final int MAX_VALIDATE_BATCH = 64;
+
+    /**
+     * Pool the hashing work is handed off to
+     */
+    private final HashingExecutor hashingExecutor;
+    /**
+     * Sheds calls that are cancelled or can't finish before their deadline
+     */
+    private final AdmissionControl admissionControl;
+    /**
+     * Algorithm and cost for new hashes
+     */
+    private final HashParameters hashParameters;
+    private final String hashParametersText;
     /**
-     * Store userId to return in response
+     * How costly the parameters clients send on Validate may be
      */
-    private int userId;
+    private final HashCostLimit costLimit;
+    /**
+     * Max requests of one HashBatch stream that are queued, hashing or waiting to be sent
+     */
+    private final int batchWindow;
+
+    /**
+     * Constructor -- legacy hashing and the default HashBatch window
+     *
+     * @param hashingExecutor
+     */
+    public PasswordServiceImpl(HashingExecutor hashingExecutor) {
+        this(hashingExecutor, HashParameters.LEGACY, HashBatchObserver.defaultWindow(hashingExecutor.getThreads()));
+    }
 
     /**
-     * Constructor - Default
+     * Constructor
+     *
+     * @param hashingExecutor
+     * @param hashParameters  algorithm and cost for new hashes
+     * @param batchWindow
      */
-    public PasswordServiceImpl() {
+    public PasswordServiceImpl(HashingExecutor hashingExecutor, HashParameters hashParameters, int batchWindow) {
+        this(hashingExecutor, hashParameters, batchWindow, new HashCostLimit(hashParameters));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param hashingExecutor
+     * @param hashParameters  algorithm and cost for new hashes
+     * @param batchWindow
+     * @param costLimit       parameters accepted from clients on Validate and ValidateBatch
+     */
+    PasswordServiceImpl(HashingExecutor hashingExecutor, HashParameters hashParameters, int batchWindow,
+                        HashCostLimit costLimit) {
+        if (batchWindow < 1) {
+            throw new IllegalArgumentException("HashBatch window must be at least 1: " + batchWindow);
+        }
+        this.hashingExecutor = hashingExecutor;
+        this.admissionControl = new AdmissionControl(hashingExecutor);
+        this.hashParameters = hashParameters;
+        this.hashParametersText = hashParameters.toString();
+        this.costLimit = costLimit;
+        this.batchWindow = batchWindow;
     }
 
     /**
@@ -37,81 +99,399 @@ public class PasswordServiceImpl extends PasswordServiceGrpc.PasswordServiceImpl
      */
     @Override
     public void hash(UserInputRequest request, StreamObserver<UserInputResponse> responseObserver) {
-        // Logging request
-        logger.info(String.format("Hash Request: %s", request));
+        long received = System.nanoTime();
+        Context context = Context.current();
+        if (shed(admissionControl.admit(context, 1, HashingExecutor.Priority.BACKGROUND), responseObserver)) {
+            return;
+        }
+        try {
+            hashingExecutor.execute(() -> {
+                if (!shed(admissionControl.dequeued(context), responseObserver)) {
+                    doHash(request, responseObserver, received);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            rejected(responseObserver);
+        }
+    }
+
+    /**
+     * rpc - Validate
+     *
+     * @param request
+     * @param responseObserver
+     */
+    @Override
+    public void validate(PasswordValidateRequest request, StreamObserver<PasswordValidateResponse> responseObserver) {
+        long received = System.nanoTime();
+        // Refused before it takes a place in the queue
+        if (!affordable(request, "validate", responseObserver)) {
+            return;
+        }
+        Context context = Context.current();
+        if (shed(admissionControl.admit(context, 1, HashingExecutor.Priority.INTERACTIVE), responseObserver)) {
+            return;
+        }
+        try {
+            // Someone is waiting to log in, goes ahead of queued Hash work
+            hashingExecutor.execute(() -> {
+                if (!shed(admissionControl.dequeued(context), responseObserver)) {
+                    doValidate(request, responseObserver, received);
+                }
+            }, HashingExecutor.Priority.INTERACTIVE);
+        } catch (RejectedExecutionException ex) {
+            rejected(responseObserver);
+        }
+    }
+
+    /**
+     * rpc - HashBatch
+     * <p>
+     * Streams requests in and hashes as they arrive, see HashBatchObserver for the flow control
+     *
+     * @param responseObserver
+     * @return request observer
+     */
+    @Override
+    public StreamObserver<UserInputRequest> hashBatch(StreamObserver<UserInputResponse> responseObserver) {
+        return new HashBatchObserver(this, hashingExecutor,
+                (ServerCallStreamObserver<UserInputResponse>) responseObserver, batchWindow);
+    }
+
+    /**
+     * rpc - ValidateBatch
+     * <p>
+     * Each validation is its own hashing task so a batch spreads over all hashing threads.
+     * Results go back in request order once the last one finishes.
+     *
+     * @param request
+     * @param responseObserver
+     */
+    @Override
+    public void validateBatch(PasswordValidateBatchRequest request,
+                              StreamObserver<PasswordValidateBatchResponse> responseObserver) {
+        int count = request.getRequestsCount();
+        events.info("validateBatch", "count", count);
+        if (count > MAX_VALIDATE_BATCH) {
+            responseObserver.onError(Status.INVALID_ARGUMENT
+                    .withDescription("ValidateBatch takes at most " + MAX_VALIDATE_BATCH + " requests")
+                    .asRuntimeException());
+            return;
+        }
+        // One costly entry refuses the whole batch, before any of it is queued
+        for (PasswordValidateRequest validateRequest : request.getRequestsList()) {
+            if (!affordable(validateRequest, "validateBatch", responseObserver)) {
+                return;
+            }
+        }
+        Context context = Context.current();
+        if (shed(admissionControl.admit(context, count, HashingExecutor.Priority.INTERACTIVE), responseObserver)) {
+            return;
+        }
+        ValidateBatch batch = new ValidateBatch(count, context, responseObserver);
+        if (count == 0) {
+            batch.complete();
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            try {
+                hashingExecutor.execute(() -> batch.validate(index, request.getRequests(index)),
+                        HashingExecutor.Priority.INTERACTIVE);
+            } catch (RejectedExecutionException ex) {
+                batch.fail(Status.RESOURCE_EXHAUSTED.withDescription("Password hashing queue is full"));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Hash on a hashing thread
+     *
+     * @param request
+     * @param responseObserver
+     * @param received         System.nanoTime() when the call arrived
+     */
+    private void doHash(UserInputRequest request, StreamObserver<UserInputResponse> responseObserver, long received) {
+        UserInputResponse userInputResponse;
+        try {
+            userInputResponse = hashPassword(request);
+        } catch (RuntimeException ex) {
+            events.warning("hash", "userId", request.getUserId(), "error", ex);
+            hashingFailed(responseObserver, ex);
+            return;
+        }
+        events.info("hash", "userId", request.getUserId(), "millis", millisSince(received),
+                "hashParameters", hashParametersText);
+        // Send and commit to client
+        respond(responseObserver, userInputResponse);
+    }
+
+    /**
+     * Validate on a hashing thread
+     *
+     * @param request
+     * @param responseObserver
+     * @param received         System.nanoTime() when the call arrived
+     */
+    private void doValidate(PasswordValidateRequest request, StreamObserver<PasswordValidateResponse> responseObserver,
+                            long received) {
+        PasswordValidateResponse passwordValidateResponse;
+        try {
+            passwordValidateResponse = validatePassword(request);
+        } catch (RuntimeException ex) {
+            events.warning("validate", "error", ex);
+            hashingFailed(responseObserver, ex);
+            return;
+        }
+        events.info("validate", "valid", passwordValidateResponse.getValidPassword(),
+                "rehashed", passwordValidateResponse.getRehashed(), "millis", millisSince(received));
+        // Send and commit to client
+        respond(responseObserver, passwordValidateResponse);
+    }
+
+    /**
+     * Salt and hash a request, must run on a hashing thread
+     *
+     * @param request
+     * @return response with userId, expectedHash, salt
+     */
+    UserInputResponse hashPassword(UserInputRequest request) {
+        long start = System.nanoTime();
+        HashingBuffers buffers = HashingBuffers.get();
         try {
             /**
              * Request from user and run through hashing function
              */
-            // Get userID
-            userId = request.getUserId();
             // Create Salt
-            salt = Passwords.getNextSalt();
-            // Convert user password into char array
-            charPassword = request.getPassword().toCharArray();
+            byte[] salt = Passwords.getNextSalt();
+            // Copy user password into this thread's char buffer
+            char[] charPassword = buffers.password(request.getPassword());
             // Hash password with salt
-            expectedHash = Passwords.hash(charPassword, salt);
+            byte[] expectedHash = Passwords.hash(charPassword, buffers.passwordLength(), salt, hashParameters);
             /**
              * Creating response to user
-             * Using ByteString.copyFrom in order to convert a byte[] --> ByteString
+             * salt and expectedHash are fresh arrays nobody else holds, so wrap them instead of copying
              *
-             * Sending back: userId, expectedHash, salt
+             * Sending back: userId, expectedHash, salt, hashParameters
              */
-            // Creating response
-            UserInputResponse userInputResponse = UserInputResponse.newBuilder()
-                    .setUserId(userId)
-                    .setSalt(ByteString.copyFrom(salt))
-                    .setExpectedHash(ByteString.copyFrom(expectedHash))
+            return UserInputResponse.newBuilder()
+                    .setUserId(request.getUserId())
+                    .setSalt(UnsafeByteOperations.unsafeWrap(salt))
+                    .setExpectedHash(UnsafeByteOperations.unsafeWrap(expectedHash))
+                    .setHashParameters(hashParametersText)
                     .build();
-            // Logging response
-            logger.info(String.format("Hash Response: %s", userInputResponse));
-            // Send to client
-            responseObserver.onNext(userInputResponse);
-        } catch (RuntimeException ex) {
-            logger.warning(String.format("Error thrown in Hash: %s", ex));
+        } finally {
+            buffers.clear();
+            hashingExecutor.recordTaskTime(System.nanoTime() - start);
         }
-        // Commit to client
-        responseObserver.onCompleted();
     }
 
     /**
-     * rpc - Validate
+     * Check a password against its hash, must run on a hashing thread
+     * <p>
+     * If the password is valid but the hash was made with other parameters than the current ones,
+     * the password is hashed again with the current ones and the new hash is sent back to be stored.
+     * The old hash keeps working, so callers that ignore it lose nothing.
      *
      * @param request
-     * @param responseObserver
+     * @return validPassword, plus the new hash if rehashed
+     * @throws IllegalArgumentException if the hash parameters are malformed, unsupported or too costly
      */
-    @Override
-    public void validate(PasswordValidateRequest request, StreamObserver<PasswordValidateResponse> responseObserver) {
-        // Logging request
-        logger.info(String.format("Validate Request: %s", request));
+    PasswordValidateResponse validatePassword(PasswordValidateRequest request) {
+        // Hashed with whatever the stored hash says, not the current settings -- within the cost limit
+        HashParameters parameters = costLimit.parse(request.getHashParameters());
+        long start = System.nanoTime();
+        HashingBuffers buffers = HashingBuffers.get();
         try {
             /**
              * Request from user and run through validation function
+             * Password, salt and expectedHash are copied into this thread's buffers
              */
-            // Get password
-            charPassword = request.getPassword().toCharArray();
-            // Get salt
-            salt = request.getSalt().toByteArray();
-            // Get expectedHash
-            expectedHash = request.getExpectedHash().toByteArray();
+            char[] charPassword = buffers.password(request.getPassword());
+            byte[] salt = buffers.salt(request.getSalt());
+            byte[] expectedHash = buffers.expectedHash(request.getExpectedHash());
             // Check if the password is valid or not
-            isValidPassword = Passwords.isExpectedPassword(charPassword, salt, expectedHash);
+            boolean isValidPassword = Passwords.isExpectedPassword(charPassword, buffers.passwordLength(), salt,
+                    expectedHash, parameters);
             /**
              * Creating response to user
-             * Sending back: isValidPassword
+             * Sending back: isValidPassword, and a fresh hash when the stored one is outdated
              */
-            PasswordValidateResponse passwordValidateResponse = PasswordValidateResponse.newBuilder()
-                    .setValidPassword(isValidPassword)
-                    .build();
-            // Logging response
-            logger.info(String.format("Validate Response: %s", passwordValidateResponse.getValidPassword()));
-            // Send to client
-            responseObserver.onNext(passwordValidateResponse);
-        } catch (RuntimeException ex) {
-            System.out.println(ex);
-            logger.warning(String.format("Error thrown in Validate: ", ex));
+            PasswordValidateResponse.Builder response = PasswordValidateResponse.newBuilder()
+                    .setValidPassword(isValidPassword);
+            if (isValidPassword && !parameters.equals(hashParameters)) {
+                byte[] newSalt = Passwords.getNextSalt();
+                byte[] newHash = Passwords.hash(charPassword, buffers.passwordLength(), newSalt, hashParameters);
+                response.setRehashed(true)
+                        .setNewSalt(UnsafeByteOperations.unsafeWrap(newSalt))
+                        .setNewExpectedHash(UnsafeByteOperations.unsafeWrap(newHash))
+                        .setNewHashParameters(hashParametersText);
+            }
+            return response.build();
+        } finally {
+            buffers.clear();
+            hashingExecutor.recordTaskTime(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Results of one ValidateBatch call, filled in by the hashing threads
+     */
+    private class ValidateBatch {
+        private final PasswordValidateResponse[] results;
+        private final AtomicInteger remaining;
+        private final AtomicBoolean failed = new AtomicBoolean();
+        private final Context context;
+        private final StreamObserver<PasswordValidateBatchResponse> responseObserver;
+
+        ValidateBatch(int count, Context context, StreamObserver<PasswordValidateBatchResponse> responseObserver) {
+            this.results = new PasswordValidateResponse[count];
+            this.remaining = new AtomicInteger(count);
+            this.context = context;
+            this.responseObserver = responseObserver;
+        }
+
+        void validate(int index, PasswordValidateRequest request) {
+            // Batch already answered with an error, don't burn the CPU
+            if (failed.get()) {
+                return;
+            }
+            Status shed = admissionControl.dequeued(context);
+            if (shed != null) {
+                fail(shed);
+                return;
+            }
+            try {
+                results[index] = validatePassword(request);
+            } catch (RuntimeException ex) {
+                events.warning("validateBatch", "index", index, "error", ex);
+                fail(errorStatus(ex));
+                return;
+            }
+            // Last one done sends the response, the atomic decrement publishes the other threads' results
+            if (remaining.decrementAndGet() == 0) {
+                complete();
+            }
+        }
+
+        void complete() {
+            if (failed.get()) {
+                return;
+            }
+            PasswordValidateBatchResponse.Builder response = PasswordValidateBatchResponse.newBuilder();
+            for (PasswordValidateResponse result : results) {
+                response.addResponses(result);
+            }
+            respond(responseObserver, response.build());
+        }
+
+        void fail(Status status) {
+            if (failed.compareAndSet(false, true)) {
+                responseObserver.onError(status.asRuntimeException());
+            }
+        }
+    }
+
+    /**
+     * Send the one response of a call
+     * <p>
+     * The call can be cancelled while its hash runs -- the client gave up or the server is shutting down -- and then
+     * there is nobody to answer.
+     *
+     * @param responseObserver
+     * @param response
+     */
+    private static <T> void respond(StreamObserver<T> responseObserver, T response) {
+        try {
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        } catch (StatusRuntimeException ex) {
+            if (ex.getStatus().getCode() != Status.Code.CANCELLED) {
+                throw ex;
+            }
+        }
+    }
+
+    private static long millisSince(long start) {
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    /**
+     * Check a Validate request's hash parameters before queueing it, answering INVALID_ARGUMENT if they are
+     * malformed, unsupported or cost more than the limit allows
+     *
+     * @param request
+     * @param event            for the log
+     * @param responseObserver
+     * @return true if it may be queued
+     */
+    private boolean affordable(PasswordValidateRequest request, String event, StreamObserver<?> responseObserver) {
+        try {
+            costLimit.parse(request.getHashParameters());
+            return true;
+        } catch (IllegalArgumentException ex) {
+            events.warning(event, "error", ex);
+            responseObserver.onError(errorStatus(ex).asRuntimeException());
+            return false;
+        }
+    }
+
+    /**
+     * Admission control turned the call away -- answer with its status
+     *
+     * @param status           from AdmissionControl, null if admitted
+     * @param responseObserver
+     * @return true if shed
+     */
+    private boolean shed(Status status, StreamObserver<?> responseObserver) {
+        if (status == null) {
+            return false;
+        }
+        responseObserver.onError(status.asRuntimeException());
+        return true;
+    }
+
+    /**
+     * Admission control counters, for metrics
+     *
+     * @return admission control
+     */
+    AdmissionMXBean getAdmission() {
+        return admissionControl;
+    }
+
+    /**
+     * Hashing queue is full -- tell the client to back off
+     *
+     * @param responseObserver
+     */
+    private void rejected(StreamObserver<?> responseObserver) {
+        responseObserver.onError(Status.RESOURCE_EXHAUSTED
+                .withDescription("Password hashing queue is full")
+                .asRuntimeException());
+    }
+
+    /**
+     * Hashing failed -- send the error instead of completing with no response
+     *
+     * @param responseObserver
+     * @param ex
+     */
+    private void hashingFailed(StreamObserver<?> responseObserver, RuntimeException ex) {
+        responseObserver.onError(errorStatus(ex).asRuntimeException());
+    }
+
+    /**
+     * Bad hash parameters from the client are INVALID_ARGUMENT, anything else is on us
+     *
+     * @param ex
+     * @return status
+     */
+    static Status errorStatus(RuntimeException ex) {
+        if (ex instanceof IllegalArgumentException) {
+            return Status.INVALID_ARGUMENT.withDescription(ex.getMessage());
         }
-        // Commit to client
-        responseObserver.onCompleted();
+        return Status.INTERNAL.withDescription("Password hashing failed").withCause(ex);
     }
 }
@@ -2,11 +2,8 @@ package ie.gmit.ds;
 
 import com.google.protobuf.ByteString;
 
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
-import java.security.NoSuchAlgorithmException;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
-import java.security.spec.InvalidKeySpecException;
 import java.util.Arrays;
 import java.util.Random;
 
@@ -15,29 +12,43 @@ import java.util.Random;
  * salt. The algorithm used is PBKDF2WithHmacSHA1 which, although not the best for hashing password (vs. bcrypt) is
  * still considered robust and <a href="https://security.stackexchange.com/a/6415/12614"> recommended by NIST </a>.
  * The hashed value has 256 bits.
+ * <p>
+ * That is the LEGACY scheme. The overloads taking HashParameters can also use PBKDF2-SHA256, scrypt or Argon2id
+ * with any cost, see HashAlgorithm.
  * Adapted from <a href="https://stackoverflow.com/questions/18142745/how-do-i-generate-a-salt-in-java-for-salted-hash">
  */
 public class Passwords {
 
     private static final Random RANDOM = new SecureRandom();
-    private static final int ITERATIONS = 10000;
+    static final int ITERATIONS = 10000;
     private static final int KEY_LENGTH = 256;
 
+    /**
+     * Sizes in bytes of the salt and of the hashed value
+     */
+    public static final int SALT_LENGTH = 32;
+    public static final int HASH_LENGTH = KEY_LENGTH / 8;
+
     /**
      * static utility class
      */
     private Passwords() {
     }
 
+    /**
+     * Salts are generated ahead in the background, the pool starts on first use
+     */
+    private static final class Salts {
+        static final SaltPool POOL = new SaltPool(SALT_LENGTH, SaltPool.DEFAULT_BLOCK_SALTS);
+    }
+
     /**
      * Returns a random salt to be used to hash a password.
      *
      * @return a 16 bytes random salt
      */
     public static byte[] getNextSalt() {
-        byte[] salt = new byte[32];
-        RANDOM.nextBytes(salt);
-        return salt;
+        return Salts.POOL.next();
     }
 
     /**
@@ -48,15 +59,35 @@ public class Passwords {
      * @return the hashed password with a pinch of salt
      */
     public static byte[] hash(char[] password, byte[] salt) {
-        PBEKeySpec spec = new PBEKeySpec(password, salt, ITERATIONS, KEY_LENGTH);
-        try {
-            SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-            return skf.generateSecret(spec).getEncoded();
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
-            throw new AssertionError("Error while hashing a password: " + e.getMessage(), e);
-        } finally {
-            spec.clearPassword();
-        }
+        return hash(password, password.length, salt);
+    }
+
+    /**
+     * Returns a salted and hashed password using the first passwordLength chars of the buffer.<br>
+     *
+     * @param password       buffer holding the password to be hashed
+     * @param passwordLength number of chars of the buffer that make up the password
+     * @param salt           a 16 bytes salt, ideally obtained with the getNextSalt method
+     * @return the hashed password with a pinch of salt
+     */
+    public static byte[] hash(char[] password, int passwordLength, byte[] salt) {
+        return hash(password, passwordLength, salt, HashParameters.LEGACY);
+    }
+
+    /**
+     * Returns a salted and hashed password using the given algorithm and cost.<br>
+     *
+     * @param password       buffer holding the password to be hashed
+     * @param passwordLength number of chars of the buffer that make up the password
+     * @param salt           a 16 bytes salt, ideally obtained with the getNextSalt method
+     * @param parameters     algorithm and cost
+     * @return the hashed password with a pinch of salt
+     */
+    public static byte[] hash(char[] password, int passwordLength, byte[] salt, HashParameters parameters) {
+        long start = System.nanoTime();
+        byte[] hash = parameters.getAlgorithm().hash(password, passwordLength, salt, parameters);
+        HashTimings.record(parameters.getAlgorithm(), System.nanoTime() - start);
+        return hash;
     }
 
     /**
@@ -68,8 +99,42 @@ public class Passwords {
      * @return true if the given password and salt match the hashed value, false otherwise
      */
     public static boolean isExpectedPassword(char[] password, byte[] salt, byte[] expectedHash) {
-        byte[] pwdHash = hash(password, salt);
-        return Arrays.equals(pwdHash, expectedHash);
+        return isExpectedPassword(password, password.length, salt, expectedHash);
+    }
+
+    /**
+     * Returns true if the first passwordLength chars of the buffer and salt match the hashed value, false otherwise.<br>
+     * Compared in constant time.
+     *
+     * @param password       buffer holding the password to check
+     * @param passwordLength number of chars of the buffer that make up the password
+     * @param salt           the salt used to hash the password
+     * @param expectedHash   the expected hashed value of the password
+     * @return true if the given password and salt match the hashed value, false otherwise
+     */
+    public static boolean isExpectedPassword(char[] password, int passwordLength, byte[] salt, byte[] expectedHash) {
+        return isExpectedPassword(password, passwordLength, salt, expectedHash, HashParameters.LEGACY);
+    }
+
+    /**
+     * Returns true if the password hashed with the given algorithm and cost matches the hashed value, false otherwise.<br>
+     * Compared in constant time.
+     *
+     * @param password       buffer holding the password to check
+     * @param passwordLength number of chars of the buffer that make up the password
+     * @param salt           the salt used to hash the password
+     * @param expectedHash   the expected hashed value of the password
+     * @param parameters     algorithm and cost the expected hash was made with
+     * @return true if the given password and salt match the hashed value, false otherwise
+     */
+    public static boolean isExpectedPassword(char[] password, int passwordLength, byte[] salt, byte[] expectedHash,
+                                             HashParameters parameters) {
+        byte[] pwdHash = hash(password, passwordLength, salt, parameters);
+        try {
+            return MessageDigest.isEqual(pwdHash, expectedHash);
+        } finally {
+            Arrays.fill(pwdHash, (byte) 0);
+        }
     }
 
     /**
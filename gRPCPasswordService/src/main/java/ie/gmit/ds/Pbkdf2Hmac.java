@@ -0,0 +1,177 @@
+package ie.gmit.ds;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * PBKDF2 with HMAC-SHA1 or HMAC-SHA256 (RFC 2898), same output as SecretKeyFactory "PBKDF2WithHmacSHA1" /
+ * "PBKDF2WithHmacSHA256" (Pbkdf2HmacTest checks it byte for byte).
+ * <p>
+ * One engine per digest per hashing thread (see sha1() and sha256()). The MessageDigest is looked up once per thread
+ * and the HMAC is keyed once per password (the key ^ ipad / key ^ opad blocks are kept for every iteration).
+ * Iterations digest straight into the reused U/T buffers, so unlike Mac.doFinal nothing is allocated per iteration,
+ * and the JDK's digest (intrinsics where the CPU has them) still does the work. Everything is zeroed after each hash.
+ * <p>
+ * Passwords are encoded as UTF-8 like the JDK does, unpaired surrogates become '?'.
+ */
+final class Pbkdf2Hmac {
+    private static final ThreadLocal<Pbkdf2Hmac> SHA1 = ThreadLocal.withInitial(() -> new Pbkdf2Hmac("SHA-1"));
+    private static final ThreadLocal<Pbkdf2Hmac> SHA256 = ThreadLocal.withInitial(() -> new Pbkdf2Hmac("SHA-256"));
+
+    // Same block size for SHA-1 and SHA-256
+    private static final int BLOCK_LENGTH = 64;
+
+    private final MessageDigest digest;
+    private final int digestLength;
+    /**
+     * HMAC key blocks: key ^ 0x36 and key ^ 0x5c
+     */
+    private final byte[] innerPad = new byte[BLOCK_LENGTH];
+    private final byte[] outerPad = new byte[BLOCK_LENGTH];
+    /**
+     * Current U value and the running xor of all U values for a block
+     */
+    private final byte[] u;
+    private final byte[] t;
+    private byte[] key = new byte[BLOCK_LENGTH];
+    private byte[] message = new byte[Passwords.SALT_LENGTH + 4];
+
+    private Pbkdf2Hmac(String digestAlgorithm) {
+        try {
+            digest = MessageDigest.getInstance(digestAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(digestAlgorithm + " not available: " + e.getMessage(), e);
+        }
+        digestLength = digest.getDigestLength();
+        u = new byte[digestLength];
+        t = new byte[digestLength];
+    }
+
+    /**
+     * PBKDF2-HMAC-SHA1 engine for the calling thread
+     *
+     * @return engine
+     */
+    static Pbkdf2Hmac sha1() {
+        return SHA1.get();
+    }
+
+    /**
+     * PBKDF2-HMAC-SHA256 engine for the calling thread
+     *
+     * @return engine
+     */
+    static Pbkdf2Hmac sha256() {
+        return SHA256.get();
+    }
+
+    /**
+     * Derive a key from the first passwordLength chars of password
+     *
+     * @param password       buffer holding the password
+     * @param passwordLength number of chars of the buffer that make up the password
+     * @param salt           salt, must not be empty
+     * @param iterations     iteration count
+     * @param keyLength      derived key length in bytes
+     * @return derived key
+     */
+    byte[] derive(char[] password, int passwordLength, byte[] salt, int iterations, int keyLength) {
+        if (salt.length == 0) {
+            throw new IllegalArgumentException("the salt parameter must not be empty");
+        }
+        if (iterations < 1 || keyLength < 1) {
+            throw new IllegalArgumentException("Iterations and key length must be positive");
+        }
+        byte[] out = new byte[keyLength];
+        try {
+            initKey(password, passwordLength);
+            int messageLength = salt.length + 4;
+            if (message.length < messageLength) {
+                message = new byte[messageLength];
+            }
+            System.arraycopy(salt, 0, message, 0, salt.length);
+            int blocks = (keyLength + digestLength - 1) / digestLength;
+            for (int i = 1; i <= blocks; i++) {
+                deriveBlock(i, salt.length, iterations);
+                // Last block may be cut short
+                int offset = (i - 1) * digestLength;
+                System.arraycopy(t, 0, out, offset, Math.min(digestLength, keyLength - offset));
+            }
+            return out;
+        } catch (DigestException e) {
+            throw new AssertionError("Error while hashing a password: " + e.getMessage(), e);
+        } finally {
+            clear();
+        }
+    }
+
+    /**
+     * T_i = U_1 ^ U_2 ^ ... ^ U_c
+     */
+    private void deriveBlock(int index, int saltLength, int iterations) throws DigestException {
+        // U_1 = HMAC(P, S || INT(i))
+        message[saltLength] = (byte) (index >>> 24);
+        message[saltLength + 1] = (byte) (index >>> 16);
+        message[saltLength + 2] = (byte) (index >>> 8);
+        message[saltLength + 3] = (byte) index;
+        hmac(message, saltLength + 4);
+        System.arraycopy(u, 0, t, 0, digestLength);
+        // U_j = HMAC(P, U_{j-1})
+        for (int j = 1; j < iterations; j++) {
+            hmac(u, digestLength);
+            for (int k = 0; k < digestLength; k++) {
+                t[k] ^= u[k];
+            }
+        }
+    }
+
+    /**
+     * u = H(key ^ opad || H(key ^ ipad || data))
+     */
+    private void hmac(byte[] data, int length) throws DigestException {
+        digest.update(innerPad);
+        digest.update(data, 0, length);
+        digest.digest(u, 0, digestLength);
+        digest.update(outerPad);
+        digest.update(u);
+        digest.digest(u, 0, digestLength);
+    }
+
+    /**
+     * UTF-8 encode the password as the HMAC key. Keys longer than a block are hashed first (RFC 2104),
+     * then the pad blocks are built.
+     */
+    private void initKey(char[] password, int passwordLength) throws DigestException {
+        int capacity = Math.max(BLOCK_LENGTH, Utf8.maxBytes(passwordLength));
+        if (key.length < capacity) {
+            Arrays.fill(key, (byte) 0);
+            key = new byte[capacity];
+        }
+        // key is all zero past the password, which is the HMAC zero padding
+        int keyLength = Utf8.encode(password, passwordLength, key);
+        if (keyLength > BLOCK_LENGTH) {
+            digest.update(key, 0, keyLength);
+            Arrays.fill(key, (byte) 0);
+            digest.digest(key, 0, digestLength);
+        }
+        for (int j = 0; j < BLOCK_LENGTH; j++) {
+            innerPad[j] = (byte) (key[j] ^ 0x36);
+            outerPad[j] = (byte) (key[j] ^ 0x5c);
+        }
+    }
+
+    /**
+     * Nothing derived from the password survives the call
+     */
+    private void clear() {
+        Arrays.fill(key, (byte) 0);
+        Arrays.fill(message, (byte) 0);
+        Arrays.fill(u, (byte) 0);
+        Arrays.fill(t, (byte) 0);
+        Arrays.fill(innerPad, (byte) 0);
+        Arrays.fill(outerPad, (byte) 0);
+        digest.reset();
+    }
+}
@@ -0,0 +1,263 @@
+package ie.gmit.ds;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Work queue of the hashing pool with one bounded FIFO lane per HashingExecutor.Priority.
+ * <p>
+ * Takes from the INTERACTIVE lane (logins) first. So BACKGROUND work (account creation) still moves when logins
+ * never let up, every backgroundEvery-th take in a row while both lanes have work goes to the BACKGROUND lane.
+ * Each lane has its own capacity, so a bulk signup filling its lane can't make logins be rejected.
+ * <p>
+ * Tasks are lane-tagged with Task, anything else goes into the BACKGROUND lane.
+ * One lock for both lanes, like ArrayBlockingQueue. Iterators work on a snapshot.
+ */
+final class PriorityLaneQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    /**
+     * A task and its lane, records how long it waited for a thread
+     */
+    static final class Task implements Runnable {
+        private final Runnable task;
+        private final HashingExecutor.Priority priority;
+        private final LatencyHistogram queueWait;
+        private final long queuedAt = System.nanoTime();
+
+        Task(Runnable task, HashingExecutor.Priority priority, LatencyHistogram queueWait) {
+            this.task = task;
+            this.priority = priority;
+            this.queueWait = queueWait;
+        }
+
+        @Override
+        public void run() {
+            queueWait.record(System.nanoTime() - queuedAt);
+            task.run();
+        }
+    }
+
+    private final int laneCapacity;
+    private final int backgroundEvery;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    // Guarded by lock
+    private final ArrayDeque<Runnable> interactive = new ArrayDeque<>();
+    private final ArrayDeque<Runnable> background = new ArrayDeque<>();
+    private int interactiveStreak; // INTERACTIVE takes in a row while BACKGROUND work was waiting
+
+    /**
+     * @param laneCapacity    max tasks waiting in each lane
+     * @param backgroundEvery at least one take in this many goes to waiting BACKGROUND work
+     */
+    PriorityLaneQueue(int laneCapacity, int backgroundEvery) {
+        if (laneCapacity < 1) {
+            throw new IllegalArgumentException("Lane capacity must be at least 1: " + laneCapacity);
+        }
+        if (backgroundEvery < 1) {
+            throw new IllegalArgumentException("Background share must be at least 1: " + backgroundEvery);
+        }
+        this.laneCapacity = laneCapacity;
+        this.backgroundEvery = backgroundEvery;
+    }
+
+    private ArrayDeque<Runnable> lane(Runnable task) {
+        return task instanceof Task && ((Task) task).priority == HashingExecutor.Priority.INTERACTIVE
+                ? interactive : background;
+    }
+
+    // Call holding lock, with at least one lane not empty
+    private Runnable dequeue() {
+        Runnable task;
+        if (interactive.isEmpty() || (!background.isEmpty() && interactiveStreak >= backgroundEvery - 1)) {
+            task = background.poll();
+            interactiveStreak = 0;
+        } else {
+            task = interactive.poll();
+            interactiveStreak = background.isEmpty() ? 0 : interactiveStreak + 1;
+        }
+        return task;
+    }
+
+    /**
+     * Tasks waiting in one lane
+     *
+     * @param priority
+     * @return count
+     */
+    int size(HashingExecutor.Priority priority) {
+        lock.lock();
+        try {
+            return priority == HashingExecutor.Priority.INTERACTIVE ? interactive.size() : background.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getLaneCapacity() {
+        return laneCapacity;
+    }
+
+    int getBackgroundEvery() {
+        return backgroundEvery;
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        lock.lock();
+        try {
+            ArrayDeque<Runnable> lane = lane(task);
+            if (lane.size() >= laneCapacity) {
+                return false;
+            }
+            lane.add(task);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Doesn't wait for room -- the pool rejects instead
+     */
+    @Override
+    public boolean offer(Runnable task, long timeout, TimeUnit unit) {
+        return offer(task);
+    }
+
+    @Override
+    public void put(Runnable task) {
+        if (!offer(task)) {
+            throw new IllegalStateException("Queue full");
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (interactive.isEmpty() && background.isEmpty()) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (interactive.isEmpty() && background.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return interactive.isEmpty() && background.isEmpty() ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            return interactive.isEmpty() ? background.peek() : interactive.peek();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object task) {
+        lock.lock();
+        try {
+            return interactive.remove(task) || background.remove(task);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return interactive.size() + background.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Room left in the BACKGROUND lane, the one untagged tasks go to
+     */
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return laneCapacity - background.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> collection, int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            while (drained < maxElements && !(interactive.isEmpty() && background.isEmpty())) {
+                collection.add(dequeue());
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Iterator<Runnable> iterator() {
+        lock.lock();
+        try {
+            List<Runnable> snapshot = new ArrayList<>(interactive);
+            snapshot.addAll(background);
+            return Collections.unmodifiableList(snapshot).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
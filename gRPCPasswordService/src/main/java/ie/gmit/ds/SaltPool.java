@@ -0,0 +1,173 @@
+package ie.gmit.ds;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Supply of random salts, filled ahead of time off the request path.
+ * <p>
+ * Salts come from stripes, one per core rounded up to a power of 2, picked by thread id. Each stripe has its own
+ * SecureRandom (DRBG where the JDK has it) and hands out salts from a pre-filled block: taking one is an atomic
+ * increment and a copy, no lock. When a block runs out the stripe swaps in its spare block and a background thread
+ * fills a new spare. Only if the spare isn't ready yet does the calling thread fill a block itself.
+ * <p>
+ * SaltBenchmark in PasswordBenchmarks compares it, through Passwords.getNextSalt, with one shared SecureRandom.
+ */
+final class SaltPool {
+
+    static final int DEFAULT_BLOCK_SALTS = 64;
+
+    private final int saltLength;
+    private final int blockSalts;
+    private final Stripe[] stripes;
+    private final int mask;
+    private final Thread refiller;
+    private final AtomicLong refills = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    /**
+     * Salts of one block, handed out in order
+     */
+    private static final class Block {
+        final byte[] bytes;
+        final AtomicInteger next = new AtomicInteger();
+
+        Block(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    private static final class Stripe {
+        final SecureRandom random;
+        final AtomicReference<Block> current = new AtomicReference<>();
+        final AtomicReference<Block> spare = new AtomicReference<>();
+
+        Stripe(SecureRandom random) {
+            this.random = random;
+        }
+    }
+
+    /**
+     * Pool with a stripe per core, started
+     *
+     * @param saltLength bytes per salt
+     * @param blockSalts salts per block
+     */
+    SaltPool(int saltLength, int blockSalts) {
+        this(saltLength, blockSalts, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Pool, started
+     *
+     * @param saltLength bytes per salt
+     * @param blockSalts salts per block
+     * @param stripes    number of stripes, rounded up to a power of 2
+     */
+    SaltPool(int saltLength, int blockSalts, int stripes) {
+        if (saltLength < 1 || blockSalts < 1 || stripes < 1) {
+            throw new IllegalArgumentException("Salt length, block size and stripes must be positive");
+        }
+        this.saltLength = saltLength;
+        this.blockSalts = blockSalts;
+        int count = Integer.highestOneBit(stripes - 1) << 1;
+        this.stripes = new Stripe[Math.max(count, 1)];
+        this.mask = this.stripes.length - 1;
+        for (int i = 0; i < this.stripes.length; i++) {
+            Stripe stripe = new Stripe(newRandom());
+            stripe.current.set(fill(stripe));
+            stripe.spare.set(fill(stripe));
+            this.stripes[i] = stripe;
+        }
+        refiller = new Thread(this::refill, "salt-pool-refill");
+        refiller.setDaemon(true);
+        refiller.start();
+    }
+
+    /**
+     * DRBG (NIST SP 800-90A) if the JDK has it, otherwise the platform default
+     */
+    private static SecureRandom newRandom() {
+        try {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    }
+
+    private Block fill(Stripe stripe) {
+        byte[] bytes = new byte[saltLength * blockSalts];
+        stripe.random.nextBytes(bytes);
+        return new Block(bytes);
+    }
+
+    /**
+     * A fresh salt
+     *
+     * @return saltLength random bytes, the caller's to keep
+     */
+    byte[] next() {
+        Stripe stripe = stripes[(int) Thread.currentThread().getId() & mask];
+        while (true) {
+            Block block = stripe.current.get();
+            int index = block.next.getAndIncrement();
+            if (index < blockSalts) {
+                byte[] salt = new byte[saltLength];
+                System.arraycopy(block.bytes, index * saltLength, salt, 0, saltLength);
+                return salt;
+            }
+            Block spare = stripe.spare.getAndSet(null);
+            if (spare == null) {
+                // Refill is behind -- don't wait for it
+                fallbacks.incrementAndGet();
+                spare = fill(stripe);
+            }
+            if (stripe.current.compareAndSet(block, spare)) {
+                LockSupport.unpark(refiller);
+            } else {
+                // Another thread swapped first, give the spare back (dropped if a new one is there already)
+                stripe.spare.compareAndSet(null, spare);
+            }
+        }
+    }
+
+    /**
+     * Background thread: fills a spare for every stripe that used its own, then sleeps until woken
+     */
+    private void refill() {
+        while (true) {
+            for (Stripe stripe : stripes) {
+                if (stripe.spare.get() == null && stripe.spare.compareAndSet(null, fill(stripe))) {
+                    refills.incrementAndGet();
+                }
+            }
+            LockSupport.parkNanos(this, 1_000_000_000L);
+        }
+    }
+
+    int getStripes() {
+        return stripes.length;
+    }
+
+    /**
+     * Blocks filled by the background thread
+     *
+     * @return count
+     */
+    long getRefills() {
+        return refills.get();
+    }
+
+    /**
+     * Blocks filled on the calling thread because the spare wasn't ready
+     *
+     * @return count
+     */
+    long getFallbacks() {
+        return fallbacks.get();
+    }
+}
@@ -0,0 +1,56 @@
+package ie.gmit.ds;
+
+/**
+ * UTF-8 encoding of a char buffer without going through a String or a CharsetEncoder.
+ * <p>
+ * Same bytes as the JDK encoder (and so the JDK PBKDF2): unpaired surrogates become '?'.
+ */
+final class Utf8 {
+
+    private Utf8() {
+    }
+
+    /**
+     * Largest number of bytes length chars can encode to
+     *
+     * @param length
+     * @return max bytes
+     */
+    static int maxBytes(int length) {
+        return length * 3;
+    }
+
+    /**
+     * Encode the first length chars into out, which must hold maxBytes(length)
+     *
+     * @param chars
+     * @param length
+     * @param out
+     * @return number of bytes written
+     */
+    static int encode(char[] chars, int length, byte[] out) {
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            if (c < 0x80) {
+                out[n++] = (byte) c;
+            } else if (c < 0x800) {
+                out[n++] = (byte) (0xC0 | (c >> 6));
+                out[n++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars[i + 1])) {
+                int cp = Character.toCodePoint(c, chars[++i]);
+                out[n++] = (byte) (0xF0 | (cp >> 18));
+                out[n++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                out[n++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                out[n++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                out[n++] = (byte) '?';
+            } else {
+                out[n++] = (byte) (0xE0 | (c >> 12));
+                out[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[n++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return n;
+    }
+}
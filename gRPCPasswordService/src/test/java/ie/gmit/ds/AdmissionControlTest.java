@@ -0,0 +1,99 @@
+package ie.gmit.ds;
+
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.Status;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Deadline shedding in AdmissionControl, against a fixed queue wait estimate
+ */
+public class AdmissionControlTest {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private long estimateNanos;
+    private final HashingExecutor hashingExecutor = new HashingExecutor(1, 10) {
+        @Override
+        public long estimateWaitNanos(int tasks, Priority priority) {
+            return estimateNanos;
+        }
+    };
+    private final AdmissionControl admission = new AdmissionControl(hashingExecutor);
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+        hashingExecutor.shutdown();
+    }
+
+    @Test
+    public void callPastItsDeadlineIsShed() {
+        Context.CancellableContext context = Context.current()
+                .withDeadline(Deadline.after(-1, TimeUnit.SECONDS), scheduler);
+        try {
+            assertEquals(Status.Code.DEADLINE_EXCEEDED,
+                    admission.admit(context, 1, HashingExecutor.Priority.INTERACTIVE).getCode());
+            assertEquals(1, admission.getShedExpired());
+            assertEquals(0, admission.getShedOverloaded());
+        } finally {
+            context.cancel(null);
+        }
+    }
+
+    @Test
+    public void callWhoseWaitIsPastItsDeadlineIsShed() {
+        Context.CancellableContext context = Context.current().withDeadlineAfter(1, TimeUnit.SECONDS, scheduler);
+        try {
+            estimateNanos = TimeUnit.SECONDS.toNanos(2);
+            assertEquals(Status.Code.RESOURCE_EXHAUSTED,
+                    admission.admit(context, 4, HashingExecutor.Priority.BACKGROUND).getCode());
+            assertEquals(1, admission.getShedOverloaded());
+
+            estimateNanos = TimeUnit.MILLISECONDS.toNanos(10);
+            assertNull(admission.admit(context, 4, HashingExecutor.Priority.BACKGROUND));
+            assertEquals(1, admission.getShedOverloaded());
+        } finally {
+            context.cancel(null);
+        }
+    }
+
+    @Test
+    public void callWithoutDeadlineIsOnlyShedWhenCancelled() {
+        estimateNanos = TimeUnit.HOURS.toNanos(1);
+        assertNull(admission.admit(Context.ROOT, 1, HashingExecutor.Priority.INTERACTIVE));
+        assertEquals(0, admission.getShedOverloaded());
+    }
+
+    @Test
+    public void taskOfACancelledCallIsSkippedWhenDequeued() {
+        Context.CancellableContext context = Context.current().withCancellation();
+        assertNull(admission.admit(context, 1, HashingExecutor.Priority.INTERACTIVE));
+        assertNull(admission.dequeued(context));
+
+        context.cancel(null);
+        assertEquals(Status.Code.CANCELLED, admission.dequeued(context).getCode());
+        assertEquals(1, admission.getShedCancelled());
+    }
+
+    @Test
+    public void taskWhoseDeadlinePassedInTheQueueIsSkipped() throws Exception {
+        Context.CancellableContext context = Context.current()
+                .withDeadlineAfter(50, TimeUnit.MILLISECONDS, scheduler);
+        try {
+            assertNull(admission.admit(context, 1, HashingExecutor.Priority.INTERACTIVE));
+            Thread.sleep(100);
+            assertEquals(Status.Code.DEADLINE_EXCEEDED, admission.dequeued(context).getCode());
+            assertEquals(1, admission.getShedExpired());
+        } finally {
+            context.cancel(null);
+        }
+    }
+}
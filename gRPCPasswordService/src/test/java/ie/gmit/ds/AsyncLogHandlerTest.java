@@ -0,0 +1,65 @@
+package ie.gmit.ds;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * What AsyncLogHandler drops when its queue is full
+ */
+public class AsyncLogHandlerTest {
+
+    @Test
+    public void warningsAreWrittenWhenTheQueueIsFull() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> written = new CopyOnWriteArrayList<>();
+        Handler target = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                if (Thread.currentThread().getName().equals("async-log-writer")) {
+                    writing.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                written.add(record.getMessage());
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        AsyncLogHandler handler = new AsyncLogHandler(target, 1);
+        // Writer takes the first and is held in the target, the second fills the queue
+        handler.publish(new LogRecord(Level.INFO, "first"));
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        handler.publish(new LogRecord(Level.INFO, "queued"));
+        handler.publish(new LogRecord(Level.INFO, "dropped"));
+        handler.publish(new LogRecord(Level.WARNING, "warning"));
+        handler.publish(new LogRecord(Level.SEVERE, "severe"));
+        assertEquals(1, handler.getDropped());
+        assertEquals(Arrays.asList("warning", "severe"), written);
+
+        release.countDown();
+        handler.close();
+        assertEquals(Arrays.asList("warning", "severe", "first",
+                "queued (1 log records dropped before this one)"), written);
+    }
+}
@@ -0,0 +1,78 @@
+package ie.gmit.ds;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * HashCostLimit across a fleet: every node builds it from the same settings, each calibrates on its own hardware
+ */
+public class HashCostLimitTest {
+
+    private static final HashParameters CONFIGURED = HashParameters.parse("pbkdf2-sha256$i=10000,l=32");
+
+    @Test
+    public void hashCalibratedOnAFasterNodeIsAcceptedOnASlowerOne() {
+        HashCostLimit fastLimit = new HashCostLimit(CONFIGURED, true, Collections.emptyList(),
+                HashCostLimit.DEFAULT_MAX_COST_FACTOR, Collections.emptyList());
+        HashCostLimit slowLimit = new HashCostLimit(CONFIGURED, true, Collections.emptyList(),
+                HashCostLimit.DEFAULT_MAX_COST_FACTOR, Collections.emptyList());
+        // A higher target stands in for the same target on faster hardware
+        HashParameters fast = new HashCostCalibrator(60).calibrate(CONFIGURED,
+                fastLimit.getMaxWork(CONFIGURED.getAlgorithm()));
+        HashParameters slow = new HashCostCalibrator(2).calibrate(CONFIGURED,
+                slowLimit.getMaxWork(CONFIGURED.getAlgorithm()));
+        assertTrue(fast + " vs " + slow, fast.get("i") > 2 * slow.get("i"));
+
+        slowLimit.check(fast);
+        fastLimit.check(slow);
+        // Judged against the slower node's own calibration it would be refused
+        assertRejected(new HashCostLimit(slow), fast);
+    }
+
+    @Test
+    public void calibrationStaysUnderTheCeiling() {
+        HashCostLimit limit = new HashCostLimit(CONFIGURED, true, Collections.emptyList(),
+                HashCostLimit.DEFAULT_MAX_COST_FACTOR,
+                Collections.singletonList(HashParameters.parse("pbkdf2-sha256$i=25000,l=32")));
+        assertEquals(25000, limit.getMaxWork(HashAlgorithm.PBKDF2_SHA256));
+        // Far more than 25000 iterations take here
+        HashParameters calibrated = new HashCostCalibrator(10_000).calibrate(CONFIGURED,
+                limit.getMaxWork(CONFIGURED.getAlgorithm()));
+        assertTrue(calibrated.toString(), calibrated.get("i") <= 25000);
+        limit.check(calibrated);
+        assertRejected(limit, HashParameters.parse("pbkdf2-sha256$i=25001,l=32"));
+    }
+
+    @Test
+    public void uncalibratedLimitIsAFactorOfTheConfiguredProfiles() {
+        HashCostLimit limit = new HashCostLimit(CONFIGURED, false,
+                Collections.singletonList(HashParameters.parse("scrypt$n=16384,r=8,p=1,l=32")), 2,
+                Collections.emptyList());
+        limit.check(HashParameters.parse("pbkdf2-sha256$i=20000,l=32"));
+        limit.check(HashParameters.LEGACY);
+        limit.check(HashParameters.parse("scrypt$n=32768,r=8,p=1,l=32"));
+        assertRejected(limit, HashParameters.parse("pbkdf2-sha256$i=20001,l=32"));
+        assertRejected(limit, HashParameters.parse("scrypt$n=65536,r=8,p=1,l=32"));
+        assertRejected(limit, HashParameters.parse("argon2id$m=19456,t=2,p=1,l=32"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ceilingBelowTheConfiguredParametersIsRefused() {
+        new HashCostLimit(CONFIGURED, false, Collections.emptyList(), 2,
+                Collections.singletonList(HashParameters.parse("pbkdf2-sha256$i=5000,l=32")));
+    }
+
+    private static void assertRejected(HashCostLimit limit, HashParameters parameters) {
+        try {
+            limit.check(parameters);
+            fail("Accepted " + parameters + " under " + limit);
+        } catch (IllegalArgumentException expected) {
+            // Refused
+        }
+    }
+}
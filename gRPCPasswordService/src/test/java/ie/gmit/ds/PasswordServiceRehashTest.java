@@ -0,0 +1,136 @@
+package ie.gmit.ds;
+
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.testing.GrpcCleanupRule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Validate's rehash, over the in-process transport: a valid password stored under outdated hash parameters comes
+ * back hashed again with the current ones, and nothing else does.
+ */
+public class PasswordServiceRehashTest {
+
+    // Cheap, and not LEGACY, so LEGACY hashes are outdated here
+    private static final HashParameters CURRENT = HashParameters.parse("pbkdf2-sha256$i=1000,l=32");
+    private static final String PASSWORD = "correct horse battery staple";
+
+    @Rule
+    public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+    private HashingExecutor hashingExecutor;
+    private PasswordServiceGrpc.PasswordServiceBlockingStub stub;
+
+    @Before
+    public void setUp() throws Exception {
+        hashingExecutor = new HashingExecutor(2, 16);
+        String name = InProcessServerBuilder.generateName();
+        grpcCleanup.register(InProcessServerBuilder.forName(name)
+                .directExecutor()
+                .addService(new PasswordServiceImpl(hashingExecutor, CURRENT,
+                        HashBatchObserver.defaultWindow(hashingExecutor.getThreads())))
+                .build()
+                .start());
+        ManagedChannel channel = grpcCleanup.register(InProcessChannelBuilder.forName(name).build());
+        stub = PasswordServiceGrpc.newBlockingStub(channel);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        hashingExecutor.shutdown();
+        hashingExecutor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void validPasswordUnderOldParametersIsRehashed() {
+        PasswordValidateRequest legacy = legacyHash(PASSWORD);
+        PasswordValidateResponse response = stub.validate(legacy);
+        assertTrue(response.getValidPassword());
+        assertTrue(response.getRehashed());
+        assertEquals(CURRENT.toString(), response.getNewHashParameters());
+        assertFalse(response.getNewSalt().equals(legacy.getSalt()));
+        char[] password = PASSWORD.toCharArray();
+        assertEquals(ByteString.copyFrom(Passwords.hash(password, password.length,
+                response.getNewSalt().toByteArray(), CURRENT)), response.getNewExpectedHash());
+
+        // Stored in place of the old one it validates, and is current
+        PasswordValidateResponse again = stub.validate(PasswordValidateRequest.newBuilder()
+                .setPassword(PASSWORD)
+                .setSalt(response.getNewSalt())
+                .setExpectedHash(response.getNewExpectedHash())
+                .setHashParameters(response.getNewHashParameters())
+                .build());
+        assertTrue(again.getValidPassword());
+        assertNotRehashed(again);
+    }
+
+    @Test
+    public void wrongPasswordIsNotRehashed() {
+        PasswordValidateResponse response = stub.validate(legacyHash(PASSWORD).toBuilder()
+                .setPassword(PASSWORD + "x")
+                .build());
+        assertFalse(response.getValidPassword());
+        assertNotRehashed(response);
+    }
+
+    @Test
+    public void hashUnderCurrentParametersIsNotRehashed() {
+        UserInputResponse hashed = stub.hash(UserInputRequest.newBuilder()
+                .setUserId(1)
+                .setPassword(PASSWORD)
+                .build());
+        assertEquals(CURRENT.toString(), hashed.getHashParameters());
+        PasswordValidateResponse response = stub.validate(PasswordValidateRequest.newBuilder()
+                .setPassword(PASSWORD)
+                .setSalt(hashed.getSalt())
+                .setExpectedHash(hashed.getExpectedHash())
+                .setHashParameters(hashed.getHashParameters())
+                .build());
+        assertTrue(response.getValidPassword());
+        assertNotRehashed(response);
+    }
+
+    @Test
+    public void validateBatchRehashesOnlyTheValidOutdatedOnes() {
+        PasswordValidateRequest legacy = legacyHash(PASSWORD);
+        PasswordValidateBatchResponse batch = stub.validateBatch(PasswordValidateBatchRequest.newBuilder()
+                .addRequests(legacy)
+                .addRequests(legacy.toBuilder().setPassword(PASSWORD + "x"))
+                .build());
+        assertEquals(2, batch.getResponsesCount());
+        assertTrue(batch.getResponses(0).getRehashed());
+        assertEquals(CURRENT.toString(), batch.getResponses(0).getNewHashParameters());
+        assertFalse(batch.getResponses(1).getValidPassword());
+        assertNotRehashed(batch.getResponses(1));
+    }
+
+    /**
+     * As stored before hash parameters existed: LEGACY, no parameters sent
+     */
+    private static PasswordValidateRequest legacyHash(String password) {
+        byte[] salt = Passwords.getNextSalt();
+        return PasswordValidateRequest.newBuilder()
+                .setPassword(password)
+                .setSalt(ByteString.copyFrom(salt))
+                .setExpectedHash(ByteString.copyFrom(Passwords.hash(password.toCharArray(), salt)))
+                .build();
+    }
+
+    private static void assertNotRehashed(PasswordValidateResponse response) {
+        assertFalse(response.getRehashed());
+        assertTrue(response.getNewExpectedHash().isEmpty());
+        assertTrue(response.getNewSalt().isEmpty());
+        assertEquals("", response.getNewHashParameters());
+    }
+}
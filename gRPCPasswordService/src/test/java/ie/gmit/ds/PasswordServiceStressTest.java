@@ -0,0 +1,124 @@
+package ie.gmit.ds;
+
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.testing.GrpcCleanupRule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Concurrency stress test for PasswordServiceImpl, over the in-process transport.
+ * <p>
+ * Many callers hash and validate different passwords through one service instance at the same time and every
+ * answer is checked: hashes must validate with their own password and salt, must not validate with another caller's
+ * password, and must agree with Passwords.hash run directly. Password lengths vary, some past the 64 byte HMAC
+ * block, so callers sharing a hashing thread's buffers would show up.
+ */
+public class PasswordServiceStressTest {
+
+    private static final int CALLERS = 64;
+    private static final int ROUNDS = 3;
+
+    @Rule
+    public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+    private HashingExecutor hashingExecutor;
+    private PasswordServiceGrpc.PasswordServiceBlockingStub stub;
+
+    @Before
+    public void setUp() throws Exception {
+        // Queue big enough for every caller, this checks correctness not rejection
+        hashingExecutor = new HashingExecutor(HashingExecutor.DEFAULT_THREADS, CALLERS * 2);
+        String name = InProcessServerBuilder.generateName();
+        grpcCleanup.register(InProcessServerBuilder.forName(name)
+                .directExecutor()
+                .addService(new PasswordServiceImpl(hashingExecutor))
+                .build()
+                .start());
+        ManagedChannel channel = grpcCleanup.register(InProcessChannelBuilder.forName(name).build());
+        stub = PasswordServiceGrpc.newBlockingStub(channel);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        hashingExecutor.shutdown();
+        hashingExecutor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void concurrentCallersGetTheirOwnAnswers() throws Exception {
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger checks = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>(CALLERS);
+        for (int i = 0; i < CALLERS; i++) {
+            final int callerId = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int round = 0; round < ROUNDS; round++) {
+                        check(callerId * ROUNDS + round, failures);
+                        checks.incrementAndGet();
+                    }
+                } catch (Exception ex) {
+                    failures.add("Caller " + callerId + " failed: " + ex);
+                }
+            }, "stress-caller-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+        // All released at the same time
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.MINUTES.toMillis(2));
+        }
+        assertEquals(Collections.emptyList(), failures);
+        assertEquals(CALLERS * ROUNDS, checks.get());
+    }
+
+    /**
+     * One hash then two validates (right and wrong password) for a user
+     */
+    private void check(int userId, List<String> failures) {
+        String password = Passwords.generateRandomPassword(4 + userId % 120);
+        UserInputResponse hashed = stub.hash(UserInputRequest.newBuilder()
+                .setUserId(userId)
+                .setPassword(password)
+                .build());
+        if (hashed.getUserId() != userId) {
+            failures.add("Hash for user " + userId + " came back as user " + hashed.getUserId());
+        }
+        byte[] direct = Passwords.hash(password.toCharArray(), hashed.getSalt().toByteArray());
+        if (!ByteString.copyFrom(direct).equals(hashed.getExpectedHash())) {
+            failures.add("Hash for user " + userId + " does not match Passwords.hash");
+        }
+        if (!validate(password, hashed)) {
+            failures.add("Correct password rejected for user " + userId);
+        }
+        if (validate(password + "x", hashed)) {
+            failures.add("Wrong password accepted for user " + userId);
+        }
+    }
+
+    private boolean validate(String password, UserInputResponse hashed) {
+        return stub.validate(PasswordValidateRequest.newBuilder()
+                .setPassword(password)
+                .setSalt(hashed.getSalt())
+                .setExpectedHash(hashed.getExpectedHash())
+                .setHashParameters(hashed.getHashParameters())
+                .build()).getValidPassword();
+    }
+}
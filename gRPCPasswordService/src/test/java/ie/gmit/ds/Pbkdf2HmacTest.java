@@ -0,0 +1,73 @@
+package ie.gmit.ds;
+
+import org.junit.Test;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Pbkdf2Hmac must give the same bytes as the JDK's SecretKeyFactory, for any password, salt, iteration count and
+ * key length. Timing and allocation against SecretKeyFactory are in PasswordBenchmarks (Pbkdf2Benchmark).
+ */
+public class Pbkdf2HmacTest {
+
+    private static final int CASES = 200;
+
+    @Test
+    public void sha1MatchesSecretKeyFactory() throws GeneralSecurityException {
+        checkAgainst(SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1"), Pbkdf2Hmac.sha1());
+    }
+
+    @Test
+    public void sha256MatchesSecretKeyFactory() throws GeneralSecurityException {
+        checkAgainst(SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256"), Pbkdf2Hmac.sha256());
+    }
+
+    /**
+     * RFC 6070 test vectors
+     */
+    @Test
+    public void sha1MatchesRfc6070() {
+        assertEquals("0c60c80f961f0e71f3a9b524af6012062fe037a6", derive("password", "salt", 1, 20));
+        assertEquals("4b007901b765489abead49d926f721d065a429c1", derive("password", "salt", 4096, 20));
+        assertEquals("3d2eec4fe41c849b80c8d83662c0e44a8b291a964cf2f07038",
+                derive("passwordPASSWORDpassword", "saltSALTsaltSALTsaltSALTsaltSALTsalt", 4096, 25));
+    }
+
+    /**
+     * Random passwords -- ascii, 2/3 byte chars, surrogates paired or not, longer than a block, empty -- through one
+     * engine back to back, so anything left over from the last hash would show
+     */
+    private static void checkAgainst(SecretKeyFactory skf, Pbkdf2Hmac engine) throws GeneralSecurityException {
+        Random random = new Random(42);
+        for (int i = 0; i < CASES; i++) {
+            char[] password = new char[i % 90];
+            for (int j = 0; j < password.length; j++) {
+                int kind = random.nextInt(10);
+                password[j] = kind < 6 ? (char) (32 + random.nextInt(95))
+                        : kind < 9 ? (char) random.nextInt(0xD800)
+                        : (char) (0xD800 + random.nextInt(0x800));
+            }
+            byte[] salt = new byte[1 + random.nextInt(70)];
+            random.nextBytes(salt);
+            int iterations = 1 + random.nextInt(50);
+            int keyLength = 1 + random.nextInt(70);
+            byte[] expected = skf.generateSecret(new PBEKeySpec(password, salt, iterations, keyLength * 8)).getEncoded();
+            assertArrayEquals(skf.getAlgorithm() + " case " + i, expected,
+                    engine.derive(password, password.length, salt, iterations, keyLength));
+        }
+    }
+
+    private static String derive(String password, String salt, int iterations, int keyLength) {
+        byte[] key = Pbkdf2Hmac.sha1().derive(password.toCharArray(), password.length(),
+                salt.getBytes(StandardCharsets.US_ASCII), iterations, keyLength);
+        return String.format("%0" + keyLength * 2 + "x", new BigInteger(1, key));
+    }
+}
@@ -0,0 +1,109 @@
+package ie.gmit.ds;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Order PriorityLaneQueue serves its two lanes in, and the capacity of each
+ */
+public class PriorityLaneQueueTest {
+
+    private static final int CAPACITY = 10;
+    private static final int BACKGROUND_EVERY = 4;
+
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+
+    @Test
+    public void backgroundGetsOneTakeInEveryBackgroundEvery() throws Exception {
+        PriorityLaneQueue queue = new PriorityLaneQueue(CAPACITY, BACKGROUND_EVERY);
+        List<Runnable> logins = tasks(HashingExecutor.Priority.INTERACTIVE, 9);
+        List<Runnable> signups = tasks(HashingExecutor.Priority.BACKGROUND, 4);
+        // Background queued first, logins still go ahead
+        signups.forEach(task -> assertTrue(queue.offer(task)));
+        logins.forEach(task -> assertTrue(queue.offer(task)));
+
+        List<Runnable> expected = Arrays.asList(
+                logins.get(0), logins.get(1), logins.get(2), signups.get(0),
+                logins.get(3), logins.get(4), logins.get(5), signups.get(1),
+                logins.get(6), logins.get(7), logins.get(8), signups.get(2),
+                // Logins all taken, background has the queue to itself
+                signups.get(3));
+        List<Runnable> served = new ArrayList<>();
+        // take, poll and timed poll all share the order
+        for (int i = 0; i < expected.size(); i++) {
+            switch (i % 3) {
+                case 0:
+                    served.add(queue.take());
+                    break;
+                case 1:
+                    served.add(queue.poll());
+                    break;
+                default:
+                    served.add(queue.poll(1, TimeUnit.SECONDS));
+            }
+        }
+        assertEquals(expected, served);
+        assertNull(queue.poll());
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void interactiveOnlyWhileBackgroundIsEmpty() throws Exception {
+        PriorityLaneQueue queue = new PriorityLaneQueue(CAPACITY, BACKGROUND_EVERY);
+        List<Runnable> logins = tasks(HashingExecutor.Priority.INTERACTIVE, 6);
+        logins.forEach(queue::offer);
+        // The streak only counts while background work waits
+        for (int i = 0; i < 5; i++) {
+            assertSame(logins.get(i), queue.take());
+        }
+        Runnable signup = tasks(HashingExecutor.Priority.BACKGROUND, 1).get(0);
+        queue.offer(signup);
+        assertSame(logins.get(5), queue.take());
+        assertSame(signup, queue.take());
+    }
+
+    @Test
+    public void eachLaneHasItsOwnCapacity() {
+        PriorityLaneQueue queue = new PriorityLaneQueue(CAPACITY, BACKGROUND_EVERY);
+        for (Runnable task : tasks(HashingExecutor.Priority.BACKGROUND, CAPACITY)) {
+            assertTrue(queue.offer(task));
+        }
+        assertFalse(queue.offer(tasks(HashingExecutor.Priority.BACKGROUND, 1).get(0)));
+        // Untagged work goes in the full BACKGROUND lane
+        assertFalse(queue.offer(() -> {
+        }));
+        assertEquals(0, queue.remainingCapacity());
+
+        // A full BACKGROUND lane doesn't turn logins away
+        for (Runnable task : tasks(HashingExecutor.Priority.INTERACTIVE, CAPACITY)) {
+            assertTrue(queue.offer(task));
+        }
+        assertFalse(queue.offer(tasks(HashingExecutor.Priority.INTERACTIVE, 1).get(0)));
+        assertEquals(CAPACITY, queue.size(HashingExecutor.Priority.INTERACTIVE));
+        assertEquals(CAPACITY, queue.size(HashingExecutor.Priority.BACKGROUND));
+        assertEquals(2 * CAPACITY, queue.size());
+
+        // Room again once one is taken
+        queue.poll();
+        assertTrue(queue.offer(tasks(HashingExecutor.Priority.INTERACTIVE, 1).get(0)));
+    }
+
+    private List<Runnable> tasks(HashingExecutor.Priority priority, int count) {
+        List<Runnable> tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            tasks.add(new PriorityLaneQueue.Task(() -> {
+            }, priority, queueWait));
+        }
+        return tasks;
+    }
+}